@@ -16,16 +16,52 @@ import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.List;
 
-/** Represents an array in JSON. */
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Represents an array in JSON. As long as every element is a number, the elements are stored
+ * unboxed, as ints, longs or doubles. Storage is widened in place when a number arrives that the
+ * current kind can't hold, so an array of ints that gains a long becomes an array of longs, and
+ * one that gains a fraction becomes an array of doubles. Integers are only ever stored as doubles
+ * when their magnitude is below 10<sup>7</sup>, so that they are exact and print the same either
+ * way. The first insertion of any other kind of value, or of a number that can't be widened into
+ * place, switches to storing boxed elements. While unboxed, {@link #get(int)} boxes the element on
+ * each call, as the type it is currently stored as, so it returns a value numerically equal to the
+ * one that was added, but not necessarily of the same type or the same instance.
+ */
 public class JsonArray extends JsonCollection {
-    private List<Object> mList = new ArrayList<>();
+    private static final int              EMPTY                = 0;
+    private static final int              INTS                 = 1;
+    private static final int              LONGS                = 2;
+    private static final int              DOUBLES              = 3;
+    private static final int              OBJECTS              = 4;
+    private static final long             MAXIMUM_PLAIN_DOUBLE = 10_000_000;
+    private              int              mKind;
+    private              TIntArrayList    mInts;
+    private              TLongArrayList   mLongs;
+    private              TDoubleArrayList mDoubles;
+    private              List<Object>     mList;
 
     /**
      * @param index The index to retrieve.
      * @return The value associated with the index or {@code null} if no such index exists.
      */
     public Object get(int index) {
-        return index < 0 || index >= size() ? null : mList.get(index);
+        if (index < 0 || index >= size()) {
+            return null;
+        }
+        switch (mKind) {
+        case INTS:
+            return Integer.valueOf(mInts.get(index));
+        case LONGS:
+            return Long.valueOf(mLongs.get(index));
+        case DOUBLES:
+            return Double.valueOf(mDoubles.get(index));
+        default:
+            return mList.get(index);
+        }
     }
 
     /**
@@ -70,6 +106,18 @@ public class JsonArray extends JsonCollection {
      *         cannot be converted to an integer.
      */
     public int getInt(int index) {
+        if (index >= 0 && index < size()) {
+            switch (mKind) {
+            case INTS:
+                return mInts.get(index);
+            case LONGS:
+                return (int) mLongs.get(index);
+            case DOUBLES:
+                return (int) mDoubles.get(index);
+            default:
+                break;
+            }
+        }
         return Json.asInt(get(index));
     }
 
@@ -79,6 +127,18 @@ public class JsonArray extends JsonCollection {
      *         cannot be converted to a long.
      */
     public long getLong(int index) {
+        if (index >= 0 && index < size()) {
+            switch (mKind) {
+            case INTS:
+                return mInts.get(index);
+            case LONGS:
+                return mLongs.get(index);
+            case DOUBLES:
+                return (long) mDoubles.get(index);
+            default:
+                break;
+            }
+        }
         return Json.asLong(get(index));
     }
 
@@ -88,6 +148,18 @@ public class JsonArray extends JsonCollection {
      *         cannot be converted to a float.
      */
     public float getFloat(int index) {
+        if (index >= 0 && index < size()) {
+            switch (mKind) {
+            case INTS:
+                return mInts.get(index);
+            case LONGS:
+                return mLongs.get(index);
+            case DOUBLES:
+                return (float) mDoubles.get(index);
+            default:
+                break;
+            }
+        }
         return Json.asFloat(get(index));
     }
 
@@ -97,6 +169,18 @@ public class JsonArray extends JsonCollection {
      *         cannot be converted to a double.
      */
     public double getDouble(int index) {
+        if (index >= 0 && index < size()) {
+            switch (mKind) {
+            case INTS:
+                return mInts.get(index);
+            case LONGS:
+                return mLongs.get(index);
+            case DOUBLES:
+                return mDoubles.get(index);
+            default:
+                break;
+            }
+        }
         return Json.asDouble(get(index));
     }
 
@@ -151,7 +235,18 @@ public class JsonArray extends JsonCollection {
 
     /** @return The number of elements in the array. */
     public int size() {
-        return mList.size();
+        switch (mKind) {
+        case INTS:
+            return mInts.size();
+        case LONGS:
+            return mLongs.size();
+        case DOUBLES:
+            return mDoubles.size();
+        case OBJECTS:
+            return mList.size();
+        default:
+            return 0;
+        }
     }
 
     /**
@@ -160,7 +255,7 @@ public class JsonArray extends JsonCollection {
      * @param value The value to store.
      */
     public void put(Object value) {
-        mList.add(Json.wrap(value));
+        add(Json.wrap(value));
     }
 
     /**
@@ -205,7 +300,19 @@ public class JsonArray extends JsonCollection {
      * @param value The value to store.
      */
     public void put(int value) {
-        put(Integer.valueOf(value));
+        if (mKind == EMPTY) {
+            mInts = new TIntArrayList();
+            mKind = INTS;
+        }
+        if (mKind == INTS) {
+            mInts.add(value);
+        } else if (mKind == LONGS) {
+            mLongs.add(value);
+        } else if (mKind == DOUBLES && isPlainDouble(value)) {
+            mDoubles.add(value);
+        } else {
+            objects().add(Integer.valueOf(value));
+        }
     }
 
     /**
@@ -214,7 +321,19 @@ public class JsonArray extends JsonCollection {
      * @param value The value to store.
      */
     public void put(long value) {
-        put(Long.valueOf(value));
+        if (mKind == EMPTY) {
+            mLongs = new TLongArrayList();
+            mKind = LONGS;
+        } else if (mKind == INTS) {
+            widenToLongs();
+        }
+        if (mKind == LONGS) {
+            mLongs.add(value);
+        } else if (mKind == DOUBLES && isPlainDouble(value)) {
+            mDoubles.add(value);
+        } else {
+            objects().add(Long.valueOf(value));
+        }
     }
 
     /**
@@ -232,7 +351,17 @@ public class JsonArray extends JsonCollection {
      * @param value The value to store.
      */
     public void put(double value) {
-        put(Double.valueOf(value));
+        if (mKind == EMPTY) {
+            mDoubles = new TDoubleArrayList();
+            mKind = DOUBLES;
+        } else if (mKind == INTS || mKind == LONGS) {
+            widenToDoubles();
+        }
+        if (mKind == DOUBLES) {
+            mDoubles.add(value);
+        } else {
+            objects().add(Double.valueOf(value));
+        }
     }
 
     /**
@@ -247,12 +376,12 @@ public class JsonArray extends JsonCollection {
         if (index >= 0) {
             value = Json.wrap(value);
             if (index < size()) {
-                mList.set(index, value);
+                set(index, value);
             } else {
                 while (index != size()) {
-                    put(JsonNull.INSTANCE);
+                    add(JsonNull.INSTANCE);
                 }
-                put(value);
+                add(value);
             }
         }
     }
@@ -359,9 +488,114 @@ public class JsonArray extends JsonCollection {
      * @param index The index of the value to remove.
      */
     public void remove(int index) {
-        if (index >= 0 && index < mList.size()) {
-            mList.remove(index);
+        if (index >= 0 && index < size()) {
+            switch (mKind) {
+            case INTS:
+                mInts.removeAt(index);
+                break;
+            case LONGS:
+                mLongs.removeAt(index);
+                break;
+            case DOUBLES:
+                mDoubles.removeAt(index);
+                break;
+            default:
+                mList.remove(index);
+                break;
+            }
+        }
+    }
+
+    private void add(Object value) {
+        if (value instanceof Integer) {
+            put(((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            put(((Long) value).longValue());
+        } else if (value instanceof Double) {
+            put(((Double) value).doubleValue());
+        } else {
+            objects().add(value);
+        }
+    }
+
+    private void set(int index, Object value) {
+        switch (mKind) {
+        case INTS:
+            if (value instanceof Integer) {
+                mInts.set(index, ((Integer) value).intValue());
+                return;
+            }
+            break;
+        case LONGS:
+            if (value instanceof Long || value instanceof Integer) {
+                mLongs.set(index, ((Number) value).longValue());
+                return;
+            }
+            break;
+        case DOUBLES:
+            if (value instanceof Double || (value instanceof Integer || value instanceof Long) && isPlainDouble(((Number) value).longValue())) {
+                mDoubles.set(index, ((Number) value).doubleValue());
+                return;
+            }
+            break;
+        default:
+            break;
+        }
+        objects().set(index, value);
+    }
+
+    /**
+     * @param value The integer to check.
+     * @return {@code true} if the integer can be stored as a double and still print the same, as
+     *         {@link Double#toString(double)} switches to scientific notation at 10<sup>7</sup>.
+     */
+    private static boolean isPlainDouble(long value) {
+        return value > -MAXIMUM_PLAIN_DOUBLE && value < MAXIMUM_PLAIN_DOUBLE;
+    }
+
+    private void widenToLongs() {
+        int            size  = mInts.size();
+        TLongArrayList longs = new TLongArrayList(Math.max(size + 1, 10));
+        for (int i = 0; i < size; i++) {
+            longs.add(mInts.get(i));
         }
+        mLongs = longs;
+        mInts = null;
+        mKind = LONGS;
+    }
+
+    /** Leaves the storage alone if any of the integers held can't be stored as a double. */
+    private void widenToDoubles() {
+        int              size    = size();
+        TDoubleArrayList doubles = new TDoubleArrayList(Math.max(size + 1, 10));
+        for (int i = 0; i < size; i++) {
+            long value = mKind == INTS ? mInts.get(i) : mLongs.get(i);
+            if (!isPlainDouble(value)) {
+                return;
+            }
+            doubles.add(value);
+        }
+        mDoubles = doubles;
+        mInts = null;
+        mLongs = null;
+        mKind = DOUBLES;
+    }
+
+    /** @return The boxed storage, converting to it first if necessary. */
+    private List<Object> objects() {
+        if (mKind != OBJECTS) {
+            int          size = size();
+            List<Object> list = new ArrayList<>(Math.max(size + 1, 10));
+            for (int i = 0; i < size; i++) {
+                list.add(get(i));
+            }
+            mList = list;
+            mInts = null;
+            mLongs = null;
+            mDoubles = null;
+            mKind = OBJECTS;
+        }
+        return mList;
     }
 
     @Override
@@ -377,11 +611,17 @@ public class JsonArray extends JsonCollection {
                 buffer.append('\n');
                 indent(buffer, false, depth);
             }
-            Object value = mList.get(i);
-            if (value instanceof JsonCollection) {
-                ((JsonCollection) value).appendTo(buffer, compact, depth);
+            if (mKind == INTS) {
+                buffer.append(mInts.get(i));
+            } else if (mKind == LONGS) {
+                buffer.append(mLongs.get(i));
             } else {
-                buffer.append(Json.toString(value));
+                Object value = get(i);
+                if (value instanceof JsonCollection) {
+                    ((JsonCollection) value).appendTo(buffer, compact, depth);
+                } else {
+                    buffer.append(Json.toString(value));
+                }
             }
         }
         if (!compact && len > 0) {
@@ -0,0 +1,783 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.json;
+
+import com.trollworks.toolkit.annotation.JsonKey;
+import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.utility.introspection.FieldAnnotation;
+import com.trollworks.toolkit.utility.introspection.Introspection;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * The plan for loading and saving a class's {@link JsonKey} fields. A plan is built once per class,
+ * the first time it is needed, and accesses fields through {@link MethodHandle}s rather than
+ * reflection. Primitive fields are read and written without boxing their values.
+ */
+final class JsonBinding {
+    private static final ClassValue<JsonBinding> BINDINGS = new ClassValue<>() {
+        @Override
+        protected JsonBinding computeValue(Class<?> type) {
+            return new JsonBinding(type);
+        }
+    };
+    private              Class<?>                mType;
+    private              Binder[]                mBinders;
+    private              Map<String, Binder>     mBindersByName;
+    private              Saver[]                 mSavers;
+    private              MethodHandle            mConstructor;
+    private              Exception               mConstructorFailure;
+
+    /**
+     * @param type The class to return the plan for.
+     * @return The plan for the class.
+     */
+    static JsonBinding get(Class<?> type) {
+        return BINDINGS.get(type);
+    }
+
+    private JsonBinding(Class<?> type) {
+        List<FieldAnnotation<JsonKey>> fields = Introspection.getDeepFieldAnnotations(type, JsonKey.class);
+        mType = type;
+        mBinders = new Binder[fields.size()];
+        mBindersByName = new HashMap<>();
+        // Savers are kept in key order, since that is the order a JsonMap writes its keys in.
+        Map<String, Saver> savers = new TreeMap<>();
+        for (int i = 0; i < mBinders.length; i++) {
+            FieldAnnotation<JsonKey> fa     = fields.get(i);
+            Binder                   binder = createBinder(fa.getField(), fa.getAnnotation().value(), i);
+            try {
+                savers.put(binder.mName, new Saver(binder.mName, fa.getField()));
+            } catch (Exception exception) {
+                Log.error(exception);
+            }
+            Binder other = mBindersByName.putIfAbsent(binder.mName, binder);
+            if (other != null) {
+                while (other.mNext != null) {
+                    other = other.mNext;
+                }
+                other.mNext = binder;
+            }
+            mBinders[i] = binder;
+        }
+        mSavers = savers.values().toArray(new Saver[0]);
+        if (mBinders.length > 0) {
+            try {
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                Introspection.makeConstructorAccessible(constructor);
+                mConstructor = MethodHandles.lookup().unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+            } catch (Exception exception) {
+                mConstructorFailure = exception;
+            }
+        }
+    }
+
+    /** @return {@code true} if the class has at least one {@link JsonKey} field. */
+    boolean isBound() {
+        return mBinders.length > 0;
+    }
+
+    /** @return A new instance of the class, created with its no-argument constructor. */
+    Object newInstance() throws Throwable {
+        if (mConstructor == null) {
+            throw mConstructorFailure != null ? mConstructorFailure : new NoSuchMethodException(mType.getName() + ".<init>()");
+        }
+        return mConstructor.invokeExact();
+    }
+
+    /**
+     * Loads the fields of an object from a {@link JsonMap}. Fields whose keys are not present are
+     * reset to their empty values.
+     *
+     * @param obj The object to load data into.
+     * @param map The {@link JsonMap}.
+     */
+    void load(Object obj, JsonMap map) {
+        for (Binder binder : mBinders) {
+            apply(binder, obj, map.get(binder.mName));
+        }
+    }
+
+    /**
+     * Loads the fields of an object directly from the next value of a {@link JsonReader}, with the
+     * same results as parsing the value into a {@link JsonMap} and calling {@link #load(Object,
+     * JsonMap)}.
+     *
+     * @param obj    The object to load data into.
+     * @param reader The {@link JsonReader} to read from.
+     */
+    void read(Object obj, JsonReader reader) throws IOException {
+        boolean[] seen = new boolean[mBinders.length];
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name   = reader.nextName();
+                Binder binder = mBindersByName.get(name);
+                if (binder == null) {
+                    reader.skipValue();
+                } else if (seen[binder.mIndex]) {
+                    throw new IOException("Duplicate key \"" + name + "\"");
+                } else if (binder.mNext == null) {
+                    seen[binder.mIndex] = true;
+                    try {
+                        binder.read(obj, reader);
+                    } catch (IOException | Error exception) {
+                        throw exception;
+                    } catch (Throwable throwable) {
+                        Log.error(throwable);
+                    }
+                } else {
+                    // More than one field shares this key, so they all get the same value.
+                    Object value = Json.parse(reader);
+                    for (; binder != null; binder = binder.mNext) {
+                        seen[binder.mIndex] = true;
+                        apply(binder, obj, value);
+                    }
+                }
+            }
+            reader.endObject();
+        } else {
+            reader.skipValue();
+        }
+        for (Binder binder : mBinders) {
+            if (!seen[binder.mIndex]) {
+                apply(binder, obj, null);
+            }
+        }
+    }
+
+    /**
+     * Writes the fields of an object as a JSON object.
+     *
+     * @param obj    The object to save.
+     * @param writer The {@link JsonWriter} to write to.
+     */
+    void save(Object obj, JsonWriter writer) throws IOException {
+        writer.startObject();
+        for (Saver saver : mSavers) {
+            try {
+                saver.save(obj, writer);
+            } catch (IOException | Error exception) {
+                throw exception;
+            } catch (Throwable throwable) {
+                Log.error(throwable);
+            }
+        }
+        writer.endObject();
+    }
+
+    private static void apply(Binder binder, Object obj, Object value) {
+        try {
+            binder.load(obj, value);
+        } catch (Error error) {
+            throw error;
+        } catch (Throwable throwable) {
+            Log.error(throwable);
+        }
+    }
+
+    private static Binder createBinder(Field field, String name, int index) {
+        Class<?> fieldType = field.getType();
+        try {
+            Introspection.makeFieldAccessible(field);
+            MethodHandle setter = MethodHandles.lookup().unreflectSetter(field);
+            if (Modifier.isStatic(field.getModifiers())) {
+                setter = MethodHandles.dropArguments(setter, 0, Object.class);
+            }
+            if (fieldType == boolean.class || fieldType == Boolean.class) {
+                return new BooleanBinder(name, index, setter);
+            }
+            if (fieldType == byte.class || fieldType == Byte.class) {
+                return new ByteBinder(name, index, setter);
+            }
+            if (fieldType == char.class || fieldType == Character.class) {
+                return new CharBinder(name, index, setter);
+            }
+            if (fieldType == short.class || fieldType == Short.class) {
+                return new ShortBinder(name, index, setter);
+            }
+            if (fieldType == int.class || fieldType == Integer.class) {
+                return new IntBinder(name, index, setter);
+            }
+            if (fieldType == long.class || fieldType == Long.class) {
+                return new LongBinder(name, index, setter);
+            }
+            if (fieldType == float.class || fieldType == Float.class) {
+                return new FloatBinder(name, index, setter);
+            }
+            if (fieldType == double.class || fieldType == Double.class) {
+                return new DoubleBinder(name, index, setter);
+            }
+            if (fieldType == String.class) {
+                return new StringBinder(name, index, setter);
+            }
+            if (fieldType.isEnum()) {
+                Enum<?>[] constants = (Enum<?>[]) fieldType.getEnumConstants();
+                return new ValueBinder(name, index, setter, value -> extractEnum(Json.asString(value, false), constants));
+            }
+            if (fieldType.isArray()) {
+                Class<?> componentType = fieldType.getComponentType();
+                String   fieldName     = field.getName();
+                return new ValueBinder(name, index, setter, value -> createArray(componentType, fieldName, Json.asArray(value, true)));
+            }
+            if (List.class.isAssignableFrom(fieldType)) {
+                Class<?> elementType = getTypeArgument(field, 1, 0);
+                return new ValueBinder(name, index, setter, value -> elementType != null ? createList(elementType, Json.asArray(value, true)) : null);
+            }
+            if (Map.class.isAssignableFrom(fieldType)) {
+                Class<?> valueType = getTypeArgument(field, 2, 1);
+                return new ValueBinder(name, index, setter, value -> valueType != null ? createMap(valueType, Json.asMap(value, true)) : null);
+            }
+            if (Introspection.hasDeepFieldAnnotation(fieldType, JsonKey.class)) {
+                return new ObjectBinder(name, index, setter, fieldType);
+            }
+            Log.error("Unable to restore " + fieldType.getName() + " for key " + name);
+        } catch (Exception exception) {
+            Log.error(exception);
+        }
+        return new Binder(name, index);
+    }
+
+    /** @return The resolved type argument, or {@code null} if it could not be determined. */
+    private static Class<?> getTypeArgument(Field field, int count, int which) {
+        Type genericType = field.getGenericType();
+        if (genericType instanceof ParameterizedType) {
+            try {
+                Type[] args = ((ParameterizedType) genericType).getActualTypeArguments();
+                if (args.length == count) {
+                    if (count == 2 && resolve(args[0]) != String.class) {
+                        Log.error("Only maps with Strings for their keys are permitted");
+                        return null;
+                    }
+                    return resolve(args[which]);
+                }
+                Log.error(count == 1 ? "Must have one type argument for a list" : "Must have two type arguments for a map");
+            } catch (ClassNotFoundException exception) {
+                Log.error(exception);
+            }
+        } else {
+            Log.error("Unable to determine generic type");
+        }
+        return null;
+    }
+
+    private static Class<?> resolve(Type type) throws ClassNotFoundException {
+        return type instanceof Class ? (Class<?>) type : Class.forName(type.getTypeName());
+    }
+
+    /** Does not support creating Arrays containing Arrays, Lists or Maps. */
+    static Object createArray(Class<?> type, String name, JsonArray array) {
+        if (array == null) {
+            return null;
+        }
+        int length = array.size();
+        if (type == boolean.class) {
+            boolean[] data = new boolean[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getBoolean(i);
+            }
+            return data;
+        }
+        if (type == byte.class) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getByte(i);
+            }
+            return data;
+        }
+        if (type == char.class) {
+            char[] data = new char[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getChar(i);
+            }
+            return data;
+        }
+        if (type == short.class) {
+            short[] data = new short[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getShort(i);
+            }
+            return data;
+        }
+        if (type == int.class) {
+            int[] data = new int[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getInt(i);
+            }
+            return data;
+        }
+        if (type == long.class) {
+            long[] data = new long[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getLong(i);
+            }
+            return data;
+        }
+        if (type == float.class) {
+            float[] data = new float[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getFloat(i);
+            }
+            return data;
+        }
+        if (type == double.class) {
+            double[] data = new double[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getDouble(i);
+            }
+            return data;
+        }
+        Object[] data = (Object[]) Array.newInstance(type, length);
+        if (isCreatable(type)) {
+            for (int i = 0; i < length; i++) {
+                data[i] = createObject(type, array.get(i));
+            }
+        } else {
+            Log.error("Unable to restore " + type.getName() + " for key " + name);
+        }
+        return data;
+    }
+
+    /** Does not support creating Lists containing Arrays, Lists or Maps. */
+    static List<?> createList(Class<?> type, JsonArray array) {
+        if (array == null) {
+            return null;
+        }
+        int          length = array.size();
+        List<Object> result = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            result.add(createObject(type, array.get(i)));
+        }
+        return result;
+    }
+
+    /** Does not support creating Maps containing Arrays, Lists or Maps. */
+    static Map<String, ?> createMap(Class<?> type, JsonMap map) {
+        if (map == null) {
+            return null;
+        }
+        Map<String, Object> result = new HashMap<>();
+        for (String key : map.keySet()) {
+            result.put(key, createObject(type, map.get(key)));
+        }
+        return result;
+    }
+
+    private static boolean isCreatable(Class<?> type) {
+        return type == Boolean.class || type == Byte.class || type == Character.class || type == Short.class || type == Integer.class || type == Long.class || type == Float.class || type == Double.class || type == String.class || type.isEnum() || get(type).isBound();
+    }
+
+    /** Does not support creating Arrays, Lists or Maps. */
+    static Object createObject(Class<?> type, Object jsonData) {
+        if (type == boolean.class || type == Boolean.class) {
+            return Json.asBooleanObject(jsonData);
+        }
+        if (type == byte.class || type == Byte.class) {
+            return Json.asByteObject(jsonData);
+        }
+        if (type == char.class || type == Character.class) {
+            return Json.asCharObject(jsonData);
+        }
+        if (type == short.class || type == Short.class) {
+            return Json.asShortObject(jsonData);
+        }
+        if (type == int.class || type == Integer.class) {
+            return Json.asIntObject(jsonData);
+        }
+        if (type == long.class || type == Long.class) {
+            return Json.asLongObject(jsonData);
+        }
+        if (type == float.class || type == Float.class) {
+            return Json.asFloatObject(jsonData);
+        }
+        if (type == double.class || type == Double.class) {
+            return Json.asDoubleObject(jsonData);
+        }
+        if (type == String.class) {
+            return Json.asString(jsonData, true);
+        }
+        if (type.isEnum()) {
+            return extractEnum(Json.asString(jsonData, false), (Enum<?>[]) type.getEnumConstants());
+        }
+        JsonBinding binding = get(type);
+        if (binding.isBound()) {
+            try {
+                JsonMap objMap = Json.asMap(jsonData, true);
+                if (objMap != null) {
+                    Object obj = binding.newInstance();
+                    binding.load(obj, objMap);
+                    return obj;
+                }
+                return null;
+            } catch (Error error) {
+                throw error;
+            } catch (Throwable throwable) {
+                Log.error(throwable);
+            }
+        }
+        Log.error("Unable to create type: " + type.getSimpleName());
+        return null;
+    }
+
+    private static Enum<?> extractEnum(String value, Enum<?>[] constants) {
+        for (Enum<?> one : constants) {
+            if (one.toString().equals(value)) {
+                return one;
+            }
+        }
+        return null;
+    }
+
+    /** Writes a single field. The base class is used for fields that cannot be restored. */
+    private static class Binder {
+        String mName;
+        int    mIndex;
+        Binder mNext;
+
+        Binder(String name, int index) {
+            mName = name;
+            mIndex = index;
+        }
+
+        /**
+         * @param obj   The object to write the field of.
+         * @param value The value from a {@link JsonMap}, or {@code null} if the key was not present.
+         */
+        void load(Object obj, Object value) throws Throwable {
+            // Nothing to do by default
+        }
+
+        /**
+         * @param obj    The object to write the field of.
+         * @param reader The {@link JsonReader} positioned at the field's value.
+         */
+        void read(Object obj, JsonReader reader) throws Throwable {
+            load(obj, Json.parse(reader));
+        }
+    }
+
+    private static final class BooleanBinder extends Binder {
+        private MethodHandle mSetter;
+
+        BooleanBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, Json.asBoolean(value));
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() == JsonToken.BOOLEAN) {
+                mSetter.invokeExact(obj, reader.nextBoolean());
+            } else {
+                super.read(obj, reader);
+            }
+        }
+    }
+
+    private static final class ByteBinder extends Binder {
+        private MethodHandle mSetter;
+
+        ByteBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, byte.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, Json.asByte(value));
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() == JsonToken.NUMBER) {
+                mSetter.invokeExact(obj, (byte) reader.nextInt());
+            } else {
+                super.read(obj, reader);
+            }
+        }
+    }
+
+    private static final class CharBinder extends Binder {
+        private MethodHandle mSetter;
+
+        CharBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, char.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, Json.asChar(value));
+        }
+    }
+
+    private static final class ShortBinder extends Binder {
+        private MethodHandle mSetter;
+
+        ShortBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, short.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, Json.asShort(value));
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() == JsonToken.NUMBER) {
+                mSetter.invokeExact(obj, (short) reader.nextInt());
+            } else {
+                super.read(obj, reader);
+            }
+        }
+    }
+
+    private static final class IntBinder extends Binder {
+        private MethodHandle mSetter;
+
+        IntBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, int.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, Json.asInt(value));
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() == JsonToken.NUMBER) {
+                mSetter.invokeExact(obj, reader.nextInt());
+            } else {
+                super.read(obj, reader);
+            }
+        }
+    }
+
+    private static final class LongBinder extends Binder {
+        private MethodHandle mSetter;
+
+        LongBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, long.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, Json.asLong(value));
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() == JsonToken.NUMBER) {
+                mSetter.invokeExact(obj, reader.nextLong());
+            } else {
+                super.read(obj, reader);
+            }
+        }
+    }
+
+    private static final class FloatBinder extends Binder {
+        private MethodHandle mSetter;
+
+        FloatBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, float.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, Json.asFloat(value));
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() == JsonToken.NUMBER) {
+                mSetter.invokeExact(obj, (float) reader.nextDouble());
+            } else {
+                super.read(obj, reader);
+            }
+        }
+    }
+
+    private static final class DoubleBinder extends Binder {
+        private MethodHandle mSetter;
+
+        DoubleBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, double.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, Json.asDouble(value));
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() == JsonToken.NUMBER) {
+                mSetter.invokeExact(obj, reader.nextDouble());
+            } else {
+                super.read(obj, reader);
+            }
+        }
+    }
+
+    private static final class StringBinder extends Binder {
+        private MethodHandle mSetter;
+
+        StringBinder(String name, int index, MethodHandle setter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, (Object) Json.asString(value, true));
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() == JsonToken.STRING) {
+                mSetter.invokeExact(obj, (Object) reader.nextString());
+            } else {
+                super.read(obj, reader);
+            }
+        }
+    }
+
+    private static final class ValueBinder extends Binder {
+        private MethodHandle             mSetter;
+        private Function<Object, Object> mConverter;
+
+        ValueBinder(String name, int index, MethodHandle setter, Function<Object, Object> converter) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            mConverter = converter;
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            mSetter.invokeExact(obj, mConverter.apply(value));
+        }
+    }
+
+    private static final class ObjectBinder extends Binder {
+        private MethodHandle mSetter;
+        private Class<?>     mType;
+
+        ObjectBinder(String name, int index, MethodHandle setter, Class<?> type) {
+            super(name, index);
+            mSetter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            mType = type;
+        }
+
+        @Override
+        void load(Object obj, Object value) throws Throwable {
+            JsonMap map = Json.asMap(value, true);
+            if (map != null) {
+                // Looked up here rather than when the plan is built, since a type may refer to
+                // itself.
+                JsonBinding binding  = get(mType);
+                Object      instance = binding.newInstance();
+                binding.load(instance, map);
+                mSetter.invokeExact(obj, instance);
+            } else {
+                mSetter.invokeExact(obj, (Object) null);
+            }
+        }
+
+        @Override
+        void read(Object obj, JsonReader reader) throws Throwable {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                mSetter.invokeExact(obj, (Object) null);
+                return;
+            }
+            JsonBinding binding = get(mType);
+            Object      instance;
+            try {
+                instance = binding.newInstance();
+            } catch (Throwable throwable) {
+                reader.skipValue();
+                throw throwable;
+            }
+            binding.read(instance, reader);
+            mSetter.invokeExact(obj, instance);
+        }
+    }
+
+    /** Reads a single field and writes it out. */
+    private static final class Saver {
+        private String       mName;
+        private Class<?>     mType;
+        private MethodHandle mGetter;
+
+        Saver(String name, Field field) throws IllegalAccessException {
+            Class<?> type = field.getType();
+            Introspection.makeFieldAccessible(field);
+            MethodHandle getter = MethodHandles.lookup().unreflectGetter(field);
+            if (Modifier.isStatic(field.getModifiers())) {
+                getter = MethodHandles.dropArguments(getter, 0, Object.class);
+            }
+            mName = name;
+            mType = type.isPrimitive() ? type : Object.class;
+            mGetter = getter.asType(MethodType.methodType(mType, Object.class));
+        }
+
+        void save(Object obj, JsonWriter writer) throws Throwable {
+            writer.key(mName);
+            if (mType == Object.class) {
+                writer.value((Object) mGetter.invokeExact(obj));
+            } else if (mType == int.class) {
+                writer.value((int) mGetter.invokeExact(obj));
+            } else if (mType == long.class) {
+                writer.value((long) mGetter.invokeExact(obj));
+            } else if (mType == double.class) {
+                writer.value((double) mGetter.invokeExact(obj));
+            } else if (mType == boolean.class) {
+                writer.value((boolean) mGetter.invokeExact(obj));
+            } else if (mType == float.class) {
+                writer.value((float) mGetter.invokeExact(obj));
+            } else if (mType == short.class) {
+                writer.value((short) mGetter.invokeExact(obj));
+            } else if (mType == byte.class) {
+                writer.value((byte) mGetter.invokeExact(obj));
+            } else {
+                writer.value(String.valueOf((char) mGetter.invokeExact(obj)));
+            }
+        }
+    }
+}
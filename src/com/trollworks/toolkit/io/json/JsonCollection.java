@@ -11,8 +11,13 @@
 
 package com.trollworks.toolkit.io.json;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /** Common base class for JSON collections. */
 public abstract class JsonCollection {
+    private static final char[] TABS = "\t".repeat(32).toCharArray();
+
     @Override
     public final String toString() {
         return toString(false);
@@ -26,7 +31,19 @@ public abstract class JsonCollection {
 
     protected static void indent(StringBuilder buffer, boolean compact, int depth) {
         if (!compact) {
-            buffer.append("\t".repeat(depth));
+            while (depth > 0) {
+                int count = Math.min(depth, TABS.length);
+                buffer.append(TABS, 0, count);
+                depth -= count;
+            }
+        }
+    }
+
+    static void indent(Writer writer, int depth) throws IOException {
+        while (depth > 0) {
+            int count = Math.min(depth, TABS.length);
+            writer.write(TABS, 0, count);
+            depth -= count;
         }
     }
 }
@@ -13,30 +13,43 @@ package com.trollworks.toolkit.io.json;
 
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
-/** Represents a map in JSON. */
+/**
+ * Represents a map in JSON. Small maps keep their entries in a pair of arrays, in insertion order,
+ * and only switch over to a hash table once they grow beyond {@link #COMPACT_LIMIT} keys.
+ */
 public class JsonMap extends JsonCollection {
-    private Map<String, Object> mMap = new HashMap<>();
+    private static final int                 COMPACT_LIMIT = 8;
+    private              String[]            mKeys;
+    private              Object[]            mValues;
+    private              int                 mSize;
+    private              int                 mModCount;
+    private              Map<String, Object> mMap;
 
     /**
      * @param key The key to check for.
      * @return {@code true} if the key is present in the map.
      */
     public boolean has(String key) {
-        return mMap.containsKey(key);
+        if (mMap != null) {
+            return mMap.containsKey(key);
+        }
+        return indexOf(key) != -1;
     }
 
     /**
      * @return The set of keys in this map.
      */
     public Set<String> keySet() {
-        return mMap.keySet();
+        return new KeySet();
     }
 
     /**
@@ -44,7 +57,14 @@ public class JsonMap extends JsonCollection {
      * @return The value associated with the key or {@code null} if no key matches.
      */
     public Object get(String key) {
-        return key == null ? null : mMap.get(key);
+        if (key == null) {
+            return null;
+        }
+        if (mMap != null) {
+            return mMap.get(key);
+        }
+        int index = indexOf(key);
+        return index != -1 ? mValues[index] : null;
     }
 
     /**
@@ -205,7 +225,37 @@ public class JsonMap extends JsonCollection {
      */
     public void put(String key, Object value) {
         if (key != null) {
-            mMap.put(key, Json.wrap(value));
+            value = Json.wrap(value);
+            if (mMap != null) {
+                mMap.put(key, value);
+                return;
+            }
+            int index = indexOf(key);
+            if (index != -1) {
+                mValues[index] = value;
+                return;
+            }
+            if (mSize == COMPACT_LIMIT) {
+                mMap = new HashMap<>();
+                for (int i = 0; i < mSize; i++) {
+                    mMap.put(mKeys[i], mValues[i]);
+                }
+                mMap.put(key, value);
+                mKeys = null;
+                mValues = null;
+                mSize = 0;
+                return;
+            }
+            if (mKeys == null) {
+                mKeys = new String[4];
+                mValues = new Object[4];
+            } else if (mSize == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, COMPACT_LIMIT);
+                mValues = Arrays.copyOf(mValues, COMPACT_LIMIT);
+            }
+            mKeys[mSize] = key;
+            mValues[mSize++] = value;
+            mModCount++;
         }
     }
 
@@ -275,15 +325,46 @@ public class JsonMap extends JsonCollection {
 
     /** @param key The key to remove from the map. */
     public Object remove(String key) {
-        return mMap.remove(key);
+        if (mMap != null) {
+            return mMap.remove(key);
+        }
+        int index = indexOf(key);
+        if (index == -1) {
+            return null;
+        }
+        Object value = mValues[index];
+        removeAt(index);
+        return value;
+    }
+
+    private int indexOf(String key) {
+        if (key != null) {
+            for (int i = 0; i < mSize; i++) {
+                if (key.equals(mKeys[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int index) {
+        int count = --mSize - index;
+        if (count > 0) {
+            System.arraycopy(mKeys, index + 1, mKeys, index, count);
+            System.arraycopy(mValues, index + 1, mValues, index, count);
+        }
+        mKeys[mSize] = null;
+        mValues[mSize] = null;
+        mModCount++;
     }
 
     @Override
     public StringBuilder appendTo(StringBuilder buffer, boolean compact, int depth) {
         boolean needComma = false;
         buffer.append('{');
-        List<String> keys = new ArrayList<>(mMap.keySet());
-        Collections.sort(keys);
+        String[] keys = keySet().toArray(new String[0]);
+        Arrays.sort(keys);
         depth++;
         for (String key : keys) {
             if (needComma) {
@@ -301,18 +382,86 @@ public class JsonMap extends JsonCollection {
             } else {
                 buffer.append(" : ");
             }
-            Object value = mMap.get(key);
+            Object value = get(key);
             if (value instanceof JsonCollection) {
                 ((JsonCollection) value).appendTo(buffer, compact, depth);
             } else {
                 buffer.append(Json.toString(value));
             }
         }
-        if (!compact && !keys.isEmpty()) {
+        if (!compact && keys.length > 0) {
             buffer.append('\n');
             indent(buffer, false, depth - 1);
         }
         buffer.append('}');
         return buffer;
     }
+
+    /**
+     * A live view of the keys. Once the map has switched over to a hash table, iteration is handed
+     * off to the hash table's own key set.
+     */
+    private class KeySet extends AbstractSet<String> {
+        @Override
+        public int size() {
+            return mMap != null ? mMap.size() : mSize;
+        }
+
+        @Override
+        public boolean contains(Object obj) {
+            return obj instanceof String && has((String) obj);
+        }
+
+        @Override
+        public boolean remove(Object obj) {
+            if (contains(obj)) {
+                JsonMap.this.remove((String) obj);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            if (mMap != null) {
+                return mMap.keySet().iterator();
+            }
+            return new Iterator<>() {
+                private int mNext;
+                private int mLast          = -1;
+                private int mExpectedCount = mModCount;
+
+                @Override
+                public boolean hasNext() {
+                    return mNext < mSize;
+                }
+
+                @Override
+                public String next() {
+                    if (mExpectedCount != mModCount || mMap != null) {
+                        throw new ConcurrentModificationException();
+                    }
+                    if (mNext >= mSize) {
+                        throw new NoSuchElementException();
+                    }
+                    mLast = mNext++;
+                    return mKeys[mLast];
+                }
+
+                @Override
+                public void remove() {
+                    if (mLast == -1) {
+                        throw new IllegalStateException();
+                    }
+                    if (mExpectedCount != mModCount || mMap != null) {
+                        throw new ConcurrentModificationException();
+                    }
+                    removeAt(mLast);
+                    mNext = mLast;
+                    mLast = -1;
+                    mExpectedCount = mModCount;
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,909 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads JSON data one token at a time, without building a tree of {@link JsonMap}s and {@link
+ * JsonArray}s. Input is read through a fixed-size window, numbers are parsed without boxing and
+ * {@link #skipValue()} discards whole subtrees without materializing them, so data of any size can
+ * be scanned in constant memory. The same relaxed syntax accepted by {@link Json#parse(Reader)} is
+ * accepted here.
+ * <p>
+ * When constructed from an {@link InputStream} or a {@link ByteBuffer}, UTF-8 bytes are tokenized
+ * directly, without first being decoded to chars. Only the strings that are actually read are ever
+ * decoded.
+ */
+public class JsonReader implements Closeable {
+    private static final int           BUFFER_SIZE       = 8192;
+    private static final int           EMPTY_DOCUMENT    = 0;
+    private static final int           NONEMPTY_DOCUMENT = 1;
+    private static final int           EMPTY_ARRAY       = 2;
+    private static final int           NONEMPTY_ARRAY    = 3;
+    private static final int           EMPTY_OBJECT      = 4;
+    private static final int           NONEMPTY_OBJECT   = 5;
+    private static final int           DANGLING_NAME     = 6;
+    private              Reader        mReader;
+    private              InputStream   mStream;
+    private              ByteBuffer    mSource;
+    private              char[]        mBuffer;
+    private              byte[]        mBytes;
+    private              int           mPos;
+    private              int           mLimit;
+    private              long          mBufferStart;
+    private              int           mLine             = 1;
+    private              long          mLineStart;
+    private              int[]         mStack            = new int[32];
+    private              char[]        mClosers          = new char[32];
+    private              int           mDepth            = 1;
+    private              JsonToken     mPeeked;
+    private              char          mPeekedQuote;
+    private              char          mPeekedCloser;
+    private              boolean       mPeekedBoolean;
+    private              boolean       mPeekedIntegral;
+    private              long          mPeekedLong;
+    private              char[]        mLiteral          = new char[32];
+    private              int           mLiteralLength;
+    private              boolean       mLiteralNonAscii;
+    private              StringBuilder mBuilder          = new StringBuilder();
+
+    /** @param reader The {@link Reader} to load JSON data from. */
+    public JsonReader(Reader reader) {
+        mReader = reader;
+        mBuffer = new char[BUFFER_SIZE];
+    }
+
+    /** @param stream The {@link InputStream} to load UTF-8 encoded JSON data from. */
+    public JsonReader(InputStream stream) {
+        mStream = stream;
+        mBytes = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * @param buffer The {@link ByteBuffer} to load UTF-8 encoded JSON data from, such as one
+     *               obtained from {@link java.nio.channels.FileChannel#map}. The data between its
+     *               position and limit is used. The buffer's position is not modified.
+     */
+    public JsonReader(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            // Heap buffers are used in place.
+            mBytes = buffer.array();
+            mPos = buffer.arrayOffset() + buffer.position();
+            mLimit = buffer.arrayOffset() + buffer.limit();
+            mBufferStart = -mPos;
+        } else {
+            mSource = buffer.duplicate();
+            mBytes = new byte[BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * @return The type of the next token, without consuming it. Once the top-level value has been
+     *         consumed, {@link JsonToken#END_DOCUMENT} is returned.
+     */
+    public JsonToken peek() throws IOException {
+        if (mPeeked == null) {
+            mPeeked = doPeek();
+        }
+        return mPeeked;
+    }
+
+    /** @return {@code true} if the current array or object has another element. */
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_ARRAY && token != JsonToken.END_OBJECT && token != JsonToken.END_DOCUMENT;
+    }
+
+    /** Consumes the start of an array. */
+    public void beginArray() throws IOException {
+        consume(JsonToken.BEGIN_ARRAY, "Expected the start of an array");
+        push(EMPTY_ARRAY, mPeekedCloser);
+    }
+
+    /** Consumes the end of an array. */
+    public void endArray() throws IOException {
+        consume(JsonToken.END_ARRAY, "Expected the end of an array");
+        mDepth--;
+    }
+
+    /** Consumes the start of an object. */
+    public void beginObject() throws IOException {
+        consume(JsonToken.BEGIN_OBJECT, "Expected the start of an object");
+        push(EMPTY_OBJECT, '}');
+    }
+
+    /** Consumes the end of an object. */
+    public void endObject() throws IOException {
+        consume(JsonToken.END_OBJECT, "Expected the end of an object");
+        mDepth--;
+    }
+
+    /** @return The key of the next entry within the current object. */
+    public String nextName() throws IOException {
+        consume(JsonToken.NAME, "Expected a name");
+        mStack[mDepth - 1] = DANGLING_NAME;
+        if (mPeekedQuote != 0) {
+            return readQuoted(mPeekedQuote);
+        }
+        // Unquoted keys are normalized the same way their values would be.
+        switch (classifyLiteral()) {
+        case BOOLEAN:
+            return mPeekedBoolean ? "true" : "false";
+        case NULL:
+            return "null";
+        case NUMBER:
+            return numberValue().toString();
+        default:
+            return literal();
+        }
+    }
+
+    /**
+     * @return The next string value. If the next token is a {@link JsonToken#NUMBER}, its text is
+     *         returned instead.
+     */
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+        if (token == JsonToken.NUMBER) {
+            mPeeked = null;
+            return literal();
+        }
+        consume(JsonToken.STRING, "Expected a string");
+        return mPeekedQuote != 0 ? readQuoted(mPeekedQuote) : literal();
+    }
+
+    /** @return The next boolean value. */
+    public boolean nextBoolean() throws IOException {
+        consume(JsonToken.BOOLEAN, "Expected a boolean");
+        return mPeekedBoolean;
+    }
+
+    /** Consumes the next {@code null} value. */
+    public void nextNull() throws IOException {
+        consume(JsonToken.NULL, "Expected null");
+    }
+
+    /**
+     * @return The next number, truncated to an int if necessary.
+     */
+    public int nextInt() throws IOException {
+        consume(JsonToken.NUMBER, "Expected a number");
+        return mPeekedIntegral ? (int) mPeekedLong : (int) parseDouble();
+    }
+
+    /**
+     * @return The next number, truncated to a long if necessary.
+     */
+    public long nextLong() throws IOException {
+        consume(JsonToken.NUMBER, "Expected a number");
+        return mPeekedIntegral ? mPeekedLong : (long) parseDouble();
+    }
+
+    /** @return The next number. */
+    public double nextDouble() throws IOException {
+        consume(JsonToken.NUMBER, "Expected a number");
+        return mPeekedIntegral ? mPeekedLong : parseDouble();
+    }
+
+    /**
+     * @return The next number, as an {@link Integer} if it fits, a {@link Long} if it is integral
+     *         but does not fit in an {@link Integer}, and a {@link Double} otherwise.
+     */
+    public Number nextNumber() throws IOException {
+        consume(JsonToken.NUMBER, "Expected a number");
+        return numberValue();
+    }
+
+    /**
+     * @return {@code true} if the next token is a {@link JsonToken#NUMBER} that
+     *         {@link #nextNumber()} would return as an {@link Integer} or {@link Long}.
+     */
+    boolean isIntegral() throws IOException {
+        return peek() == JsonToken.NUMBER && mPeekedIntegral;
+    }
+
+    /**
+     * Skips the next value, including all of its children if it is an array or object. If the next
+     * token is a {@link JsonToken#NAME}, only the name is skipped.
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+            case BEGIN_ARRAY:
+                beginArray();
+                depth++;
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                depth++;
+                break;
+            case END_ARRAY:
+                if (depth == 0) {
+                    throw syntaxError("Expected a value");
+                }
+                endArray();
+                depth--;
+                break;
+            case END_OBJECT:
+                if (depth == 0) {
+                    throw syntaxError("Expected a value");
+                }
+                endObject();
+                depth--;
+                break;
+            case NAME:
+                mStack[mDepth - 1] = DANGLING_NAME;
+                skipPeekedString();
+                break;
+            case STRING:
+                skipPeekedString();
+                break;
+            case END_DOCUMENT:
+                throw syntaxError("Expected a value");
+            default:
+                mPeeked = null;
+                break;
+            }
+        } while (depth > 0);
+    }
+
+    private void skipPeekedString() throws IOException {
+        if (mPeekedQuote != 0) {
+            skipQuoted(mPeekedQuote);
+        }
+        mPeeked = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mPeeked = null;
+        mDepth = 1;
+        mStack[0] = NONEMPTY_DOCUMENT;
+        if (mReader != null) {
+            mReader.close();
+        } else if (mStream != null) {
+            mStream.close();
+        }
+    }
+
+    private void consume(JsonToken token, String message) throws IOException {
+        if (peek() != token) {
+            throw syntaxError(message);
+        }
+        mPeeked = null;
+    }
+
+    private void push(int scope, char closer) {
+        if (mDepth == mStack.length) {
+            mStack = Arrays.copyOf(mStack, mDepth * 2);
+            mClosers = Arrays.copyOf(mClosers, mDepth * 2);
+        }
+        mStack[mDepth] = scope;
+        mClosers[mDepth++] = closer;
+    }
+
+    private JsonToken doPeek() throws IOException {
+        int top = mDepth - 1;
+        int c;
+        switch (mStack[top]) {
+        case EMPTY_DOCUMENT:
+            mStack[top] = NONEMPTY_DOCUMENT;
+            return peekValue();
+        case NONEMPTY_DOCUMENT:
+            return JsonToken.END_DOCUMENT;
+        case EMPTY_ARRAY:
+            mStack[top] = NONEMPTY_ARRAY;
+            if (peekNonWhitespace() == mClosers[top]) {
+                mPos++;
+                return JsonToken.END_ARRAY;
+            }
+            return peekElement();
+        case NONEMPTY_ARRAY:
+            c = peekNonWhitespace();
+            switch (c) {
+            case ';':
+            case ',':
+                mPos++;
+                if (peekNonWhitespace() == mClosers[top]) {
+                    mPos++;
+                    return JsonToken.END_ARRAY;
+                }
+                return peekElement();
+            case ']':
+            case ')':
+                if (c != mClosers[top]) {
+                    throw syntaxError("Expected a '" + mClosers[top] + "'");
+                }
+                mPos++;
+                return JsonToken.END_ARRAY;
+            default:
+                throw syntaxError("Expected a ',' or ']'");
+            }
+        case EMPTY_OBJECT:
+            mStack[top] = NONEMPTY_OBJECT;
+            c = peekNonWhitespace();
+            if (c == '}') {
+                mPos++;
+                return JsonToken.END_OBJECT;
+            }
+            return peekName(c);
+        case NONEMPTY_OBJECT:
+            switch (peekNonWhitespace()) {
+            case ';':
+            case ',':
+                mPos++;
+                c = peekNonWhitespace();
+                if (c == '}') {
+                    mPos++;
+                    return JsonToken.END_OBJECT;
+                }
+                return peekName(c);
+            case '}':
+                mPos++;
+                return JsonToken.END_OBJECT;
+            default:
+                throw syntaxError("Expected a ',' or '}'");
+            }
+        default: // DANGLING_NAME
+            c = peekNonWhitespace();
+            if (c == '=') {
+                mPos++;
+                if (peekChar() == '>') {
+                    mPos++;
+                }
+            } else if (c == ':') {
+                mPos++;
+            } else {
+                throw syntaxError("Expected a ':' after a key");
+            }
+            mStack[top] = NONEMPTY_OBJECT;
+            return peekValue();
+        }
+    }
+
+    private JsonToken peekName(int c) throws IOException {
+        switch (c) {
+        case 0:
+            throw syntaxError("JSON object text must end with '}'");
+        case '"':
+        case '\'':
+            mPos++;
+            mPeekedQuote = (char) c;
+            return JsonToken.NAME;
+        case '{':
+        case '[':
+        case '(':
+            throw syntaxError("Expected a name");
+        default:
+            readLiteral();
+            if (mLiteralLength == 0) {
+                throw syntaxError("Missing value");
+            }
+            mPeekedQuote = 0;
+            return JsonToken.NAME;
+        }
+    }
+
+    private JsonToken peekElement() throws IOException {
+        // A missing element, as in [1,,2], is treated as null.
+        return peekNonWhitespace() == ',' ? JsonToken.NULL : peekValue();
+    }
+
+    private JsonToken peekValue() throws IOException {
+        int c = peekNonWhitespace();
+        switch (c) {
+        case '"':
+        case '\'':
+            mPos++;
+            mPeekedQuote = (char) c;
+            return JsonToken.STRING;
+        case '{':
+            mPos++;
+            return JsonToken.BEGIN_OBJECT;
+        case '[':
+            mPos++;
+            mPeekedCloser = ']';
+            return JsonToken.BEGIN_ARRAY;
+        case '(':
+            mPos++;
+            mPeekedCloser = ')';
+            return JsonToken.BEGIN_ARRAY;
+        default:
+            readLiteral();
+            return classifyLiteral();
+        }
+    }
+
+    private int peekChar() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return 0;
+        }
+        return mBuffer != null ? mBuffer[mPos] : mBytes[mPos] & 0xFF;
+    }
+
+    private char readChar() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return 0;
+        }
+        return mBuffer != null ? mBuffer[mPos++] : (char) (mBytes[mPos++] & 0xFF);
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        char[]  chars = mBuffer;
+        byte[]  bytes = mBytes;
+        boolean cr    = false;
+        for (; ; ) {
+            if (mPos == mLimit && !fill()) {
+                return 0;
+            }
+            int c = chars != null ? chars[mPos] : bytes[mPos] & 0xFF;
+            if (c > ' ' || c == 0) {
+                return c;
+            }
+            mPos++;
+            // Line breaks can only occur between tokens, so this is the only place they need to be
+            // tracked.
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' || !cr) {
+                    mLine++;
+                }
+                mLineStart = mBufferStart + mPos;
+                cr = c == '\r';
+            } else {
+                cr = false;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        mBufferStart += mLimit;
+        mPos = 0;
+        mLimit = 0;
+        int count;
+        if (mReader != null) {
+            do {
+                count = mReader.read(mBuffer, 0, mBuffer.length);
+            } while (count == 0);
+        } else if (mStream != null) {
+            do {
+                count = mStream.read(mBytes, 0, mBytes.length);
+            } while (count == 0);
+        } else if (mSource != null && mSource.hasRemaining()) {
+            count = Math.min(mSource.remaining(), mBytes.length);
+            mSource.get(mBytes, 0, count);
+        } else {
+            count = -1;
+        }
+        if (count < 0) {
+            return false;
+        }
+        mLimit = count;
+        return true;
+    }
+
+    private void readLiteral() throws IOException {
+        char[] chars = mBuffer;
+        byte[] bytes = mBytes;
+        mLiteralLength = 0;
+        mLiteralNonAscii = false;
+        for (; ; ) {
+            if (mPos == mLimit && !fill()) {
+                break;
+            }
+            // In byte mode, each byte is held as a char until the literal is known to be a string.
+            char c = chars != null ? chars[mPos] : (char) (bytes[mPos] & 0xFF);
+            if (c < ' ' || isTerminator(c)) {
+                break;
+            }
+            if (c >= 0x80 && chars == null) {
+                mLiteralNonAscii = true;
+            }
+            if (mLiteralLength == mLiteral.length) {
+                mLiteral = Arrays.copyOf(mLiteral, mLiteralLength * 2);
+            }
+            mLiteral[mLiteralLength++] = c;
+            mPos++;
+        }
+        while (mLiteralLength > 0 && mLiteral[mLiteralLength - 1] == ' ') {
+            mLiteralLength--;
+        }
+    }
+
+    private static boolean isTerminator(char c) {
+        switch (c) {
+        case ',':
+        case ':':
+        case ']':
+        case '}':
+        case '/':
+        case '\\':
+        case '"':
+        case '[':
+        case '{':
+        case ';':
+        case '=':
+        case '#':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private String literal() {
+        if (mLiteralNonAscii) {
+            byte[] bytes = new byte[mLiteralLength];
+            for (int i = 0; i < mLiteralLength; i++) {
+                bytes[i] = (byte) mLiteral[i];
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new String(mLiteral, 0, mLiteralLength);
+    }
+
+    private boolean literalIs(String text) {
+        int length = text.length();
+        if (mLiteralLength != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = mLiteral[i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private JsonToken classifyLiteral() throws IOException {
+        if (mLiteralLength == 0) {
+            throw syntaxError("Missing value");
+        }
+        mPeekedQuote = 0;
+        if (literalIs("true")) {
+            mPeekedBoolean = true;
+            return JsonToken.BOOLEAN;
+        }
+        if (literalIs("false")) {
+            mPeekedBoolean = false;
+            return JsonToken.BOOLEAN;
+        }
+        if (literalIs("null")) {
+            return JsonToken.NULL;
+        }
+        char c = mLiteral[0];
+        if ((c >= '0' && c <= '9' || c == '.' || c == '-' || c == '+') && classifyNumber()) {
+            return JsonToken.NUMBER;
+        }
+        return JsonToken.STRING;
+    }
+
+    private boolean classifyNumber() {
+        if (mLiteralLength > 2 && mLiteral[0] == '0' && (mLiteral[1] == 'x' || mLiteral[1] == 'X') && parseHex()) {
+            return true;
+        }
+        for (int i = 0; i < mLiteralLength; i++) {
+            char c = mLiteral[i];
+            if (c == '.' || c == 'e' || c == 'E') {
+                mPeekedIntegral = false;
+                if (isSimpleDecimal()) {
+                    return true;
+                }
+                // Let the platform decide on the less common forms it accepts, such as 1.5f.
+                try {
+                    parseDouble();
+                    return true;
+                } catch (NumberFormatException exception) {
+                    return false;
+                }
+            }
+        }
+        mPeekedIntegral = true;
+        return parseLong();
+    }
+
+    private boolean parseHex() {
+        long value = 0;
+        for (int i = 2; i < mLiteralLength; i++) {
+            int digit = Character.digit(mLiteral[i], 16);
+            if (digit < 0) {
+                return false;
+            }
+            value = value << 4 | digit;
+            if (value > Integer.MAX_VALUE) {
+                return false;
+            }
+        }
+        mPeekedIntegral = true;
+        mPeekedLong = value;
+        return true;
+    }
+
+    private boolean parseLong() {
+        int     i        = 0;
+        boolean negative = false;
+        char    c        = mLiteral[0];
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            if (++i == mLiteralLength) {
+                return false;
+            }
+        }
+        // Accumulate negatively, as the magnitude of Long.MIN_VALUE is one more than that of
+        // Long.MAX_VALUE.
+        long limit    = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiMin = limit / 10;
+        long result   = 0;
+        while (i < mLiteralLength) {
+            int digit = mLiteral[i++] - '0';
+            if (digit < 0 || digit > 9 || result < multiMin) {
+                return false;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return false;
+            }
+            result -= digit;
+        }
+        mPeekedLong = negative ? result : -result;
+        return true;
+    }
+
+    private boolean isSimpleDecimal() {
+        int i = 0;
+        if (mLiteral[0] == '-' || mLiteral[0] == '+') {
+            i++;
+        }
+        int digits = 0;
+        while (i < mLiteralLength && mLiteral[i] >= '0' && mLiteral[i] <= '9') {
+            i++;
+            digits++;
+        }
+        if (i < mLiteralLength && mLiteral[i] == '.') {
+            i++;
+            while (i < mLiteralLength && mLiteral[i] >= '0' && mLiteral[i] <= '9') {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < mLiteralLength && (mLiteral[i] == 'e' || mLiteral[i] == 'E')) {
+            if (++i < mLiteralLength && (mLiteral[i] == '-' || mLiteral[i] == '+')) {
+                i++;
+            }
+            int start = i;
+            while (i < mLiteralLength && mLiteral[i] >= '0' && mLiteral[i] <= '9') {
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == mLiteralLength;
+    }
+
+    private double parseDouble() {
+        return Double.parseDouble(literal());
+    }
+
+    private Number numberValue() {
+        if (mPeekedIntegral) {
+            if (mPeekedLong == (int) mPeekedLong) {
+                return Integer.valueOf((int) mPeekedLong);
+            }
+            return Long.valueOf(mPeekedLong);
+        }
+        return Double.valueOf(parseDouble());
+    }
+
+    private String readQuoted(char quote) throws IOException {
+        if (mBytes != null) {
+            return readQuotedBytes(quote);
+        }
+        StringBuilder buffer = null;
+        for (; ; ) {
+            int start = mPos;
+            while (mPos < mLimit) {
+                char c = mBuffer[mPos++];
+                if (c == quote) {
+                    if (buffer == null) {
+                        return new String(mBuffer, start, mPos - start - 1);
+                    }
+                    buffer.append(mBuffer, start, mPos - start - 1);
+                    return buffer.toString();
+                }
+                if (c == '\\') {
+                    if (buffer == null) {
+                        buffer = mBuilder;
+                        buffer.setLength(0);
+                    }
+                    buffer.append(mBuffer, start, mPos - start - 1);
+                    buffer.append(readEscape());
+                    start = mPos;
+                } else if (c == '\n' || c == '\r' || c == 0) {
+                    mPos--;
+                    throw syntaxError("Unterminated string");
+                }
+            }
+            if (buffer == null) {
+                buffer = mBuilder;
+                buffer.setLength(0);
+            }
+            buffer.append(mBuffer, start, mPos - start);
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private String readQuotedBytes(char quote) throws IOException {
+        // Strings that have no escapes and lie entirely within the window are decoded in one step.
+        byte[] bytes = mBytes;
+        int    start = mPos;
+        for (int i = start; i < mLimit; i++) {
+            int b = bytes[i];
+            if (b == quote) {
+                mPos = i + 1;
+                return new String(bytes, start, i - start, StandardCharsets.UTF_8);
+            }
+            if (b == '\\' || b == '\n' || b == '\r' || b == 0) {
+                break;
+            }
+        }
+        StringBuilder buffer = mBuilder;
+        buffer.setLength(0);
+        for (; ; ) {
+            if (mPos == mLimit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            int b = bytes[mPos++];
+            if (b == quote) {
+                return buffer.toString();
+            }
+            switch (b) {
+            case '\\':
+                buffer.append(readEscape());
+                break;
+            case 0:
+            case '\n':
+            case '\r':
+                mPos--;
+                throw syntaxError("Unterminated string");
+            default:
+                if (b >= 0) {
+                    buffer.append((char) b);
+                } else {
+                    readUtf8(buffer, b & 0xFF);
+                }
+                break;
+            }
+        }
+    }
+
+    private void readUtf8(StringBuilder buffer, int lead) throws IOException {
+        int count;
+        int codePoint;
+        int minimum;
+        if ((lead & 0xE0) == 0xC0) {
+            count = 1;
+            codePoint = lead & 0x1F;
+            minimum = 0x80;
+        } else if ((lead & 0xF0) == 0xE0) {
+            count = 2;
+            codePoint = lead & 0x0F;
+            minimum = 0x800;
+        } else if ((lead & 0xF8) == 0xF0) {
+            count = 3;
+            codePoint = lead & 0x07;
+            minimum = 0x10000;
+        } else {
+            buffer.append('\uFFFD');
+            return;
+        }
+        int length = count + 1;
+        while (count-- > 0) {
+            if (mPos == mLimit && !fill() || (mBytes[mPos] & 0xC0) != 0x80) {
+                // A truncated sequence is replaced, just as InputStreamReader would do.
+                buffer.append('\uFFFD');
+                return;
+            }
+            codePoint = codePoint << 6 | mBytes[mPos++] & 0x3F;
+        }
+        if (codePoint < minimum || codePoint > Character.MAX_CODE_POINT || codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            // Let the platform decide how many replacement characters an overlong or otherwise
+            // invalid sequence becomes, so the result matches InputStreamReader.
+            byte[] sequence = new byte[length];
+            for (int i = length - 1; i > 0; i--) {
+                sequence[i] = (byte) (0x80 | codePoint & 0x3F);
+                codePoint >>>= 6;
+            }
+            sequence[0] = (byte) lead;
+            buffer.append(new String(sequence, StandardCharsets.UTF_8));
+        } else {
+            buffer.appendCodePoint(codePoint);
+        }
+    }
+
+    private void skipQuoted(char quote) throws IOException {
+        // The bytes of a multi-byte UTF-8 sequence never match any of the ASCII characters being
+        // looked for here, so nothing needs to be decoded.
+        char[] chars = mBuffer;
+        byte[] bytes = mBytes;
+        for (; ; ) {
+            while (mPos < mLimit) {
+                int c = chars != null ? chars[mPos++] : bytes[mPos++];
+                if (c == quote) {
+                    return;
+                }
+                if (c == '\\') {
+                    readEscape();
+                } else if (c == '\n' || c == '\r' || c == 0) {
+                    mPos--;
+                    throw syntaxError("Unterminated string");
+                }
+            }
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        char c = readChar();
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 't':
+            return '\t';
+        case 'n':
+            return '\n';
+        case 'f':
+            return '\f';
+        case 'r':
+            return '\r';
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(readChar(), 16);
+                if (digit < 0) {
+                    throw syntaxError("Illegal escape.");
+                }
+                value = value << 4 | digit;
+            }
+            return (char) value;
+        case '"':
+        case '\'':
+        case '\\':
+        case '/':
+            return c;
+        default:
+            throw syntaxError("Illegal escape.");
+        }
+    }
+
+    IOException syntaxError(String message) {
+        long index = mBufferStart + mPos;
+        return new IOException(message + " at " + index + " [character " + (index - mLineStart + 1) + " line " + mLine + "]");
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.json;
+
+/** The kinds of tokens a {@link JsonReader} can return. */
+public enum JsonToken {
+    /** The start of a {@link JsonMap}. */
+    BEGIN_OBJECT,
+    /** The end of a {@link JsonMap}. */
+    END_OBJECT,
+    /** The start of a {@link JsonArray}. */
+    BEGIN_ARRAY,
+    /** The end of a {@link JsonArray}. */
+    END_ARRAY,
+    /** The key of an entry within a {@link JsonMap}. */
+    NAME,
+    /** A quoted string or an unquoted value that is not otherwise recognized. */
+    STRING,
+    /** A number. */
+    NUMBER,
+    /** A {@code true} or {@code false} value. */
+    BOOLEAN,
+    /** A {@code null} value. */
+    NULL,
+    /** The end of the top-level value. */
+    END_DOCUMENT
+}
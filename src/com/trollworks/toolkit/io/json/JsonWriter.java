@@ -11,200 +11,359 @@
 
 package com.trollworks.toolkit.io.json;
 
+import com.trollworks.toolkit.utility.Geometry;
+
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.FilterWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 
+/**
+ * Writes JSON data directly to a {@link Writer}, without building a tree of {@link JsonMap}s and
+ * {@link JsonArray}s first. The output matches what the equivalent {@link JsonCollection} would
+ * produce.
+ */
 public class JsonWriter extends FilterWriter {
+    private boolean mCompact;
     private boolean mNeedComma;
+    private boolean mAfterKey;
+    private boolean mEmpty;
+    private int     mDepth;
 
+    /** @param writer The {@link Writer} to write compact JSON data to. */
     public JsonWriter(Writer writer) {
+        this(writer, true);
+    }
+
+    /**
+     * @param writer  The {@link Writer} to write JSON data to.
+     * @param compact {@code false} to place each entry on its own line, indented with tabs.
+     */
+    public JsonWriter(Writer writer, boolean compact) {
         super(writer);
+        mCompact = compact;
     }
 
     public void key(String key) throws IOException {
-        if (mNeedComma) {
-            write(',');
-            mNeedComma = false;
-        }
+        beforeEntry();
         write(Json.quote(key));
-        write(':');
+        if (mCompact) {
+            write(':');
+        } else {
+            write(" : ");
+        }
+        mAfterKey = true;
     }
 
     public void startObject() throws IOException {
-        if (mNeedComma) {
-            write(',');
-            mNeedComma = false;
-        }
+        beforeValue();
         write('{');
+        mDepth++;
+        mEmpty = true;
     }
 
     public void endObject() throws IOException {
+        endCollection();
         write('}');
-        mNeedComma = true;
     }
 
     public void startArray() throws IOException {
-        if (mNeedComma) {
-            write(',');
-            mNeedComma = false;
-        }
+        beforeValue();
         write('[');
+        mDepth++;
+        mEmpty = true;
     }
 
     public void endArray() throws IOException {
+        endCollection();
         write(']');
-        mNeedComma = true;
     }
 
     public void value(String value) throws IOException {
-        commaIfNeeded();
+        beforeValue();
         write(Json.quote(value));
+        mNeedComma = true;
     }
 
     public void value(Number value) throws IOException {
-        commaIfNeeded();
+        beforeValue();
         write(Json.toString(value));
+        mNeedComma = true;
     }
 
     public void value(boolean value) throws IOException {
-        commaIfNeeded();
+        beforeValue();
         write(value ? "true" : "false");
+        mNeedComma = true;
     }
 
     public void value(short value) throws IOException {
-        commaIfNeeded();
-        write(Short.toString(value));
+        value((long) value);
     }
 
     public void value(int value) throws IOException {
-        commaIfNeeded();
-        write(Integer.toString(value));
+        value((long) value);
     }
 
     public void value(long value) throws IOException {
-        commaIfNeeded();
+        beforeValue();
         write(Long.toString(value));
+        mNeedComma = true;
     }
 
     public void value(float value) throws IOException {
-        value(Float.valueOf(value));
+        beforeValue();
+        writeDecimal(Float.toString(value));
+        mNeedComma = true;
     }
 
     public void value(double value) throws IOException {
-        value(Double.valueOf(value));
+        beforeValue();
+        writeDecimal(Double.toString(value));
+        mNeedComma = true;
+    }
+
+    /**
+     * Writes an arbitrary value, streaming out the same data that storing it in a {@link
+     * JsonCollection} would produce. Lists, arrays, maps and objects with {@link
+     * com.trollworks.toolkit.annotation.JsonKey} annotations are written element by element.
+     *
+     * @param value The value to write.
+     */
+    public void value(Object value) throws IOException {
+        if (JsonNull.INSTANCE.equals(value)) {
+            beforeValue();
+            write("null");
+            mNeedComma = true;
+        } else if (value instanceof String) {
+            value((String) value);
+        } else if (value instanceof Boolean) {
+            value(((Boolean) value).booleanValue());
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long) {
+            value(((Number) value).longValue());
+        } else if (value instanceof Float) {
+            value(((Float) value).floatValue());
+        } else if (value instanceof Double) {
+            value(((Double) value).doubleValue());
+        } else if (value instanceof Character) {
+            value(value.toString());
+        } else if (value instanceof JsonCollection) {
+            beforeValue();
+            write(((JsonCollection) value).appendTo(new StringBuilder(), mCompact, mDepth).toString());
+            mNeedComma = true;
+        } else if (value instanceof List) {
+            startArray();
+            for (Object one : (List<?>) value) {
+                value(one);
+            }
+            endArray();
+        } else if (value.getClass().isArray()) {
+            arrayValue(value);
+        } else if (value instanceof Map) {
+            // Keys are written in sorted order, just as JsonMap does.
+            Map<String, Object> map = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(entry.getKey().toString(), entry.getValue());
+            }
+            startObject();
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                key(entry.getKey());
+                value(entry.getValue());
+            }
+            endObject();
+        } else if (value instanceof Point) {
+            value(Geometry.toString((Point) value));
+        } else if (value instanceof Rectangle) {
+            value(Geometry.toString((Rectangle) value));
+        } else {
+            JsonBinding binding = JsonBinding.get(value.getClass());
+            if (binding.isBound()) {
+                binding.save(value, this);
+            } else {
+                value(value.toString());
+            }
+        }
+    }
+
+    private void arrayValue(Object array) throws IOException {
+        startArray();
+        if (array instanceof boolean[]) {
+            for (boolean one : (boolean[]) array) {
+                value(one);
+            }
+        } else if (array instanceof byte[]) {
+            for (byte one : (byte[]) array) {
+                value(one);
+            }
+        } else if (array instanceof char[]) {
+            for (char one : (char[]) array) {
+                value(String.valueOf(one));
+            }
+        } else if (array instanceof short[]) {
+            for (short one : (short[]) array) {
+                value(one);
+            }
+        } else if (array instanceof int[]) {
+            for (int one : (int[]) array) {
+                value(one);
+            }
+        } else if (array instanceof long[]) {
+            for (long one : (long[]) array) {
+                value(one);
+            }
+        } else if (array instanceof float[]) {
+            for (float one : (float[]) array) {
+                value(one);
+            }
+        } else if (array instanceof double[]) {
+            for (double one : (double[]) array) {
+                value(one);
+            }
+        } else {
+            for (Object one : (Object[]) array) {
+                value(one);
+            }
+        }
+        endArray();
     }
 
     public void keyValue(String key, String value) throws IOException {
         key(key);
-        write(Json.quote(value));
-        mNeedComma = true;
+        value(value);
     }
 
     public void keyValueNot(String key, String value, String not) throws IOException {
         if (!Objects.equals(value, not)) {
-            key(key);
-            write(Json.quote(value));
-            mNeedComma = true;
+            keyValue(key, value);
         }
     }
 
     public void keyValue(String key, Number value) throws IOException {
         key(key);
-        write(Json.toString(value));
-        mNeedComma = true;
+        value(value);
     }
 
     public void keyValueNot(String key, Number value, Number not) throws IOException {
         if (!Objects.equals(value, not)) {
-            key(key);
-            write(Json.toString(value));
-            mNeedComma = true;
+            keyValue(key, value);
         }
     }
 
     public void keyValue(String key, boolean value) throws IOException {
         key(key);
-        write(value ? "true" : "false");
-        mNeedComma = true;
+        value(value);
     }
 
     public void keyValueNot(String key, boolean value, boolean not) throws IOException {
         if (value != not) {
-            key(key);
-            write(value ? "true" : "false");
-            mNeedComma = true;
+            keyValue(key, value);
         }
     }
 
     public void keyValue(String key, short value) throws IOException {
         key(key);
-        write(Short.toString(value));
-        mNeedComma = true;
+        value(value);
     }
 
     public void keyValueNot(String key, short value, short not) throws IOException {
         if (value != not) {
-            key(key);
-            write(Short.toString(value));
-            mNeedComma = true;
+            keyValue(key, value);
         }
     }
 
     public void keyValue(String key, int value) throws IOException {
         key(key);
-        write(Integer.toString(value));
-        mNeedComma = true;
+        value(value);
     }
 
     public void keyValueNot(String key, int value, int not) throws IOException {
         if (value != not) {
-            key(key);
-            write(Integer.toString(value));
-            mNeedComma = true;
+            keyValue(key, value);
         }
     }
 
     public void keyValue(String key, long value) throws IOException {
         key(key);
-        write(Long.toString(value));
-        mNeedComma = true;
+        value(value);
     }
 
     public void keyValueNot(String key, long value, long not) throws IOException {
         if (value != not) {
-            key(key);
-            write(Long.toString(value));
-            mNeedComma = true;
+            keyValue(key, value);
         }
     }
 
     public void keyValue(String key, float value) throws IOException {
-        keyValue(key, Float.valueOf(value));
+        key(key);
+        value(value);
     }
 
     public void keyValueNot(String key, float value, float not) throws IOException {
         if (value != not) {
-            keyValue(key, Float.valueOf(value));
+            keyValue(key, value);
         }
     }
 
     public void keyValue(String key, double value) throws IOException {
-        keyValue(key, Double.valueOf(value));
+        key(key);
+        value(value);
     }
 
     public void keyValueNot(String key, double value, double not) throws IOException {
         if (value != not) {
-            keyValue(key, Double.valueOf(value));
+            keyValue(key, value);
         }
     }
 
-    private void commaIfNeeded() throws IOException {
+    private void beforeEntry() throws IOException {
         if (mNeedComma) {
             write(',');
+            mNeedComma = false;
+        }
+        if (!mCompact && mDepth > 0) {
+            write('\n');
+            JsonCollection.indent(this, mDepth);
+        }
+        mEmpty = false;
+    }
+
+    private void beforeValue() throws IOException {
+        if (mAfterKey) {
+            mAfterKey = false;
         } else {
-            mNeedComma = true;
+            beforeEntry();
+        }
+    }
+
+    private void endCollection() throws IOException {
+        mDepth--;
+        if (!mCompact && !mEmpty) {
+            write('\n');
+            JsonCollection.indent(this, mDepth);
+        }
+        mEmpty = false;
+        mNeedComma = true;
+    }
+
+    /**
+     * Writes a decimal number, trimming trailing zeros the same way {@link Json#toString(Object)}
+     * does.
+     */
+    private void writeDecimal(String str) throws IOException {
+        int end = str.length();
+        if (str.indexOf('.') > 0 && str.indexOf('e') < 0 && str.indexOf('E') < 0) {
+            while (str.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (str.charAt(end - 1) == '.') {
+                end--;
+            }
         }
+        write(str, 0, end);
     }
 }
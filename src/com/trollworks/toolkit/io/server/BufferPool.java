@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct {@link ByteBuffer}s, grouped into power-of-two size classes. Buffers are
+ * borrowed with {@link #acquire(int)} and must be handed back with {@link #release(ByteBuffer)}
+ * once the caller is done with them. Requests larger than {@link #MAXIMUM_SIZE} are satisfied with
+ * a plain heap buffer that is never retained.
+ */
+public class BufferPool {
+    /** The smallest size class. */
+    public static final  int         MINIMUM_SIZE     = 1024;
+    /** The largest size class. */
+    public static final  int         MAXIMUM_SIZE     = 64 * 1024;
+    private static final int         MINIMUM_SHIFT    = Integer.numberOfTrailingZeros(MINIMUM_SIZE);
+    private static final int         DEFAULT_RETAINED = 1024;
+    private              SizeClass[] mClasses;
+    private              AtomicLong  mHits            = new AtomicLong();
+    private              AtomicLong  mMisses          = new AtomicLong();
+    private              AtomicLong  mBytesInUse      = new AtomicLong();
+
+    /** Creates a new {@link BufferPool} that retains up to 1024 free buffers per size class. */
+    public BufferPool() {
+        this(DEFAULT_RETAINED);
+    }
+
+    /**
+     * @param maximumRetainedPerClass The maximum number of free buffers to hold on to for each size
+     *                                class. Buffers released beyond this are left for the garbage
+     *                                collector.
+     */
+    public BufferPool(int maximumRetainedPerClass) {
+        int count = Integer.numberOfTrailingZeros(MAXIMUM_SIZE) - MINIMUM_SHIFT + 1;
+        mClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            mClasses[i] = new SizeClass(MINIMUM_SIZE << i, maximumRetainedPerClass);
+        }
+    }
+
+    private static int classIndex(int size) {
+        if (size <= MINIMUM_SIZE) {
+            return 0;
+        }
+        return Integer.SIZE - Integer.numberOfLeadingZeros(size - 1) - MINIMUM_SHIFT;
+    }
+
+    /**
+     * @param size The minimum capacity required.
+     * @return A cleared buffer with at least the requested capacity. Its limit will be set to its
+     *         capacity, which may be larger than what was requested.
+     */
+    public final ByteBuffer acquire(int size) {
+        if (size > MAXIMUM_SIZE) {
+            mMisses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        SizeClass  sizeClass = mClasses[classIndex(size)];
+        ByteBuffer buffer    = sizeClass.mFree.poll();
+        if (buffer != null) {
+            sizeClass.mRetained.decrementAndGet();
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(sizeClass.mSize);
+        }
+        mBytesInUse.addAndGet(sizeClass.mSize);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer previously obtained from {@link #acquire(int)} to the pool. The caller must
+     * not touch the buffer after this call.
+     *
+     * @param buffer The buffer to release. May be {@code null}.
+     */
+    public final void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity < MINIMUM_SIZE || capacity > MAXIMUM_SIZE || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        SizeClass sizeClass = mClasses[classIndex(capacity)];
+        mBytesInUse.addAndGet(-capacity);
+        if (sizeClass.mRetained.incrementAndGet() <= sizeClass.mMaximumRetained) {
+            buffer.clear();
+            sizeClass.mFree.offer(buffer);
+        } else {
+            sizeClass.mRetained.decrementAndGet();
+        }
+    }
+
+    /** @return The number of times a request was satisfied by a previously released buffer. */
+    public final long getHits() {
+        return mHits.get();
+    }
+
+    /** @return The number of times a request required a new buffer to be allocated. */
+    public final long getMisses() {
+        return mMisses.get();
+    }
+
+    /** @return The number of pooled bytes currently checked out of this {@link BufferPool}. */
+    public final long getBytesInUse() {
+        return mBytesInUse.get();
+    }
+
+    /** @return The number of bytes sitting idle in this {@link BufferPool}. */
+    public final long getBytesRetained() {
+        long total = 0;
+        for (SizeClass sizeClass : mClasses) {
+            total += (long) sizeClass.mRetained.get() * sizeClass.mSize;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool [hits=" + getHits() + ", misses=" + getMisses() + ", inUse=" + getBytesInUse() + ", retained=" + getBytesRetained() + "]";
+    }
+
+    private static class SizeClass {
+        final int                               mSize;
+        final int                               mMaximumRetained;
+        final ConcurrentLinkedQueue<ByteBuffer> mFree     = new ConcurrentLinkedQueue<>();
+        final AtomicInteger                     mRetained = new AtomicInteger();
+
+        SizeClass(int size, int maximumRetained) {
+            mSize = size;
+            mMaximumRetained = maximumRetained;
+        }
+    }
+}
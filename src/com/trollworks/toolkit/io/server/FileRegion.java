@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A portion of a file waiting in a {@link Session}'s out-bound queue. It is streamed to the socket
+ * with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the file contents never
+ * pass through the Java heap.
+ */
+final class FileRegion {
+    private FileChannel mChannel;
+    private long        mPosition;
+    private long        mRemaining;
+
+    /**
+     * @param channel  The {@link FileChannel} to read from. It will be closed once the region has
+     *                 been fully sent or discarded.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    FileRegion(FileChannel channel, long position, long count) {
+        mChannel = channel;
+        mPosition = position;
+        mRemaining = count;
+    }
+
+    /** @return {@code true} if every byte of the region has been sent. */
+    boolean isComplete() {
+        return mRemaining == 0;
+    }
+
+    /**
+     * Sends as much of the region as the target will currently accept.
+     *
+     * @param target The channel to write to.
+     * @return The number of bytes sent.
+     */
+    long transferTo(WritableByteChannel target) throws IOException {
+        long amount = mChannel.transferTo(mPosition, mRemaining, target);
+        if (amount == 0 && mPosition >= mChannel.size()) {
+            throw new EOFException("File was truncated while being sent");
+        }
+        mPosition += amount;
+        mRemaining -= amount;
+        return amount;
+    }
+
+    /** Releases the underlying file. */
+    void close() {
+        try {
+            mChannel.close();
+        } catch (IOException exception) {
+            Log.error(exception);
+        }
+    }
+}
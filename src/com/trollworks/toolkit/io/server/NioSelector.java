@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single reactor loop within a {@link NioServer}. Each {@link Session} is pinned to exactly one
+ * {@link NioSelector} for its lifetime. Out-bound data is held in each {@link Session}'s own
+ * lock-free queue; this selector is only told when a queue goes from empty to non-empty, at which
+ * point it starts watching for writability and drains the queue with gathering writes and file
+ * transfers. Likewise, reading from a channel is paused while its {@link Session} has more input
+ * waiting than it can process, so a slow consumer pushes back on the remote end via TCP flow
+ * control rather than by growing memory without bound.
+ */
+final class NioSelector implements Runnable {
+    private static final int                            MAXIMUM_GATHER        = 64;
+    private              NioServer                      mServer;
+    private              Selector                       mSelector;
+    private              Thread                         mThread;
+    private              ConcurrentLinkedQueue<Session> mPendingRegistrations = new ConcurrentLinkedQueue<>();
+    private              ConcurrentLinkedQueue<Session> mPendingInterest      = new ConcurrentLinkedQueue<>();
+    private              ByteBuffer[]                   mGather               = new ByteBuffer[MAXIMUM_GATHER];
+
+    /** @param server The {@link NioServer} this selector belongs to. */
+    NioSelector(NioServer server) throws IOException {
+        mServer = server;
+        mSelector = SelectorProvider.provider().openSelector();
+    }
+
+    /** @return The underlying {@link Selector}. */
+    Selector getSelector() {
+        return mSelector;
+    }
+
+    /** Closes the underlying {@link Selector}, which will cause {@link #run()} to return. */
+    void close() {
+        try {
+            mSelector.close();
+        } catch (IOException exception) {
+            Log.error(exception);
+        }
+    }
+
+    /**
+     * Starts watching the specified {@link Session}'s channel for input.
+     *
+     * @param session The {@link Session} to register.
+     */
+    void register(Session session) throws IOException {
+        if (Thread.currentThread() == mThread) {
+            registerNow(session);
+        } else {
+            mPendingRegistrations.add(session);
+            mSelector.wakeup();
+        }
+    }
+
+    @SuppressWarnings("resource")
+    private void registerNow(Session session) throws IOException {
+        session.getChannel().register(mSelector, getInterestOps(session), session);
+    }
+
+    private static int getInterestOps(Session session) {
+        int ops = session.isInputSuspended() ? 0 : SelectionKey.OP_READ;
+        if (session.hasPendingOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    /**
+     * Asks that the operations watched for on the specified {@link Session}'s channel be brought
+     * up to date with its current state. Called by the {@link Session} when its out-bound queue
+     * transitions from empty to non-empty and when suspended input may be resumed.
+     *
+     * @param session The {@link Session} whose state has changed.
+     */
+    void updateInterest(Session session) {
+        mPendingInterest.add(session);
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        mThread = Thread.currentThread();
+        while (true) {
+            try {
+                // Pick up any newly assigned sessions
+                Session session;
+                while ((session = mPendingRegistrations.poll()) != null) {
+                    try {
+                        registerNow(session);
+                    } catch (Exception exception) {
+                        session.requestClose(true);
+                    }
+                }
+
+                // Adjust what we're waiting on
+                Selector selector = mSelector;
+                while ((session = mPendingInterest.poll()) != null) {
+                    try {
+                        session.getChannel().keyFor(selector).interestOps(getInterestOps(session));
+                    } catch (Exception exception) {
+                        // Ignore
+                    }
+                }
+
+                // Wait for some work
+                selector.select();
+
+                // Handle the work
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        if (key.isAcceptable()) {
+                            mServer.accept(key);
+                        } else {
+                            if (key.isReadable()) {
+                                mServer.read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    }
+                }
+            } catch (CancelledKeyException cke) {
+                // Ignore
+            } catch (ClosedSelectorException cse) {
+                break;
+            } catch (Throwable throwable) {
+                Log.error(throwable);
+            }
+        }
+    }
+
+    private void write(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        try {
+            session.writeOutput(mGather);
+        } catch (IOException ioe) {
+            session.discardOutput();
+        }
+        if (!session.completeOutput()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -18,54 +18,163 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
-import java.nio.channels.CancelledKeyException;
-import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLContext;
 
-/** The core non-blocking i/o server. */
+/**
+ * The core non-blocking i/o server.
+ * <p>
+ * By default, a single selector thread handles accepting connections as well as all reads and
+ * writes. Alternatively, a number of dedicated i/o selector threads may be requested, in which case
+ * this thread only accepts connections and then hands each new {@link Session} off to one of the
+ * i/o selectors, where it remains for its lifetime.
+ * <p>
+ * Received data is processed by a fixed pool of worker threads by default. On a JDK that provides
+ * virtual threads, each {@link Session}'s processing may instead be run on virtual threads, so that
+ * handlers which block, e.g. on a database call, tie up only their own connection. Either way, a
+ * given {@link Session}'s requests are processed one at a time, in the order they arrived.
+ */
 public class NioServer extends Thread {
-    private Selector                                   mSelector;
-    private List<ChangeRequest>                        mPendingChanges   = new LinkedList<>();
-    private Map<SocketChannel, LinkedList<ByteBuffer>> mPendingWriteData = new HashMap<>();
-    private ByteBuffer                                 mReadBuffer       = ByteBuffer.allocate(8192);
-    private LinkedBlockingQueue<Session>               mQueue            = new LinkedBlockingQueue<>();
-    private List<NioWorker>                            mWorkers          = new ArrayList<>();
-    private Set<Session>                               mSessions         = new HashSet<>();
-    private SSLContext                                 mSSLContext;
+    private static final int                          READ_BUFFER_SIZE = 8192;
+    private              NioSelector                  mAcceptor;
+    private              List<NioSelector>            mSelectors       = new ArrayList<>();
+    private              List<Thread>                 mSelectorThreads = new ArrayList<>();
+    private              AtomicInteger                mNextSelector    = new AtomicInteger();
+    private              BufferPool                   mBufferPool      = new BufferPool();
+    private              LinkedBlockingQueue<Session> mQueue           = new LinkedBlockingQueue<>();
+    private              List<NioWorker>              mWorkers         = new ArrayList<>();
+    private              ExecutorService              mVirtualExecutor;
+    private              Set<Session>                 mSessions        = new HashSet<>();
+    private              SSLContext                   mSSLContext;
+    private              SSLStatistics                mSSLStatistics   = new SSLStatistics();
+    private              ThreadPoolExecutor           mHandshakeExecutor;
+    private              TimingWheel                  mTimingWheel     = new TimingWheel();
+    private              Thread                       mTimingWheelThread;
 
     /**
+     * Creates a server that uses a single selector thread for accepting connections and for all
+     * i/o.
+     *
      * @param sslContext The {@link SSLContext} to use. Typically created by calling {@link
      *                   SSLSupport#createContext(URL, String)}.
      */
     public NioServer(SSLContext sslContext) throws IOException {
+        this(sslContext, 0);
+    }
+
+    /**
+     * @param sslContext    The {@link SSLContext} to use. Typically created by calling {@link
+     *                      SSLSupport#createContext(URL, String)}.
+     * @param selectorCount The number of dedicated i/o selector threads to use. Pass in {@code 0}
+     *                      to have this server's own thread perform all i/o, or something like
+     *                      {@link Runtime#availableProcessors()} for busy servers.
+     */
+    public NioServer(SSLContext sslContext, int selectorCount) throws IOException {
+        this(sslContext, selectorCount, false);
+    }
+
+    /**
+     * @param sslContext        The {@link SSLContext} to use. Typically created by calling {@link
+     *                          SSLSupport#createContext(URL, String)}.
+     * @param selectorCount     The number of dedicated i/o selector threads to use. Pass in {@code
+     *                          0} to have this server's own thread perform all i/o, or something
+     *                          like {@link Runtime#availableProcessors()} for busy servers.
+     * @param useVirtualThreads Pass in {@code true} to process requests on virtual threads rather
+     *                          than a fixed pool of worker threads. Ignored, with a warning, if the
+     *                          JDK does not support virtual threads. See {@link
+     *                          #isVirtualThreadSupported()}.
+     */
+    public NioServer(SSLContext sslContext, int selectorCount, boolean useVirtualThreads) throws IOException {
         setName(getClass().getSimpleName());
         setDaemon(true);
         mSSLContext = sslContext;
-        mSelector = SelectorProvider.provider().openSelector();
-        int count = Runtime.getRuntime().availableProcessors() + 1;
-        for (int i = 0; i < count; i++) {
-            NioWorker worker = new NioWorker(mQueue);
-            worker.start();
-            mWorkers.add(worker);
+        if (sslContext != null) {
+            // Threads are only kept around while handshakes are actually taking place
+            AtomicInteger nextId     = new AtomicInteger();
+            int           processors = Runtime.getRuntime().availableProcessors();
+            mHandshakeExecutor = new ThreadPoolExecutor(processors, processors, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "SSLHandshake " + nextId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            mHandshakeExecutor.allowCoreThreadTimeOut(true);
+        }
+        mAcceptor = new NioSelector(this);
+        for (int i = 1; i <= selectorCount; i++) {
+            NioSelector selector = new NioSelector(this);
+            Thread      thread   = new Thread(selector, "NioSelector " + i);
+            thread.setDaemon(true);
+            thread.start();
+            mSelectors.add(selector);
+            mSelectorThreads.add(thread);
+        }
+        if (useVirtualThreads) {
+            mVirtualExecutor = createVirtualThreadExecutor();
+            if (mVirtualExecutor == null) {
+                Log.warn("Virtual threads are not supported by this JDK; using a fixed pool of worker threads instead");
+            }
+        }
+        if (mVirtualExecutor == null) {
+            int count = Runtime.getRuntime().availableProcessors() + 1;
+            for (int i = 0; i < count; i++) {
+                NioWorker worker = new NioWorker(mQueue);
+                worker.start();
+                mWorkers.add(worker);
+            }
+        }
+        mTimingWheelThread = new Thread(mTimingWheel, "TimingWheel");
+        mTimingWheelThread.setDaemon(true);
+        mTimingWheelThread.start();
+    }
+
+    /** @return {@code true} if the running JDK is able to provide virtual threads. */
+    public static final boolean isVirtualThreadSupported() {
+        ExecutorService executor = createVirtualThreadExecutor();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * Virtual threads are looked up reflectively, since they aren't available in the JDK this code
+     * is compiled against.
+     *
+     * @return An {@link ExecutorService} that runs each task on a new virtual thread, or {@code
+     *         null} if virtual threads aren't available.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object   builder      = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "NioVirtualWorker ", Long.valueOf(1));
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (Exception exception) {
+            // Either not present at all, or present only as a preview feature that isn't enabled
+            return null;
         }
-        TimeoutMonitor timeoutMonitor = new TimeoutMonitor(TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES));
-        timeoutMonitor.start();
+    }
+
+    /** @return {@code true} if requests are being processed on virtual threads. */
+    public final boolean isUsingVirtualThreads() {
+        return mVirtualExecutor != null;
     }
 
     /** @return The {@link SSLContext} to use with this server. */
@@ -73,6 +182,29 @@ public class NioServer extends Thread {
         return mSSLContext;
     }
 
+    /** @return The {@link SSLStatistics} for connections to this server. */
+    public final SSLStatistics getSSLStatistics() {
+        return mSSLStatistics;
+    }
+
+    /** @return The {@link Executor} that runs delegated SSL handshake tasks. */
+    final Executor getHandshakeExecutor() {
+        return mHandshakeExecutor;
+    }
+
+    /** @return The {@link BufferPool} used for in-bound data and TLS processing on this server. */
+    public final BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * @return The number of dedicated i/o selector threads, or {@code 0} if this server's own
+     *         thread performs all i/o.
+     */
+    public final int getSelectorCount() {
+        return mSelectors.size();
+    }
+
     /** @return The current {@link Session}s. */
     public final List<Session> getSessions() {
         synchronized (mSessions) {
@@ -85,15 +217,17 @@ public class NioServer extends Thread {
         synchronized (mSessions) {
             mSessions.remove(session);
         }
+        mTimingWheel.cancel(session);
+    }
+
+    /** @param session The {@link Session} whose timeouts should be re-evaluated. */
+    final void scheduleTimeout(Session session) {
+        mTimingWheel.schedule(session);
     }
 
     /** Call to shutdown the server. */
     public final void shutdown() {
-        try {
-            mSelector.close();
-        } catch (IOException exception) {
-            Log.error(exception);
-        }
+        mAcceptor.close();
         try {
             join();
         } catch (InterruptedException exception) {
@@ -111,91 +245,49 @@ public class NioServer extends Thread {
         @SuppressWarnings("resource") ServerSocketChannel channel = ServerSocketChannel.open();
         channel.configureBlocking(false);
         channel.socket().bind(new InetSocketAddress(hostAddress, port));
-        channel.register(mSelector, SelectionKey.OP_ACCEPT, sessionFactory);
+        channel.register(mAcceptor.getSelector(), SelectionKey.OP_ACCEPT, sessionFactory);
     }
 
     @Override
     public final void run() {
-        while (true) {
+        mAcceptor.run();
+        mTimingWheelThread.interrupt();
+        if (mHandshakeExecutor != null) {
+            mHandshakeExecutor.shutdown();
+        }
+        // Stop the i/o selectors
+        for (NioSelector selector : mSelectors) {
+            selector.close();
+        }
+        for (Thread thread : mSelectorThreads) {
             try {
-                // Adjust what we're waiting on
-                Selector selector = mSelector;
-                synchronized (mPendingChanges) {
-                    for (ChangeRequest request : mPendingChanges) {
-                        try {
-                            request.mSocket.keyFor(selector).interestOps(request.mOperation);
-                        } catch (Exception exception) {
-                            // Ignore
-                        }
-                    }
-                    mPendingChanges.clear();
-                }
-
-                // Wait for some work
-                mSelector.select();
-
-                // Handle the work
-                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
-                while (keys.hasNext()) {
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                    if (key.isValid()) {
-                        if (key.isAcceptable()) {
-                            accept(key);
-                        } else if (key.isReadable()) {
-                            read(key);
-                        } else if (key.isWritable()) {
-                            write(key);
-                        }
-                    }
-                }
-            } catch (CancelledKeyException cke) {
-                // Ignore
-            } catch (ClosedSelectorException cse) {
-                // Allow the work queue to drain
-                while (!mQueue.isEmpty()) {
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException exception) {
-                        break;
-                    }
-                }
-                // Shutdown the workers
-                for (NioWorker worker : mWorkers) {
-                    worker.interrupt();
-                    try {
-                        worker.join();
-                    } catch (InterruptedException ie) {
-                        break;
-                    }
-                }
+                thread.join();
+            } catch (InterruptedException ie) {
                 break;
-            } catch (Throwable throwable) {
-                Log.error(throwable);
             }
         }
-    }
-
-    /**
-     * Puts the data into the send queue.
-     *
-     * @param socket The socket to send data through.
-     * @param data   The data to send. A copy of the data is not made, so do not modify it once
-     *               passed to this method.
-     */
-    final void send(SocketChannel socket, ByteBuffer data) {
-        synchronized (mPendingWriteData) {
-            LinkedList<ByteBuffer> list = mPendingWriteData.get(socket);
-            if (list == null) {
-                list = new LinkedList<>();
-                mPendingWriteData.put(socket, list);
+        if (mVirtualExecutor != null) {
+            // Every task is already running, so there is no queue to wait on
+            mVirtualExecutor.shutdownNow();
+            return;
+        }
+        // Allow the work queue to drain
+        while (!mQueue.isEmpty()) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException exception) {
+                break;
             }
-            list.add(data);
         }
-        synchronized (mPendingChanges) {
-            mPendingChanges.add(new ChangeRequest(socket, SelectionKey.OP_WRITE));
+        // Shutdown the workers
+        for (NioWorker worker : mWorkers) {
+            worker.interrupt();
+            try {
+                worker.join();
+            } catch (InterruptedException ie) {
+                break;
+            }
         }
-        mSelector.wakeup();
     }
 
     /**
@@ -203,38 +295,71 @@ public class NioServer extends Thread {
      * @return {@code true} if there is data waiting to be sent on the specified socket.
      */
     public final boolean hasPendingWrite(SocketChannel socket) {
-        synchronized (mPendingWriteData) {
-            List<ByteBuffer> list = mPendingWriteData.get(socket);
-            return list != null && !list.isEmpty();
+        if (hasPendingWrite(socket, mAcceptor)) {
+            return true;
         }
+        for (NioSelector selector : mSelectors) {
+            if (hasPendingWrite(socket, selector)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasPendingWrite(SocketChannel socket, NioSelector selector) {
+        SelectionKey key = socket.keyFor(selector.getSelector());
+        return key != null && key.attachment() instanceof Session && ((Session) key.attachment()).hasPendingOutput();
     }
 
-    private void accept(SelectionKey key) throws IOException {
+    /** Called by the {@link NioSelector} that owns the listening socket. */
+    final void accept(SelectionKey key) throws IOException {
         @SuppressWarnings("resource") ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
         @SuppressWarnings("resource") SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
         socketChannel.configureBlocking(false);
-        Session session = ((SessionFactory) key.attachment()).createSession(this, socketChannel);
+        Session     session  = ((SessionFactory) key.attachment()).createSession(this, socketChannel);
+        NioSelector selector;
+        if (mSelectors.isEmpty()) {
+            selector = mAcceptor;
+        } else {
+            selector = mSelectors.get(Math.floorMod(mNextSelector.getAndIncrement(), mSelectors.size()));
+        }
+        session.setSelector(selector);
+        session.initTimeouts(((SessionFactory) key.attachment()).getTimeouts());
         synchronized (mSessions) {
             mSessions.add(session);
         }
-        socketChannel.register(mSelector, SelectionKey.OP_READ, session);
+        mTimingWheel.schedule(session);
+        selector.register(session);
     }
 
-    private void read(SelectionKey key) {
+    /** Called by the {@link NioSelector} that owns the session's socket. */
+    final void read(SelectionKey key) {
         @SuppressWarnings("resource") SocketChannel socketChannel = (SocketChannel) key.channel();
-        Session session = (Session) key.attachment();
-        mReadBuffer.clear();
-        int amount;
+        Session    session = (Session) key.attachment();
+        ByteBuffer buffer  = mBufferPool.acquire(READ_BUFFER_SIZE);
+        int        amount;
         try {
-            amount = socketChannel.read(mReadBuffer);
+            amount = socketChannel.read(buffer);
             if (amount > 0) {
-                session.requestHandleInput(mReadBuffer);
-            } else if (amount == -1) {
+                session.inputReceived();
+                buffer.flip();
+                session.requestHandleInput(buffer);
+                if (session.isInputBacklogged()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    session.inputSuspended();
+                }
+                return;
+            }
+            if (amount == -1) {
                 session.requestClose(false);
             }
         } catch (Throwable throwable) {
             session.requestClose(true);
         }
+        mBufferPool.release(buffer);
     }
 
     /**
@@ -243,42 +368,46 @@ public class NioServer extends Thread {
      * @param session The {@link Session} to schedule.
      */
     final void scheduleSession(Session session) {
-        mQueue.add(session);
+        if (mVirtualExecutor != null) {
+            // Only one task at a time makes progress on a given session; any others return
+            // immediately, leaving the active one to reschedule if more requests are waiting.
+            try {
+                mVirtualExecutor.execute(() -> processNextRequest(session));
+            } catch (RejectedExecutionException exception) {
+                // The server is shutting down
+            }
+        } else {
+            mQueue.add(session);
+        }
     }
 
-    @SuppressWarnings("resource")
-    private void write(SelectionKey key) {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        synchronized (mPendingWriteData) {
-            LinkedList<ByteBuffer> list = mPendingWriteData.get(socketChannel);
-            if (list == null || list.isEmpty()) {
-                key.interestOps(SelectionKey.OP_READ);
-            } else {
-                ByteBuffer buffer = list.getFirst();
-                try {
-                    socketChannel.write(buffer);
-                } catch (IOException ioe) {
-                    mPendingWriteData.remove(socketChannel);
-                    key.interestOps(SelectionKey.OP_READ);
-                    return;
-                }
-                if (buffer.remaining() == 0) {
-                    list.removeFirst();
-                    if (list.isEmpty()) {
-                        key.interestOps(SelectionKey.OP_READ);
-                    }
-                }
+    /**
+     * Runs a task that may block for an extended period, such as waiting for a closing {@link
+     * Session}'s remaining output to drain.
+     *
+     * @param task The task to run.
+     * @param name The name to give a platform thread, if one is needed.
+     */
+    final void startTask(Runnable task, String name) {
+        if (mVirtualExecutor != null) {
+            try {
+                mVirtualExecutor.execute(task);
+                return;
+            } catch (RejectedExecutionException exception) {
+                // The server is shutting down, so fall back to a platform thread
             }
         }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    private static class ChangeRequest {
-        final SocketChannel mSocket;
-        final int           mOperation;
-
-        ChangeRequest(SocketChannel socket, int operation) {
-            mSocket = socket;
-            mOperation = operation;
+    private static void processNextRequest(Session session) {
+        try {
+            session.processNextRequest();
+        } catch (Throwable throwable) {
+            Log.error(session, throwable);
+            session.requestClose(true);
         }
     }
 
@@ -295,44 +424,10 @@ public class NioServer extends Thread {
         @Override
         public void run() {
             while (!isInterrupted()) {
-                Session session = null;
                 try {
-                    session = mQueue.take();
-                    session.processNextRequest();
+                    processNextRequest(mQueue.take());
                 } catch (InterruptedException iex) {
                     break;
-                } catch (Throwable throwable) {
-                    Log.error(session, throwable);
-                    if (session != null) {
-                        session.requestClose(true);
-                    }
-                }
-            }
-        }
-    }
-
-    private class TimeoutMonitor extends Thread {
-        private long mTimeout;
-
-        TimeoutMonitor(long timeoutMilliseconds) {
-            setName(getClass().getSimpleName());
-            setDaemon(true);
-            mTimeout = timeoutMilliseconds;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    Thread.sleep(Math.max(mTimeout / 4, 1000));
-                    long timeout = System.currentTimeMillis() - mTimeout;
-                    for (Session session : getSessions()) {
-                        if (session.getLastActivity() <= timeout) {
-                            session.requestClose(false);
-                        }
-                    }
-                } catch (InterruptedException exception) {
-                    break;
                 }
             }
         }
@@ -13,6 +13,7 @@ package com.trollworks.toolkit.io.server;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /** A {@link Personality} provides the actual data handling for a {@link Session}. */
 public abstract class Personality {
@@ -39,7 +40,8 @@ public abstract class Personality {
      * @param buffer The data to process. It is not required that all the data within the passed in
      *               buffer be consumed in a single call, however, the {@link Session} will continue
      *               to call {@link #processInput(ByteBuffer)} with the same buffer until the entire
-     *               buffer has been consumed.
+     *               buffer has been consumed. The buffer is returned to a pool afterward, so no
+     *               reference to it may be retained beyond this call.
      */
     public abstract void processInput(ByteBuffer buffer) throws IOException;
 
@@ -51,6 +53,60 @@ public abstract class Personality {
         mSession.send(buffer);
     }
 
+    /**
+     * Sends several buffers as one piece of output, such as a header followed by its payload. On
+     * plain connections they are written to the socket with a single gathering write where
+     * possible, while on secure connections they are encrypted together.
+     *
+     * @param buffers The data to send, in order. A copy of the data is not made, so do not modify
+     *                it once passed to this method. Callers that send from several threads at once
+     *                must serialize their calls to keep the buffers together.
+     */
+    public final void send(ByteBuffer[] buffers) {
+        mSession.send(buffers);
+    }
+
+    /**
+     * Sends a portion of a file without first loading it into memory.
+     *
+     * @param channel  The {@link FileChannel} to read from. Ownership passes to the {@link
+     *                 Session}, which will close it once the data has been sent.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    public final void sendFile(FileChannel channel, long position, long count) throws IOException {
+        mSession.sendFile(channel, position, count);
+    }
+
+    /**
+     * Blocks until most of the data previously passed to {@link #send(ByteBuffer)} has been
+     * written to the remote end. Use this between pieces of a large response that is being
+     * produced incrementally, so that it is generated no faster than the remote end can accept it.
+     * Throws an {@link IOException} rather than waiting any longer once the session is being closed
+     * due to an error or a timeout, or once nothing has been written for longer than the write
+     * timeout, so that a remote end that stops reading can't hold the calling thread forever.
+     */
+    public final void awaitOutputDrain() throws IOException {
+        mSession.awaitOutputDrain();
+    }
+
+    /**
+     * @return The number of buffers and file regions waiting to be sent. Useful for spotting a
+     *         remote end that is not keeping up with the data being sent to it.
+     */
+    public final int getPendingOutputCount() {
+        return mSession.getPendingOutputCount();
+    }
+
+    /**
+     * Called by the selector thread each time the associated {@link Session}'s out-bound queue has
+     * been completely written. Does nothing by default. Implementations may send more data, but
+     * must not block.
+     */
+    protected void outputDrained() {
+        // Nothing to do by default
+    }
+
     /**
      * Requests that the associated {@link Session} be closed.
      *
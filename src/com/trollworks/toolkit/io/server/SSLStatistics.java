@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Tracks TLS handshake activity for a {@link NioServer}. */
+public class SSLStatistics {
+    private AtomicLong mFullHandshakes    = new AtomicLong();
+    private AtomicLong mResumedHandshakes = new AtomicLong();
+    private AtomicLong mFailedHandshakes  = new AtomicLong();
+    private AtomicLong mHandshakeTime     = new AtomicLong();
+    private AtomicLong mDelegatedTasks    = new AtomicLong();
+
+    /**
+     * @param resumed  Whether the handshake resumed a previously established session.
+     * @param duration The number of milliseconds the handshake took.
+     */
+    final void handshakeCompleted(boolean resumed, long duration) {
+        (resumed ? mResumedHandshakes : mFullHandshakes).incrementAndGet();
+        mHandshakeTime.addAndGet(duration);
+    }
+
+    /** Records a handshake that did not complete. */
+    final void handshakeFailed() {
+        mFailedHandshakes.incrementAndGet();
+    }
+
+    /** @param count The number of delegated tasks that were run. */
+    final void delegatedTasksRun(int count) {
+        mDelegatedTasks.addAndGet(count);
+    }
+
+    /** @return The number of handshakes that established a new session. */
+    public final long getFullHandshakes() {
+        return mFullHandshakes.get();
+    }
+
+    /** @return The number of handshakes that resumed a previously established session. */
+    public final long getResumedHandshakes() {
+        return mResumedHandshakes.get();
+    }
+
+    /** @return The number of handshakes that did not complete due to an error. */
+    public final long getFailedHandshakes() {
+        return mFailedHandshakes.get();
+    }
+
+    /**
+     * @return The fraction of completed handshakes that resumed a previously established session,
+     *         from {@code 0} to {@code 1}.
+     */
+    public final double getResumptionRate() {
+        long resumed = getResumedHandshakes();
+        long total   = resumed + getFullHandshakes();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    /** @return The average number of milliseconds a completed handshake took. */
+    public final double getAverageHandshakeTime() {
+        long total = getFullHandshakes() + getResumedHandshakes();
+        return total == 0 ? 0 : (double) mHandshakeTime.get() / total;
+    }
+
+    /** @return The number of delegated handshake tasks that have been run. */
+    public final long getDelegatedTasks() {
+        return mDelegatedTasks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SSLStatistics [full=" + getFullHandshakes() + ", resumed=" + getResumedHandshakes() + ", failed=" + getFailedHandshakes() + ", delegatedTasks=" + getDelegatedTasks() + "]";
+    }
+}
@@ -17,23 +17,34 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLSession;
 
-/** Provides simple SSL processing. */
+/**
+ * Provides simple SSL processing. Buffers for decrypted and encrypted data are borrowed from the
+ * server's {@link BufferPool} only for the duration of each read or write, so idle connections
+ * hold on to nothing beyond any partial record that has yet to be completed. Delegated handshake
+ * tasks, which can be expensive, are run on the server's handshake executor rather than on the
+ * thread processing input.
+ */
 public class SSLSupport {
-    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
-    private              Session    mSession;
-    private              SSLEngine  mEngine;
-    private              SSLSession mSSLSession;
-    private              ByteBuffer mUnderflowData;
-    private              ByteBuffer mAppData;
-    private              ByteBuffer mInboundData;
-    private              ByteBuffer mOutboundData;
+    private static final ByteBuffer    EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private              Session       mSession;
+    private              BufferPool    mPool;
+    private              SSLStatistics mStatistics;
+    private              SSLEngine     mEngine;
+    private              ByteBuffer    mUnderflowData;
+    private              ByteBuffer    mAppData;
+    private              ByteBuffer    mInboundData;
+    private              long          mHandshakeStart;
+    private volatile     boolean       mHandshaking;
+    private volatile     boolean       mTasksPending;
 
     /**
      * @param keyStore The location to load a valid SSL keystore from.
@@ -59,32 +70,68 @@ public class SSLSupport {
      */
     public SSLSupport(Session session, SSLContext sslContext) throws SSLException {
         mSession = session;
+        mPool = session.getServer().getBufferPool();
+        mStatistics = session.getServer().getSSLStatistics();
         mEngine = sslContext.createSSLEngine();
         mEngine.setUseClientMode(false);
         mEngine.setNeedClientAuth(false);
-        mSSLSession = mEngine.getSession();
-        int applicationBufferSize = mSSLSession.getApplicationBufferSize();
-        int packetBufferSize      = mSSLSession.getPacketBufferSize();
-        mAppData = ByteBuffer.allocate(applicationBufferSize);
-        mOutboundData = ByteBuffer.allocate(packetBufferSize);
+        mHandshakeStart = System.currentTimeMillis();
+        mHandshaking = true;
         mEngine.beginHandshake();
     }
 
+    /**
+     * Hands the engine's delegated tasks off to the handshake executor. Input processing is
+     * suspended until they have all completed, at which point the {@link Session} is asked to
+     * resume with whatever input has accumulated in the meantime.
+     */
+    private void startSSLTasks() {
+        List<Runnable> tasks = new ArrayList<>();
+        Runnable       task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+        mStatistics.delegatedTasksRun(tasks.size());
+        mTasksPending = true;
+        Runnable runner = () -> {
+            try {
+                for (Runnable one : tasks) {
+                    one.run();
+                }
+            } finally {
+                // Any failure will be reported by the engine once input processing resumes
+                mTasksPending = false;
+                mSession.requestHandleInput(EMPTY_BUFFER);
+            }
+        };
+        try {
+            mSession.getServer().getHandshakeExecutor().execute(runner);
+        } catch (RejectedExecutionException exception) {
+            // The server is shutting down
+            runner.run();
+        }
+    }
+
     private void runSSLTasks() {
         Runnable task;
+        int      count = 0;
         while ((task = mEngine.getDelegatedTask()) != null) {
             task.run();
+            count++;
         }
+        mStatistics.delegatedTasksRun(count);
     }
 
     private boolean canProceed() throws SSLException {
         while (true) {
             switch (mEngine.getHandshakeStatus()) {
             case NEED_TASK:
-                runSSLTasks();
-                break;
+                startSSLTasks();
+                return false;
             case NEED_UNWRAP:
-                switch (mEngine.unwrap(mInboundData, mAppData).getStatus()) {
+                SSLEngineResult result = mEngine.unwrap(mInboundData, mAppData);
+                checkHandshakeFinished(result);
+                switch (result.getStatus()) {
                 case BUFFER_OVERFLOW:
                     resizeAppDataBuffer();
                     break;
@@ -97,16 +144,7 @@ public class SSLSupport {
                 }
                 break;
             case NEED_WRAP:
-                switch (mEngine.wrap(EMPTY_BUFFER, mOutboundData).getStatus()) {
-                case BUFFER_UNDERFLOW:
-                    // Should not be possible
-                    throw new SSLException("Buffer underflow during handshake wrap");
-                case CLOSED:
-                    throw new SSLException("Connection closed (wrap)");
-                default:
-                    break;
-                }
-                sendOutboundData();
+                wrapHandshakeData();
                 break;
             default:
                 return true;
@@ -114,16 +152,47 @@ public class SSLSupport {
         }
     }
 
+    private synchronized void wrapHandshakeData() throws SSLException {
+        ByteBuffer outbound = mPool.acquire(mEngine.getSession().getPacketBufferSize());
+        try {
+            SSLEngineResult result = mEngine.wrap(EMPTY_BUFFER, outbound);
+            checkHandshakeFinished(result);
+            switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                // Should not be possible
+                throw new SSLException("Buffer underflow during handshake wrap");
+            case CLOSED:
+                throw new SSLException("Connection closed (wrap)");
+            default:
+                break;
+            }
+            if (sendOutboundData(outbound)) {
+                outbound = null;
+            }
+        } finally {
+            mPool.release(outbound);
+        }
+    }
+
+    private void checkHandshakeFinished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && mHandshaking) {
+            mHandshaking = false;
+            // A resumed session was created by an earlier handshake
+            mStatistics.handshakeCompleted(mEngine.getSession().getCreationTime() < mHandshakeStart, System.currentTimeMillis() - mHandshakeStart);
+        }
+    }
+
     private void resizeAppDataBuffer() {
-        ByteBuffer resized = ByteBuffer.allocate(mAppData.capacity() + mSSLSession.getApplicationBufferSize());
+        ByteBuffer resized = mPool.acquire(mAppData.capacity() + mEngine.getSession().getApplicationBufferSize());
         mAppData.flip();
         resized.put(mAppData);
+        mPool.release(mAppData);
         mAppData = resized;
     }
 
     private void preserveRemainingInboundData() {
         if (mInboundData.hasRemaining()) {
-            mUnderflowData = ByteBuffer.allocate(mInboundData.remaining());
+            mUnderflowData = mPool.acquire(mInboundData.remaining());
             mUnderflowData.put(mInboundData);
             mUnderflowData.flip();
         }
@@ -131,38 +200,61 @@ public class SSLSupport {
 
     /**
      * @param buffer The data to read.
-     * @return The unencrypted data. The returned buffer will be reused on subsequent calls to this
-     *         method, so callers will need to copy the data elsewhere if they wish to preserve it.
+     * @return The unencrypted data. The returned buffer was borrowed from the server's {@link
+     *         BufferPool}, and the caller must return it there once it is done with it.
      */
     public ByteBuffer processInput(ByteBuffer buffer) throws SSLException {
-        mAppData.clear();
         mInboundData = buffer;
         insertUnderflowData();
-        loop:
-        while (mInboundData.hasRemaining() && canProceed()) {
-            SSLEngineResult result = mEngine.unwrap(mInboundData, mAppData);
-            switch (result.getStatus()) {
-            case BUFFER_OVERFLOW:
-                resizeAppDataBuffer();
-                break;
-            case BUFFER_UNDERFLOW:
-            case CLOSED:
-                break loop;
-            default:
-                break;
+        mAppData = mPool.acquire(mEngine.getSession().getApplicationBufferSize());
+        boolean success = false;
+        try {
+            if (!mTasksPending) {
+                loop:
+                while (canProceed() && mInboundData.hasRemaining()) {
+                    SSLEngineResult result = mEngine.unwrap(mInboundData, mAppData);
+                    checkHandshakeFinished(result);
+                    switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        resizeAppDataBuffer();
+                        break;
+                    case BUFFER_UNDERFLOW:
+                    case CLOSED:
+                        break loop;
+                    default:
+                        break;
+                    }
+                }
+            }
+            preserveRemainingInboundData();
+            mAppData.flip();
+            success = true;
+            return mAppData;
+        } catch (SSLException exception) {
+            if (mHandshaking) {
+                mHandshaking = false;
+                mStatistics.handshakeFailed();
+            }
+            throw exception;
+        } finally {
+            if (mInboundData != buffer) {
+                mPool.release(mInboundData);
             }
+            mInboundData = null;
+            if (!success) {
+                mPool.release(mAppData);
+            }
+            mAppData = null;
         }
-        preserveRemainingInboundData();
-        mAppData.flip();
-        return mAppData;
     }
 
     private void insertUnderflowData() {
         if (mUnderflowData != null) {
-            ByteBuffer newBuffer = ByteBuffer.allocate(mUnderflowData.remaining() + mInboundData.remaining());
+            ByteBuffer newBuffer = mPool.acquire(mUnderflowData.remaining() + mInboundData.remaining());
             newBuffer.put(mUnderflowData);
             newBuffer.put(mInboundData);
             newBuffer.flip();
+            mPool.release(mUnderflowData);
             mInboundData = newBuffer;
             mUnderflowData = null;
         }
@@ -173,50 +265,85 @@ public class SSLSupport {
      *
      * @param buffer The data to send.
      */
-    public synchronized void processOutput(ByteBuffer buffer) throws SSLException {
-        if (buffer.hasRemaining()) {
-            do {
-                SSLEngineResult result = mEngine.wrap(buffer, mOutboundData);
-                switch (result.getHandshakeStatus()) {
-                case NEED_TASK:
-                    runSSLTasks();
-                    break;
-                case NEED_UNWRAP:
-                    // Should not be possible
-                    throw new SSLException("Need unwrap during output");
-                case NEED_WRAP:
-                    // Should not be possible
-                    throw new SSLException("Need wrap during output");
-                default:
-                    break;
-                }
-                switch (result.getStatus()) {
-                case BUFFER_OVERFLOW:
-                    sendOutboundData();
-                    break;
-                case BUFFER_UNDERFLOW:
-                    // Should not be possible
-                    throw new SSLException("Buffer underflow during output");
-                case CLOSED:
-                    mOutboundData.clear();
-                    return;
-                default:
-                    break;
+    public void processOutput(ByteBuffer buffer) throws SSLException {
+        processOutput(new ByteBuffer[] { buffer });
+    }
+
+    /**
+     * Sends the specified data to the underlying {@link Session} output after first encrypting it.
+     * The buffers are wrapped together, so small pieces such as a frame header and its payload
+     * share TLS records rather than each paying for their own.
+     *
+     * @param buffers The data to send, in order.
+     */
+    public synchronized void processOutput(ByteBuffer[] buffers) throws SSLException {
+        if (hasRemaining(buffers)) {
+            ByteBuffer outbound = mPool.acquire(mEngine.getSession().getPacketBufferSize());
+            try {
+                do {
+                    SSLEngineResult result = mEngine.wrap(buffers, outbound);
+                    switch (result.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        // Output can't be deferred, so any tasks are run right here
+                        runSSLTasks();
+                        break;
+                    case NEED_UNWRAP:
+                        // Should not be possible
+                        throw new SSLException("Need unwrap during output");
+                    case NEED_WRAP:
+                        // Should not be possible
+                        throw new SSLException("Need wrap during output");
+                    default:
+                        break;
+                    }
+                    switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        if (sendOutboundData(outbound)) {
+                            outbound = mPool.acquire(mEngine.getSession().getPacketBufferSize());
+                        }
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        // Should not be possible
+                        throw new SSLException("Buffer underflow during output");
+                    case CLOSED:
+                        return;
+                    default:
+                        break;
+                    }
+                } while (hasRemaining(buffers));
+                if (sendOutboundData(outbound)) {
+                    outbound = null;
                 }
-            } while (buffer.hasRemaining());
-            sendOutboundData();
+            } finally {
+                mPool.release(outbound);
+            }
         }
     }
 
-    private synchronized void sendOutboundData() {
-        mOutboundData.flip();
-        int limit = mOutboundData.limit();
-        if (limit > 0) {
-            ByteBuffer buffer = ByteBuffer.allocate(limit);
-            buffer.put(mOutboundData);
-            buffer.flip();
-            mSession.getServer().send(mSession.getChannel(), buffer);
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues the encrypted data without copying it. The {@link Session} returns the buffer to the
+     * pool once it has been written.
+     *
+     * @param outbound The pooled buffer the data was encrypted into.
+     * @return {@code true} if the buffer was queued and now belongs to the {@link Session}, {@code
+     *         false} if it held nothing and is still the caller's.
+     */
+    private boolean sendOutboundData(ByteBuffer outbound) {
+        outbound.flip();
+        if (outbound.hasRemaining()) {
+            mSession.queuePooledOutput(outbound);
+            return true;
         }
-        mOutboundData.clear();
+        outbound.clear();
+        return false;
     }
 }
@@ -13,30 +13,57 @@ package com.trollworks.toolkit.io.server;
 
 import com.trollworks.toolkit.io.Log;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
 
 /** Tracks a single connection to the server. */
 public class Session implements Runnable, Log.Context {
-    private static final AtomicInteger       NEXT_ID = new AtomicInteger();
-    private              int                 mId;
-    private              NioServer           mServer;
-    private              SocketChannel       mChannel;
-    private              InetAddress         mAddress;
-    private              Personality         mPersonality;
-    private              SSLSupport          mSSLSupport;
-    private              LinkedList<Request> mRequests;
-    private              long                mLastActivity;
-    private              boolean             mInRequest;
-    private              boolean             mHasClosed;
-    private              boolean             mNoFurtherWrites;
+    private static final int                           FILE_CHUNK_SIZE       = 16 * 1024;
+    private static final int                           MAXIMUM_QUEUED_CHUNKS = 8;
+    private static final int                           INPUT_HIGH_WATER      = 256 * 1024;
+    private static final int                           INPUT_LOW_WATER       = 64 * 1024;
+    private static final AtomicInteger                 NEXT_ID               = new AtomicInteger();
+    private              int                           mId;
+    private              NioServer                     mServer;
+    private              NioSelector                   mSelector;
+    private              SocketChannel                 mChannel;
+    private              InetAddress                   mAddress;
+    private              Personality                   mPersonality;
+    private              SSLSupport                    mSSLSupport;
+    private              LinkedList<Request>           mRequests;
+    private              ConcurrentLinkedQueue<Object> mOutbound             = new ConcurrentLinkedQueue<>();
+    private              AtomicInteger                 mOutboundCount        = new AtomicInteger();
+    private              AtomicInteger                 mQueuedInput          = new AtomicInteger();
+    private              AtomicBoolean                 mInputSuspended       = new AtomicBoolean();
+    private              ReentrantLock                 mDrainLock            = new ReentrantLock();
+    private              Condition                     mDrained              = mDrainLock.newCondition();
+    private volatile     boolean                       mDrainWaiting;
+    private volatile     boolean                       mClosing;
+    private volatile     long                          mLastActivity;
+    private volatile     long                          mLastRead;
+    private volatile     long                          mLastWrite;
+    private volatile     SessionTimeouts               mTimeouts             = SessionTimeouts.DEFAULT;
+    private              TimingWheel.Entry             mTimerEntry;
+    private              boolean                       mInRequest;
+    private              boolean                       mHasClosed;
+    private              boolean                       mNoFurtherWrites;
 
     /**
      * @param server      The {@link NioServer} that will be providing the connection.
@@ -51,6 +78,9 @@ public class Session implements Runnable, Log.Context {
         mAddress = channel.socket().getInetAddress();
         mRequests = new LinkedList<>();
         mId = NEXT_ID.incrementAndGet();
+        mLastActivity = System.currentTimeMillis();
+        mLastRead = mLastActivity;
+        mLastWrite = mLastActivity;
         if (sslContext != null) {
             mSSLSupport = new SSLSupport(this, sslContext);
         }
@@ -66,25 +96,136 @@ public class Session implements Runnable, Log.Context {
         return mLastActivity;
     }
 
+    /** @return The {@link SessionTimeouts} that apply to this {@link Session}. */
+    public final SessionTimeouts getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * Replaces the {@link SessionTimeouts} that apply to this {@link Session}, which are initially
+     * those of the {@link SessionFactory} that created it. For example, a {@link Personality} that
+     * sends its own keep-alive messages may want to relax them.
+     *
+     * @param timeouts The {@link SessionTimeouts} to use.
+     */
+    public final void setTimeouts(SessionTimeouts timeouts) {
+        mTimeouts = timeouts;
+        mServer.scheduleTimeout(this);
+    }
+
+    /** @param timeouts The {@link SessionTimeouts} to use, without rescheduling. */
+    final void initTimeouts(SessionTimeouts timeouts) {
+        mTimeouts = timeouts;
+    }
+
+    /**
+     * @param now The current time.
+     * @return The time at which this {@link Session} will have timed out if nothing further
+     *         happens, or {@link Long#MAX_VALUE} if no timeouts apply.
+     */
+    final long getDeadline(long now) {
+        SessionTimeouts timeouts = mTimeouts;
+        long            deadline = Long.MAX_VALUE;
+        if (timeouts.getIdle() > 0) {
+            deadline = mLastActivity + timeouts.getIdle();
+        }
+        if (timeouts.getRead() > 0) {
+            deadline = Math.min(deadline, mLastRead + timeouts.getRead());
+        }
+        if (timeouts.getWrite() > 0) {
+            // With nothing waiting to be sent, the earliest a write could time out is a full
+            // period from now.
+            deadline = Math.min(deadline, (hasPendingOutput() ? mLastWrite : now) + timeouts.getWrite());
+        }
+        return deadline;
+    }
+
+    /** @return This {@link Session}'s place on the {@link TimingWheel}. */
+    final TimingWheel.Entry getTimerEntry() {
+        return mTimerEntry;
+    }
+
+    /** @param entry This {@link Session}'s place on the {@link TimingWheel}. */
+    final void setTimerEntry(TimingWheel.Entry entry) {
+        mTimerEntry = entry;
+    }
+
+    /** Called whenever data has been read from the channel. */
+    final void inputReceived() {
+        long now = System.currentTimeMillis();
+        mLastRead = now;
+        mLastActivity = now;
+    }
+
     /**
      * Requests that the {@link Session} be closed.
      *
      * @param dueToError Pass in {@code true} if an error condition triggered this request.
      */
     final void requestClose(boolean dueToError) {
+        if (dueToError) {
+            abandonOutput();
+        }
         addRequest(new Request(dueToError));
     }
 
+    /** Called by the {@link TimingWheel} once this {@link Session} has passed its deadline. */
+    final void timedOut() {
+        abandonOutput();
+        requestClose(false);
+    }
+
+    /**
+     * Causes any thread blocked in {@link #awaitOutputDrain()} to give up, since the close request
+     * that is about to be queued can't be processed until that thread returns.
+     */
+    private void abandonOutput() {
+        mClosing = true;
+        signalDrained();
+    }
+
     /**
      * Request that the specified input data be processed.
      *
-     * @param buffer The data to process. The buffer contents are copied to an internal buffer, so
-     *               the passed in buffer may be modified after this call.
+     * @param buffer The data to process, ready for reading. Ownership of the buffer passes to this
+     *               {@link Session}, which will return it to the server's {@link BufferPool} once
+     *               it has been processed.
      */
     final void requestHandleInput(ByteBuffer buffer) {
+        mQueuedInput.addAndGet(buffer.limit());
         addRequest(new Request(buffer));
     }
 
+    /**
+     * @return {@code true} if more input is waiting to be processed than should be buffered, in
+     *         which case the selector should stop reading from the channel until the {@link
+     *         Personality} catches up.
+     */
+    final boolean isInputBacklogged() {
+        return mQueuedInput.get() > INPUT_HIGH_WATER;
+    }
+
+    /** @return {@code true} if reading from the channel has been suspended. */
+    final boolean isInputSuspended() {
+        return mInputSuspended.get();
+    }
+
+    /**
+     * Called by the owning {@link NioSelector} after it has stopped watching the channel for input
+     * because {@link #isInputBacklogged()} returned {@code true}.
+     */
+    final void inputSuspended() {
+        mInputSuspended.set(true);
+        // The backlog may have drained before the flag was visible to the worker thread
+        resumeInputIfDrained();
+    }
+
+    private void resumeInputIfDrained() {
+        if (mQueuedInput.get() < INPUT_LOW_WATER && mInputSuspended.compareAndSet(true, false)) {
+            mSelector.updateInterest(this);
+        }
+    }
+
     private void addRequest(Request request) {
         synchronized (mRequests) {
             mRequests.add(request);
@@ -104,6 +245,7 @@ public class Session implements Runnable, Log.Context {
                 request = mRequests.removeFirst();
             }
         }
+        ByteBuffer decrypted = null;
         try {
             if (request != null && !mHasClosed) {
                 mLastActivity = System.currentTimeMillis();
@@ -111,6 +253,7 @@ public class Session implements Runnable, Log.Context {
                     ByteBuffer buffer = request.getBuffer();
                     if (isSecure()) {
                         buffer = mSSLSupport.processInput(buffer);
+                        decrypted = buffer;
                     }
                     while (buffer.hasRemaining() && !Thread.currentThread().isInterrupted()) {
                         getPersonality().processInput(buffer);
@@ -123,12 +266,17 @@ public class Session implements Runnable, Log.Context {
                     } catch (Throwable throwable) {
                         Log.error(this, throwable);
                     }
-                    Thread thread = new Thread(this, "Closing " + this);
-                    thread.setDaemon(true);
-                    thread.start();
+                    mServer.startTask(this, "Closing " + this);
                 }
             }
         } finally {
+            if (request != null && request.isInput()) {
+                ByteBuffer buffer = request.getBuffer();
+                mQueuedInput.addAndGet(-buffer.limit());
+                mServer.getBufferPool().release(buffer);
+                mServer.getBufferPool().release(decrypted);
+                resumeInputIfDrained();
+            }
             boolean reschedule;
             synchronized (mRequests) {
                 mInRequest = false;
@@ -153,10 +301,278 @@ public class Session implements Runnable, Log.Context {
                 Log.error(this, throwable);
             }
         } else {
-            mServer.send(mChannel, buffer);
+            queueOutput(buffer);
+        }
+    }
+
+    /**
+     * @param buffers The data to send, in order. A copy of the data is not made, so do not modify
+     *                it once passed to this method. Callers that send from several threads at once
+     *                must serialize their calls to keep the buffers together.
+     */
+    final void send(ByteBuffer[] buffers) {
+        mLastActivity = System.currentTimeMillis();
+        if (isSecure()) {
+            try {
+                mSSLSupport.processOutput(buffers);
+            } catch (Throwable throwable) {
+                Log.error(this, throwable);
+            }
+        } else {
+            queueOutput(buffers);
+        }
+    }
+
+    /**
+     * Sends a portion of a file. For plain connections the file is handed to the selector and
+     * streamed with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * as the socket becomes writable. For secure connections the file has to pass through the
+     * {@link SSLEngine}, so it is read and encrypted a chunk at a time, with the calling thread
+     * waiting whenever too much encrypted data is already queued.
+     *
+     * @param channel  The {@link FileChannel} to read from. Ownership passes to this {@link
+     *                 Session}, which will close it once the data has been sent.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    final void sendFile(FileChannel channel, long position, long count) throws IOException {
+        mLastActivity = System.currentTimeMillis();
+        if (!isSecure()) {
+            queueOutput(new FileRegion(channel, position, count));
+            return;
+        }
+        BufferPool pool  = mServer.getBufferPool();
+        ByteBuffer chunk = pool.acquire(FILE_CHUNK_SIZE);
+        try (channel) {
+            while (count > 0) {
+                chunk.clear();
+                if (chunk.remaining() > count) {
+                    chunk.limit((int) count);
+                }
+                int amount = channel.read(chunk, position);
+                if (amount <= 0) {
+                    throw new EOFException("File was truncated while being sent");
+                }
+                position += amount;
+                count -= amount;
+                chunk.flip();
+                mSSLSupport.processOutput(chunk);
+                awaitOutputDrain();
+            }
+        } finally {
+            pool.release(chunk);
+        }
+    }
+
+    /**
+     * Blocks until this {@link Session}'s out-bound queue has been drained down to a small number
+     * of entries. Gives up with an {@link IOException} if the {@link Session} is being closed due
+     * to an error or a timeout, or if nothing has been written for longer than the write timeout.
+     */
+    final void awaitOutputDrain() throws IOException {
+        // An explicit lock is used rather than a monitor so that a virtual thread waiting here
+        // doesn't pin its carrier thread.
+        mDrainLock.lock();
+        try {
+            while (mOutboundCount.get() > MAXIMUM_QUEUED_CHUNKS) {
+                if (mClosing || !mChannel.isOpen()) {
+                    throw new EOFException("Session closed while sending");
+                }
+                long writeTimeout = mTimeouts.getWrite();
+                if (writeTimeout > 0 && System.currentTimeMillis() - mLastWrite > writeTimeout) {
+                    throw new SocketTimeoutException("Timed out while sending");
+                }
+                mDrainWaiting = true;
+                try {
+                    mDrained.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException exception) {
+                    throw new InterruptedIOException();
+                }
+            }
+            mDrainWaiting = false;
+        } finally {
+            mDrainLock.unlock();
+        }
+    }
+
+    /**
+     * Places already-encoded data that was borrowed from the server's {@link BufferPool} directly
+     * into this {@link Session}'s out-bound queue. The buffer is returned to the pool once it has
+     * been sent or discarded.
+     *
+     * @param buffer The data to send, ready for reading. Ownership of the buffer passes to this
+     *               {@link Session}.
+     */
+    final void queuePooledOutput(ByteBuffer buffer) {
+        queueOutput(new PooledBuffer(buffer));
+    }
+
+    /**
+     * Places already-encoded data directly into this {@link Session}'s out-bound queue. Any
+     * number of threads may call this concurrently; only the call that makes the queue non-empty
+     * has to notify the selector.
+     *
+     * @param data The data to send, either a {@link ByteBuffer}, a {@link PooledBuffer} or a {@link
+     *             FileRegion}. A copy of the data is not made, so do not modify it once passed to
+     *             this method.
+     */
+    final void queueOutput(Object data) {
+        // The count is raised before the data becomes visible and lowered only after it has been
+        // removed, so it never under-reports what the selector has left to write.
+        if (mOutboundCount.get() == 0) {
+            // The write timeout is measured from when data starts waiting
+            mLastWrite = System.currentTimeMillis();
+        }
+        boolean wasEmpty = mOutboundCount.getAndIncrement() == 0;
+        mOutbound.add(data);
+        if (wasEmpty) {
+            mSelector.updateInterest(this);
+        }
+    }
+
+    /**
+     * Places several already-encoded buffers into this {@link Session}'s out-bound queue with a
+     * single insertion, so they stay together even when other threads are sending too.
+     *
+     * @param buffers The data to send, in order. A copy of the data is not made, so do not modify
+     *                it once passed to this method.
+     */
+    private void queueOutput(ByteBuffer[] buffers) {
+        if (buffers.length == 0) {
+            return;
+        }
+        if (mOutboundCount.get() == 0) {
+            mLastWrite = System.currentTimeMillis();
+        }
+        boolean wasEmpty = mOutboundCount.getAndAdd(buffers.length) == 0;
+        mOutbound.addAll(Arrays.asList(buffers));
+        if (wasEmpty) {
+            mSelector.updateInterest(this);
+        }
+    }
+
+    /** @return {@code true} if there is data waiting to be sent. */
+    final boolean hasPendingOutput() {
+        return mOutboundCount.get() > 0;
+    }
+
+    /** @return The number of buffers and file regions waiting to be sent. */
+    final int getPendingOutputCount() {
+        return mOutboundCount.get();
+    }
+
+    /**
+     * Called by the owning {@link NioSelector} to write as much pending data as the channel will
+     * currently accept. Consecutive buffers at the front of the queue are sent with a single
+     * gathering write; a {@link FileRegion} at the front of the queue is transferred on its own.
+     *
+     * @param buffers Scratch space for the gathering write. Cleared again before returning.
+     */
+    final void writeOutput(ByteBuffer[] buffers) throws IOException {
+        int count = 0;
+        for (Object data : mOutbound) {
+            if (data instanceof FileRegion) {
+                if (count == 0) {
+                    if (((FileRegion) data).transferTo(mChannel) > 0) {
+                        outputSent();
+                    }
+                    return;
+                }
+                break;
+            }
+            if (count == buffers.length) {
+                break;
+            }
+            buffers[count++] = data instanceof PooledBuffer ? ((PooledBuffer) data).mBuffer : (ByteBuffer) data;
+        }
+        if (count > 0) {
+            try {
+                if (mChannel.write(buffers, 0, count) > 0) {
+                    outputSent();
+                }
+            } finally {
+                Arrays.fill(buffers, 0, count, null);
+            }
+        }
+    }
+
+    private void outputSent() {
+        long now = System.currentTimeMillis();
+        mLastWrite = now;
+        mLastActivity = now;
+    }
+
+    /**
+     * Called by the owning {@link NioSelector} after a write to discard fully sent data.
+     *
+     * @return {@code true} if there is still data waiting to be sent.
+     */
+    final boolean completeOutput() {
+        int     pending = mOutboundCount.get();
+        boolean removed = false;
+        Object  data;
+        while ((data = mOutbound.peek()) != null && isSent(data)) {
+            mOutbound.poll();
+            release(data);
+            pending = mOutboundCount.decrementAndGet();
+            removed = true;
+        }
+        if (mDrainWaiting) {
+            signalDrained();
+        }
+        if (removed && pending == 0) {
+            try {
+                mPersonality.outputDrained();
+            } catch (Throwable throwable) {
+                Log.error(this, throwable);
+            }
+            pending = mOutboundCount.get();
+        }
+        return pending > 0;
+    }
+
+    private static boolean isSent(Object data) {
+        if (data instanceof FileRegion) {
+            return ((FileRegion) data).isComplete();
+        }
+        if (data instanceof PooledBuffer) {
+            return !((PooledBuffer) data).mBuffer.hasRemaining();
+        }
+        return !((ByteBuffer) data).hasRemaining();
+    }
+
+    private void release(Object data) {
+        if (data instanceof FileRegion) {
+            ((FileRegion) data).close();
+        } else if (data instanceof PooledBuffer) {
+            mServer.getBufferPool().release(((PooledBuffer) data).mBuffer);
         }
     }
 
+    /** Throws away any data waiting to be sent. */
+    final void discardOutput() {
+        Object data;
+        while ((data = mOutbound.poll()) != null) {
+            release(data);
+            mOutboundCount.decrementAndGet();
+        }
+        signalDrained();
+    }
+
+    private void signalDrained() {
+        mDrainLock.lock();
+        try {
+            mDrained.signalAll();
+        } finally {
+            mDrainLock.unlock();
+        }
+    }
+
+    /** @param selector The {@link NioSelector} that owns this {@link Session}'s channel. */
+    final void setSelector(NioSelector selector) {
+        mSelector = selector;
+    }
+
     /** @return The associated {@link NioServer}. */
     public final NioServer getServer() {
         return mServer;
@@ -207,7 +623,7 @@ public class Session implements Runnable, Log.Context {
             try {
                 // Wait for any pending writes to finish, but not forever
                 long maxWait = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
-                while (mServer.hasPendingWrite(mChannel) && System.currentTimeMillis() < maxWait) {
+                while (hasPendingOutput() && System.currentTimeMillis() < maxWait) {
                     Thread.sleep(50);
                 }
             } catch (InterruptedException exception) {
@@ -219,6 +635,7 @@ public class Session implements Runnable, Log.Context {
         } catch (IOException ioe) {
             Log.error(this, ioe);
         }
+        discardOutput();
         mServer.sessionClosed(this);
     }
 
@@ -227,6 +644,15 @@ public class Session implements Runnable, Log.Context {
         return getHumanReadableAddress();
     }
 
+    /** A buffer in the out-bound queue that belongs to the server's {@link BufferPool}. */
+    private static class PooledBuffer {
+        ByteBuffer mBuffer;
+
+        PooledBuffer(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+    }
+
     private static class Request {
         private ByteBuffer mBuffer;
         private boolean    mDueToError;
@@ -238,10 +664,7 @@ public class Session implements Runnable, Log.Context {
 
         Request(ByteBuffer buffer) {
             // Input request
-            buffer.flip();
-            mBuffer = ByteBuffer.allocate(buffer.limit());
-            mBuffer.put(buffer);
-            mBuffer.flip();
+            mBuffer = buffer;
         }
 
         final boolean isInput() {
@@ -22,4 +22,11 @@ public interface SessionFactory {
      * @return The newly created {@link Session}.
      */
     Session createSession(NioServer server, SocketChannel channel) throws IOException;
+
+    /**
+     * @return The {@link SessionTimeouts} to apply to {@link Session}s created by this factory.
+     */
+    default SessionTimeouts getTimeouts() {
+        return SessionTimeouts.DEFAULT;
+    }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lengths of time, in milliseconds, that a {@link Session} may go without making progress
+ * before it is closed. A value of {@code 0} disables that particular check.
+ */
+public final class SessionTimeouts {
+    /** Closes a session after two minutes without any activity. */
+    public static final SessionTimeouts DEFAULT = new SessionTimeouts(TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES), 0, 0);
+    private             long            mIdle;
+    private             long            mRead;
+    private             long            mWrite;
+
+    /**
+     * @param idle  The amount of time a session may go without either sending or receiving data.
+     * @param read  The amount of time a session may go without receiving data, regardless of
+     *              whether it is sending any.
+     * @param write The amount of time a session may have data waiting to be sent without the remote
+     *              end accepting any of it.
+     */
+    public SessionTimeouts(long idle, long read, long write) {
+        if (idle < 0 || read < 0 || write < 0) {
+            throw new IllegalArgumentException("Timeouts may not be negative");
+        }
+        mIdle = idle;
+        mRead = read;
+        mWrite = write;
+    }
+
+    /** @return The amount of time a session may go without either sending or receiving data. */
+    public long getIdle() {
+        return mIdle;
+    }
+
+    /** @return The amount of time a session may go without receiving data. */
+    public long getRead() {
+        return mRead;
+    }
+
+    /**
+     * @return The amount of time a session may have data waiting to be sent without the remote end
+     *         accepting any of it.
+     */
+    public long getWrite() {
+        return mWrite;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionTimeouts [idle=" + mIdle + ", read=" + mRead + ", write=" + mWrite + "]";
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Closes {@link Session}s that have timed out, using a hashed timing wheel. Each {@link Session}
+ * occupies a single slot, chosen by when it is next due to expire. Activity on a {@link Session}
+ * doesn't touch the wheel at all; instead, when its slot comes up, the {@link Session} is either
+ * closed or moved to the slot for its new deadline. The work done on each tick is therefore
+ * proportional to the number of {@link Session}s that were due, not to the total number of
+ * {@link Session}s.
+ */
+final class TimingWheel implements Runnable {
+    private static final int                            WHEEL_SIZE         = 1024;
+    private static final int                            WHEEL_MASK         = WHEEL_SIZE - 1;
+    private static final long                           TICK_DURATION      = 250;
+    private              Entry[]                        mSlots             = new Entry[WHEEL_SIZE];
+    private              ConcurrentLinkedQueue<Session> mPendingSchedules  = new ConcurrentLinkedQueue<>();
+    private              ConcurrentLinkedQueue<Session> mPendingCancels    = new ConcurrentLinkedQueue<>();
+    private              long                           mStart;
+    private              long                           mTick;
+
+    /**
+     * Asks that the specified {@link Session} be placed on the wheel, or moved if it already is,
+     * according to its current deadline. Takes effect by the next tick.
+     *
+     * @param session The {@link Session} to schedule.
+     */
+    void schedule(Session session) {
+        mPendingSchedules.add(session);
+    }
+
+    /**
+     * Asks that the specified {@link Session} be removed from the wheel. Takes effect by the next
+     * tick.
+     *
+     * @param session The {@link Session} to remove.
+     */
+    void cancel(Session session) {
+        mPendingCancels.add(session);
+    }
+
+    @Override
+    public void run() {
+        mStart = System.currentTimeMillis();
+        while (true) {
+            try {
+                long delay = mStart + (mTick + 1) * TICK_DURATION - System.currentTimeMillis();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+            } catch (InterruptedException exception) {
+                break;
+            }
+            long    now = System.currentTimeMillis();
+            Session session;
+            while ((session = mPendingSchedules.poll()) != null) {
+                remove(session);
+                add(session, now);
+            }
+            while ((session = mPendingCancels.poll()) != null) {
+                remove(session);
+            }
+            // Catch up on any ticks that were missed, e.g. if the system was suspended
+            long target = (now - mStart) / TICK_DURATION;
+            while (mTick < target) {
+                expire(++mTick, now);
+            }
+        }
+    }
+
+    private void add(Session session, long now) {
+        long deadline = session.getDeadline(now);
+        if (deadline == Long.MAX_VALUE) {
+            // No timeouts apply
+            return;
+        }
+        // Round up, so that the session is never looked at before its deadline
+        long  tick  = Math.max((deadline - mStart + TICK_DURATION - 1) / TICK_DURATION, mTick + 1);
+        int   slot  = (int) (tick & WHEEL_MASK);
+        Entry entry = session.getTimerEntry();
+        if (entry == null) {
+            entry = new Entry(session);
+            session.setTimerEntry(entry);
+        }
+        entry.mTick = tick;
+        entry.mSlot = slot;
+        entry.mPrevious = null;
+        entry.mNext = mSlots[slot];
+        if (entry.mNext != null) {
+            entry.mNext.mPrevious = entry;
+        }
+        mSlots[slot] = entry;
+    }
+
+    private void remove(Session session) {
+        Entry entry = session.getTimerEntry();
+        if (entry != null && entry.mSlot != -1) {
+            unlink(entry);
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.mPrevious != null) {
+            entry.mPrevious.mNext = entry.mNext;
+        } else {
+            mSlots[entry.mSlot] = entry.mNext;
+        }
+        if (entry.mNext != null) {
+            entry.mNext.mPrevious = entry.mPrevious;
+        }
+        entry.mPrevious = null;
+        entry.mNext = null;
+        entry.mSlot = -1;
+    }
+
+    private void expire(long tick, long now) {
+        Entry entry = mSlots[(int) (tick & WHEEL_MASK)];
+        while (entry != null) {
+            // Re-added entries always go to the front of a slot, so they won't be seen again here
+            Entry next = entry.mNext;
+            if (entry.mTick <= tick) {
+                unlink(entry);
+                Session session = entry.mSession;
+                if (session.getDeadline(now) <= now) {
+                    session.timedOut();
+                } else {
+                    add(session, now);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    /** A {@link Session}'s place on the wheel. Only ever touched by the wheel's own thread. */
+    static final class Entry {
+        Session mSession;
+        Entry   mPrevious;
+        Entry   mNext;
+        long    mTick;
+        int     mSlot = -1;
+
+        Entry(Session session) {
+            mSession = session;
+        }
+    }
+}
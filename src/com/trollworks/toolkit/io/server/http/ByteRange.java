@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** An inclusive range of bytes within a resource, as requested via the HTTP Range header. */
+public class ByteRange {
+    /** The maximum number of ranges honored in a single request. */
+    public static final int  MAXIMUM_RANGES = 16;
+    private final       long mFirst;
+    private final       long mLast;
+
+    /**
+     * @param first The offset of the first byte.
+     * @param last  The offset of the last byte.
+     */
+    public ByteRange(long first, long last) {
+        mFirst = first;
+        mLast = last;
+    }
+
+    /**
+     * Parses the value of a HTTP Range header.
+     *
+     * @param header The header value, e.g. {@code bytes=0-499,-200}.
+     * @param size   The size of the resource the ranges apply to.
+     * @return The satisfiable ranges, which will be empty if none of the requested ranges could be
+     *         satisfied, or {@code null} if the header is malformed or asks for too many ranges and
+     *         should therefore be ignored.
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        String[]        specs  = header.substring(6).split(",");
+        if (specs.length > MAXIMUM_RANGES) {
+            return null;
+        }
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                long first;
+                long last;
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(size - suffix, 0);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash + 1 < spec.length()) {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, size - 1);
+                    } else {
+                        last = size - 1;
+                    }
+                }
+                if (first < size && first <= last) {
+                    ranges.add(new ByteRange(first, last));
+                }
+            } catch (NumberFormatException exception) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /** @return The offset of the first byte. */
+    public final long getFirst() {
+        return mFirst;
+    }
+
+    /** @return The offset of the last byte. */
+    public final long getLast() {
+        return mLast;
+    }
+
+    /** @return The number of bytes in this range. */
+    public final long getLength() {
+        return mLast - mFirst + 1;
+    }
+
+    /**
+     * @param size The size of the complete resource.
+     * @return The value to use for a Content-Range header.
+     */
+    public final String toContentRange(long size) {
+        return "bytes " + mFirst + "-" + mLast + "/" + size;
+    }
+
+    @Override
+    public String toString() {
+        return mFirst + "-" + mLast;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The attributes of a file under a {@link HttpSessionFactory}'s root that are needed to serve it,
+ * gathered with a single stat call.
+ */
+final class FileMetadata {
+    private Path    mPath;
+    private boolean mExists;
+    private boolean mDirectory;
+    private boolean mReadable;
+    private long    mSize;
+    private long    mLastModified;
+    private String  mMimeType;
+    private String  mETag;
+    private long    mCheckedAt;
+
+    /**
+     * @param path The path to examine. Should be absolute and normalized.
+     * @return The {@link FileMetadata} for the path.
+     */
+    static FileMetadata read(Path path) throws IOException {
+        FileMetadata metadata = new FileMetadata();
+        metadata.mPath = path;
+        metadata.mCheckedAt = System.currentTimeMillis();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException exception) {
+            return metadata;
+        }
+        metadata.mExists = true;
+        metadata.mDirectory = attributes.isDirectory();
+        if (!metadata.mDirectory) {
+            metadata.mReadable = Files.isReadable(path);
+            metadata.mSize = attributes.size();
+            metadata.mLastModified = attributes.lastModifiedTime().toMillis();
+            String name = path.getFileName().toString();
+            int    dot  = name.lastIndexOf('.');
+            if (dot != -1 && dot + 1 < name.length()) {
+                name = name.substring(dot + 1);
+            }
+            metadata.mMimeType = MimeTypes.lookup(name);
+            metadata.mETag = "\"" + Long.toHexString(metadata.mLastModified) + "-" + Long.toHexString(metadata.mSize) + "\"";
+        }
+        return metadata;
+    }
+
+    /** @return The path. */
+    Path getPath() {
+        return mPath;
+    }
+
+    /** @return {@code true} if the path existed when it was examined. */
+    boolean exists() {
+        return mExists;
+    }
+
+    /** @return {@code true} if the path is a directory. */
+    boolean isDirectory() {
+        return mDirectory;
+    }
+
+    /** @return {@code true} if the file could be opened for reading when it was examined. */
+    boolean isReadable() {
+        return mReadable;
+    }
+
+    /** @return The size of the file, in bytes. */
+    long getSize() {
+        return mSize;
+    }
+
+    /** @return The last modification time of the file, in milliseconds since the epoch. */
+    long getLastModified() {
+        return mLastModified;
+    }
+
+    /** @return The mime type of the file, derived from its extension. */
+    String getMimeType() {
+        return mMimeType;
+    }
+
+    /** @return The entity tag for the file, including the surrounding quotes. */
+    String getETag() {
+        return mETag;
+    }
+
+    /**
+     * @param now    The current time, in milliseconds since the epoch.
+     * @param maxAge The number of milliseconds the data may be trusted for.
+     * @return {@code true} if this data was gathered too long ago and should be re-examined.
+     */
+    boolean isStale(long now, long maxAge) {
+        return now - mCheckedAt > maxAge;
+    }
+}
@@ -17,47 +17,51 @@ import com.trollworks.toolkit.io.server.Session;
 import com.trollworks.toolkit.io.server.websocket.WebSocket;
 import com.trollworks.toolkit.io.server.websocket.WebSocketFactory;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /** A {@link Personality} for handling HTTP connections. */
 public class Http extends Personality {
-    private static final int                       MAXIMUM_HEADER_SIZE  = 8 * 1024;
-    private static final int                       MAXIMUM_CONTENT_SIZE = 1024 * 1024;
-    private static final Pattern                   REQUEST_PATTERN      = Pattern.compile("^(\\S+)\\s+(\\S+)\\s+HTTP/(\\d+)\\.(\\d+)$");
+    private static final int                       MAXIMUM_CONTENT_SIZE  = 1024 * 1024;
+    private static final int                       MAXIMUM_RETAINED_BODY = 64 * 1024;
+    private static final byte[]                    EMPTY_BODY            = new byte[0];
+    private static final byte[]                    CONTINUE_RESPONSE     = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int                       CHUNK_SIZE            = 0;
+    private static final int                       CHUNK_EXTENSION       = 1;
+    private static final int                       CHUNK_DATA            = 2;
+    private static final int                       CHUNK_DATA_END        = 3;
+    private static final int                       CHUNK_TRAILER         = 4;
     private              HttpSessionFactory        mFactory;
-    private              int                       mState;
-    private              int                       mContentSize;
-    private              ByteArrayOutputStream     mBuffer              = new ByteArrayOutputStream(MAXIMUM_HEADER_SIZE);
-    private              byte[]                    mBody;
+    private              HttpRequestParser         mParser               = new HttpRequestParser();
+    private              boolean                   mInBody;
+    private              boolean                   mChunked;
+    private              int                       mChunkState;
+    private              int                       mChunkLineLength;
+    private              long                      mContentRemaining;
+    private              HttpRequestHandler        mHandler;
+    private              HttpRouteMatch            mRouteMatch           = new HttpRouteMatch();
+    private              boolean                   mDiscardInput;
+    private              byte[]                    mBody                 = EMPTY_BODY;
+    private              int                       mBodyLength;
     private              String                    mUri;
-    private              HttpMethod                mMethod;
-    private              int                       mVersionMajor;
-    private              int                       mVersionMinor;
-    private              Map<String, List<String>> mParameters          = new HashMap<>();
-    private              Map<String, List<String>> mHeaders             = new HashMap<>();
+    private              Map<String, List<String>> mParameters           = new HashMap<>();
+    private              Map<String, List<String>> mHeaders;
 
     /** @param factory The factory to use when creating new {@link Session}s. */
     public Http(HttpSessionFactory factory) {
@@ -70,25 +74,150 @@ public class Http extends Personality {
     }
 
     private void reset() {
-        mState = 0;
-        mContentSize = 0;
-        mBuffer = new ByteArrayOutputStream(MAXIMUM_HEADER_SIZE);
-        mBody = null;
+        mParser.reset();
+        mInBody = false;
+        mChunked = false;
+        mContentRemaining = 0;
+        mHandler = null;
+        mRouteMatch.reset(null);
+        if (mBody.length > MAXIMUM_RETAINED_BODY) {
+            mBody = EMPTY_BODY;
+        }
+        mBodyLength = 0;
         mUri = null;
-        mMethod = null;
-        mVersionMajor = 0;
-        mVersionMinor = 0;
-        mParameters = new HashMap<>();
-        mHeaders = new HashMap<>();
+        mParameters.clear();
+        mHeaders = null;
     }
 
     @Override
     public void processInput(ByteBuffer buffer) throws IOException {
+        if (mDiscardInput) {
+            buffer.position(buffer.limit());
+            return;
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                boolean complete;
+                if (mInBody) {
+                    complete = mChunked ? readChunkedBody(buffer) : readBody(buffer);
+                    if (complete && !(mHandler instanceof HttpStreamingRequestHandler)) {
+                        parseBody();
+                    }
+                } else {
+                    complete = mParser.parse(buffer) && parseHeaders();
+                }
+                if (complete) {
+                    processRequest();
+                    reset();
+                    if (getSession().getPersonality() != this) {
+                        // Upgraded; any remaining data belongs to the new personality
+                        return;
+                    }
+                }
+            }
+        } catch (HttpResponseException exception) {
+            // The remainder of the request can no longer be framed, so nothing further that
+            // arrives on this connection can be trusted.
+            HttpResponse response = new HttpResponse(exception.getStatus(), MimeTypes.TEXT, exception.getMessage());
+            response.send(this);
+            requestClose(false);
+            mDiscardInput = true;
+            buffer.position(buffer.limit());
+        }
+    }
+
+    private boolean readBody(ByteBuffer buffer) throws IOException {
+        int amount = (int) Math.min(buffer.remaining(), mContentRemaining);
+        deliverBody(buffer, amount);
+        mContentRemaining -= amount;
+        return mContentRemaining == 0;
+    }
+
+    private boolean readChunkedBody(ByteBuffer buffer) throws IOException {
         while (buffer.hasRemaining()) {
-            if (parse(buffer.get())) {
-                processRequest();
-                reset();
+            if (mChunkState == CHUNK_DATA) {
+                if (readBody(buffer)) {
+                    mChunkState = CHUNK_DATA_END;
+                }
+            } else {
+                byte ch = buffer.get();
+                if (ch == '\n') {
+                    if (endChunkLine()) {
+                        return true;
+                    }
+                } else if (ch != '\r') {
+                    addToChunkLine(ch);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addToChunkLine(byte ch) throws IOException {
+        switch (mChunkState) {
+        case CHUNK_SIZE:
+            int digit = Character.digit(ch, 16);
+            if (digit == -1) {
+                if (ch != ';' && ch != ' ' && ch != '\t' || mChunkLineLength == 0) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+                }
+                mChunkState = CHUNK_EXTENSION;
+            } else {
+                if (mContentRemaining > Long.MAX_VALUE >> 4) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+                }
+                mContentRemaining = mContentRemaining << 4 | digit;
+                mChunkLineLength++;
             }
+            break;
+        case CHUNK_DATA_END:
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Missing chunk terminator");
+        default:
+            // Chunk extensions and trailers are ignored
+            mChunkLineLength++;
+            break;
+        }
+    }
+
+    /** @return {@code true} if the end of the chunked body has been reached. */
+    private boolean endChunkLine() throws IOException {
+        switch (mChunkState) {
+        case CHUNK_SIZE:
+        case CHUNK_EXTENSION:
+            if (mChunkLineLength == 0) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+            }
+            mChunkState = mContentRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+            break;
+        case CHUNK_DATA_END:
+            mChunkState = CHUNK_SIZE;
+            break;
+        default:
+            if (mChunkLineLength == 0) {
+                return true;
+            }
+            break;
+        }
+        mChunkLineLength = 0;
+        return false;
+    }
+
+    private void deliverBody(ByteBuffer buffer, int amount) throws IOException {
+        if (mHandler instanceof HttpStreamingRequestHandler) {
+            ByteBuffer data = buffer.slice();
+            data.limit(amount);
+            buffer.position(buffer.position() + amount);
+            ((HttpStreamingRequestHandler) mHandler).handleRequestBody(this, data);
+        } else {
+            int needed = mBodyLength + amount;
+            if (needed > mBody.length) {
+                if (needed > MAXIMUM_CONTENT_SIZE) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Content too large");
+                }
+                mBody = Arrays.copyOf(mBody, Math.min(Math.max(needed, mBody.length * 2), MAXIMUM_CONTENT_SIZE));
+            }
+            buffer.get(mBody, mBodyLength, amount);
+            mBodyLength = needed;
         }
     }
 
@@ -105,15 +234,19 @@ public class Http extends Personality {
                 return;
             }
 
-            HttpRequestHandler handler = mFactory.getHttpHandler(mUri);
-            if (handler != null) {
-                handler.handleHttpRequest(this).send(this);
+            if (mHandler != null) {
+                mHandler.handleHttpRequest(this).send(this);
+            } else if (mRouteMatch.getAllow() != null) {
+                HttpResponse response = new HttpResponse(HttpStatusCode.METHOD_NOT_ALLOWED, MimeTypes.TEXT, "Method not allowed");
+                response.addHeader("Allow", mRouteMatch.getAllow());
+                response.send(this);
             } else {
-                if (!Files.exists(path)) {
+                FileMetadata metadata = mFactory.getFileMetadata(path);
+                if (!metadata.exists()) {
                     throw new HttpResponseException(HttpStatusCode.NOT_FOUND, "File not found");
                 }
 
-                if (Files.isDirectory(path)) {
+                if (metadata.isDirectory()) {
                     if (!mUri.endsWith("/")) {
                         HttpResponse response = new HttpResponse(HttpStatusCode.REDIRECT, MimeTypes.HTML, "<html><body>Redirected: <a href=\"" + mUri + "/\">" + mUri + "/</a></body></html>");
                         response.addHeader("Location", mUri + "/");
@@ -121,35 +254,19 @@ public class Http extends Personality {
                         requestClose(false);
                         return;
                     }
-                    handler = mFactory.getHttpHandler(mUri + "index.html");
+                    HttpRequestHandler handler = mFactory.getHttpHandler(getMethod(), mUri + "index.html", mRouteMatch);
                     if (handler != null) {
                         handler.handleHttpRequest(this).send(this);
                         closeIfNotKeepAlive();
                         return;
                     }
-                    Path newPath = path.resolve("index.html");
-                    if (Files.exists(newPath)) {
-                        path = newPath;
-                    } else {
+                    metadata = mFactory.getFileMetadata(path.resolve("index.html"));
+                    if (!metadata.exists() || metadata.isDirectory()) {
                         throw new HttpResponseException(HttpStatusCode.FORBIDDEN, "FORBIDDEN: No directory listings");
                     }
                 }
 
-                try {
-                    String name = path.getFileName().toString();
-                    int    dot  = name.lastIndexOf('.');
-                    if (dot != -1 && dot + 1 < name.length()) {
-                        name = name.substring(dot + 1);
-                    }
-                    String       mime     = MimeTypes.lookup(name);
-                    long         size     = Files.size(path);
-                    HttpResponse response = new HttpResponse(HttpStatusCode.OK, mime, path);
-                    response.addHeader("Content-Length", Long.toString(size));
-                    response.setRequestMethod(mMethod);
-                    response.send(this);
-                } catch (IOException ioe) {
-                    throw new HttpResponseException(HttpStatusCode.FORBIDDEN, "FORBIDDEN: Reading file failed");
-                }
+                sendFile(metadata);
             }
             closeIfNotKeepAlive();
         } catch (SocketTimeoutException timeoutEx) {
@@ -170,6 +287,106 @@ public class Http extends Personality {
         }
     }
 
+    private void sendFile(FileMetadata metadata) throws IOException {
+        if (!metadata.isReadable()) {
+            throw new HttpResponseException(HttpStatusCode.FORBIDDEN, "FORBIDDEN: Reading file failed");
+        }
+        String etag         = metadata.getETag();
+        String lastModified = HttpResponse.formatDate(metadata.getLastModified());
+        if (isNotModified(metadata)) {
+            HttpResponse response = new HttpResponse(HttpStatusCode.NOT_MODIFIED, null, null);
+            response.addHeader("ETag", etag);
+            response.addHeader("Last-Modified", lastModified);
+            response.send(this);
+            return;
+        }
+        String           range = getFirstHeader("range");
+        StaticAssetCache cache = mFactory.getStaticAssetCache();
+        if (cache != null && range == null && cache.send(this, metadata, acceptsGzip(), getMethod() == HttpMethod.HEAD)) {
+            return;
+        }
+        HttpResponse response = new HttpResponse(HttpStatusCode.OK, metadata.getMimeType(), metadata.getPath());
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", lastModified);
+        response.addHeader("Accept-Ranges", "bytes");
+        response.setRequestMethod(getMethod());
+        if (range != null && getMethod() == HttpMethod.GET && isIfRangeSatisfied(metadata)) {
+            List<ByteRange> ranges = ByteRange.parse(range, metadata.getSize());
+            if (ranges != null) {
+                if (ranges.isEmpty()) {
+                    response = new HttpResponse(HttpStatusCode.RANGE_NOT_SATISFIABLE, MimeTypes.TEXT, "Requested range not satisfiable");
+                    response.addHeader("Content-Range", "bytes */" + metadata.getSize());
+                } else {
+                    response.setStatus(HttpStatusCode.PARTIAL_CONTENT);
+                    response.setRanges(ranges);
+                }
+            }
+        }
+        response.send(this);
+    }
+
+    private boolean acceptsGzip() {
+        String header = getFirstHeader("accept-encoding");
+        if (header != null) {
+            for (String one : header.split(",")) {
+                String[] parts = one.split(";");
+                if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                    for (int i = 1; i < parts.length; i++) {
+                        String param = parts[i].trim();
+                        if (param.startsWith("q=")) {
+                            try {
+                                return Double.parseDouble(param.substring(2)) > 0;
+                            } catch (NumberFormatException exception) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isNotModified(FileMetadata metadata) {
+        String header = getFirstHeader("if-none-match");
+        if (header != null) {
+            // If-Modified-Since must be ignored when If-None-Match is present
+            for (String one : header.split(",")) {
+                one = one.trim();
+                if (one.startsWith("W/")) {
+                    one = one.substring(2);
+                }
+                if ("*".equals(one) || one.equals(metadata.getETag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        header = getFirstHeader("if-modified-since");
+        if (header != null) {
+            long since = HttpResponse.parseDate(header);
+            return since != -1 && metadata.getLastModified() / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    private boolean isIfRangeSatisfied(FileMetadata metadata) {
+        String header = getFirstHeader("if-range");
+        if (header == null) {
+            return true;
+        }
+        if (header.startsWith("\"")) {
+            return header.equals(metadata.getETag());
+        }
+        if (header.startsWith("W/")) {
+            // Weak validators may not be used with If-Range
+            return false;
+        }
+        long date = HttpResponse.parseDate(header);
+        return date != -1 && metadata.getLastModified() / 1000 == date / 1000;
+    }
+
     private void closeIfNotKeepAlive() {
         if ("close".equals(getFirstHeader("connection"))) {
             requestClose(false);
@@ -195,7 +412,7 @@ public class Http extends Personality {
         if (key == null) {
             throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid key");
         }
-        WebSocketFactory factory = mFactory.getWebSocketFactory(mUri);
+        WebSocketFactory factory = mFactory.getWebSocketFactory(mUri, mRouteMatch);
         if (factory == null) {
             throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: No handler");
         }
@@ -207,138 +424,78 @@ public class Http extends Personality {
         MessageDigest md = MessageDigest.getInstance("SHA1");
         md.update((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8));
         response.addHeader("Sec-WebSocket-Accept", Base64.getEncoder().encodeToString(md.digest()));
+        String extensions = ws.negotiateExtensions(getHeader("sec-websocket-extensions"));
+        if (extensions != null) {
+            response.addHeader("Sec-WebSocket-Extensions", extensions);
+        }
         response.send(this);
         ws.startConnection();
     }
 
-    private boolean parse(byte b) throws IOException {
-        mBuffer.write(b & 0xFF);
-        switch (mState) {
-        case 0:
-            if (b == '\r') {
-                mState = 1;
-            }
-            break;
-        case 1:
-            if (b == '\n') {
-                mState = 2;
-            } else if (b != '\r') {
-                mState = 0;
+    /** @return {@code true} if the request is complete, i.e. there is no body to read. */
+    private boolean parseHeaders() throws IOException {
+        mUri = mParser.getUri();
+        int index = mUri.indexOf('?');
+        if (index != -1) {
+            if (mUri.length() > index + 1) {
+                decodeParameters(mUri.substring(index + 1));
             }
-            break;
-        case 2:
-            mState = b == '\r' ? 3 : 0;
-            break;
-        case 3:
-            if (b == '\n') {
-                mState = 4;
-                parseHeaders();
-                return mContentSize == 0;
-            }
-            mState = b == '\r' ? 1 : 0;
-            break;
-        case 4:
-            if (mContentSize != -1 && mBuffer.size() == mContentSize) {
-                parseBody();
-                return true;
-            }
-            return false;
-        default:
-            throw new EOFException("Read past end of request");
-        }
-        if (mBuffer.size() > MAXIMUM_HEADER_SIZE) {
-            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Header too large");
+            mUri = mUri.substring(0, index);
         }
-        return false;
-    }
+        mUri = decodePercent(mUri);
 
-    private void parseHeaders() throws IOException {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mBuffer.toByteArray()), StandardCharsets.UTF_8))) {
-            String line = in.readLine();
-            if (line == null) {
-                throw new SocketTimeoutException();
-            }
-
-            Matcher matcher = REQUEST_PATTERN.matcher(line);
-            if (!matcher.find() || matcher.groupCount() != 4) {
-                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
-            }
+        if (!hasHeader("upgrade")) {
+            mHandler = mFactory.getHttpHandler(getMethod(), mUri, mRouteMatch);
+        }
 
-            mMethod = HttpMethod.lookup(matcher.group(1));
-            if (mMethod == null) {
-                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        String hdr = getFirstHeader("transfer-encoding");
+        if (hdr != null) {
+            // Content-Length must be ignored when Transfer-Encoding is present
+            if (!"chunked".equalsIgnoreCase(hdr.trim())) {
+                throw new HttpResponseException(HttpStatusCode.NOT_IMPLEMENTED, "NOT IMPLEMENTED: Unsupported transfer encoding");
             }
-
-            mUri = matcher.group(2);
-            mVersionMajor = Integer.parseInt(matcher.group(3));
-            mVersionMinor = Integer.parseInt(matcher.group(4));
-
-            int index = mUri.indexOf('?');
-            if (index != -1) {
-                if (mUri.length() > index + 1) {
-                    decodeParameters(mUri.substring(index + 1));
+            mChunked = true;
+            mChunkState = CHUNK_SIZE;
+            mChunkLineLength = 0;
+        } else {
+            hdr = getFirstHeader("content-length");
+            if (hdr != null) {
+                try {
+                    mContentRemaining = Math.max(Long.parseLong(hdr.trim()), 0);
+                } catch (NumberFormatException exception) {
+                    // No support for indeterminate content size for now, as I don't need it.
+                    // Assume zero in this case.
+                    mContentRemaining = 0;
                 }
-                mUri = mUri.substring(0, index);
             }
-            mUri = decodePercent(mUri);
-
-            line = in.readLine();
-            while (line != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    break;
-                }
-                index = line.indexOf(':');
-                if (index != -1) {
-                    String       name = line.substring(0, index).trim().toLowerCase();
-                    List<String> list = mHeaders.get(name);
-                    if (list == null) {
-                        list = new ArrayList<>();
-                        mHeaders.put(name, list);
-                    }
-                    if (++index < line.length()) {
-                        list.add(line.substring(index).trim());
-                    }
+            if (!(mHandler instanceof HttpStreamingRequestHandler)) {
+                if (mContentRemaining > MAXIMUM_CONTENT_SIZE) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Content too large");
                 }
-                line = in.readLine();
-            }
-            mBuffer.reset();
-            String hdr = getFirstHeader("content-length");
-            if (hdr == null) {
-                mContentSize = 0;
-            } else {
-                try {
-                    mContentSize = Integer.parseInt(hdr);
-                    if (mContentSize > 0) {
-                        if (mContentSize > MAXIMUM_CONTENT_SIZE) {
-                            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Content too large");
-                        }
-                        if (mContentSize > MAXIMUM_HEADER_SIZE) {
-                            mBuffer = new ByteArrayOutputStream(mContentSize);
-                        }
-                    } else {
-                        mContentSize = 0;
-                    }
-                } catch (Exception exception) {
-                    // No support for indeterminate content size for now, as I don't need it. Assume zero in
-                    // this case.
-                    mContentSize = 0;
+                if (mBody.length < mContentRemaining) {
+                    mBody = new byte[(int) mContentRemaining];
                 }
             }
         }
+        if (mHandler instanceof HttpStreamingRequestHandler) {
+            ((HttpStreamingRequestHandler) mHandler).handleRequestStart(this);
+        }
+        if (!mChunked && mContentRemaining == 0) {
+            return true;
+        }
+        if ("100-continue".equalsIgnoreCase(getFirstHeader("expect")) && getVersionMajor() == 1 && getVersionMinor() > 0) {
+            send(ByteBuffer.wrap(CONTINUE_RESPONSE));
+        }
+        mInBody = true;
+        return false;
     }
 
-    private void parseBody() throws IOException {
-        mState = 5;
-        mBody = mBuffer.toByteArray();
-        mBuffer = null;
-        if (HttpMethod.POST == mMethod) {
+    private void parseBody() {
+        if (HttpMethod.POST == getMethod()) {
             if ("application/x-www-form-urlencoded".equals(getFirstHeader("content-type"))) {
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mBody), StandardCharsets.UTF_8))) {
-                    String line = in.readLine();
-                    while (line != null) {
+                for (String line : new String(mBody, 0, mBodyLength, StandardCharsets.UTF_8).split("\\r?\\n")) {
+                    if (!line.isEmpty()) {
                         decodeParameters(line);
-                        line = in.readLine();
                     }
                 }
             }
@@ -378,27 +535,43 @@ public class Http extends Personality {
         return mUri;
     }
 
+    /**
+     * @param name The name of a parameter within the pattern the current request's URI was matched
+     *             against, e.g. {@code id} for <code>/items/{id}</code>, or {@code *} for the
+     *             portion of the URI matched by a trailing wildcard.
+     * @return The value of that parameter, or {@code null} if the pattern has no such parameter.
+     */
+    public final String getPathParameter(String name) {
+        return mRouteMatch.get(name);
+    }
+
     /** @return The {@link HttpMethod} that was used for the current request. */
     public final HttpMethod getMethod() {
-        return mMethod;
+        return mParser.getMethod();
     }
 
     /** @return The major version number of the HTTP protocol used for the current request. */
     public final int getVersionMajor() {
-        return mVersionMajor;
+        return mParser.getVersionMajor();
     }
 
     /** @return The minor version number of the HTTP protocol used for the current request. */
     public final int getVersionMinor() {
-        return mVersionMinor;
+        return mParser.getVersionMinor();
     }
 
-    /** @return An {@link InputStream} containing the body of the current request. */
+    /**
+     * @return An {@link InputStream} containing the body of the current request. Always empty for
+     *         requests delivered to a {@link HttpStreamingRequestHandler}.
+     */
     public final InputStream getBody() {
-        return new ByteArrayInputStream(mBody);
+        return new ByteArrayInputStream(mBody, 0, mBodyLength);
     }
 
-    /** @return All HTTP parameters in the current request. */
+    /**
+     * @return All HTTP parameters in the current request. The returned map is reused for
+     *         subsequent requests on the same connection, so it should not be retained.
+     */
     public final Map<String, List<String>> getParameters() {
         return mParameters;
     }
@@ -427,6 +600,22 @@ public class Http extends Personality {
 
     /** @return All HTTP headers in the current request. */
     public final Map<String, List<String>> getHeaders() {
+        if (mHeaders == null) {
+            Map<String, List<String>> headers = new HashMap<>();
+            int                       count   = mParser.getHeaderCount();
+            for (int i = 0; i < count; i++) {
+                List<String> list = headers.get(mParser.getHeaderName(i));
+                if (list == null) {
+                    list = new ArrayList<>();
+                    headers.put(mParser.getHeaderName(i), list);
+                }
+                String value = mParser.getHeaderValue(i);
+                if (!value.isEmpty()) {
+                    list.add(value);
+                }
+            }
+            mHeaders = headers;
+        }
         return mHeaders;
     }
 
@@ -435,7 +624,19 @@ public class Http extends Personality {
      * @return The value(s) for that header, or {@code null} if no header with that name exists.
      */
     public final List<String> getHeader(String name) {
-        return mHeaders.get(name);
+        int index = mParser.indexOfHeader(name, 0);
+        if (index == -1) {
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        while (index != -1) {
+            String value = mParser.getHeaderValue(index);
+            if (!value.isEmpty()) {
+                list.add(value);
+            }
+            index = mParser.indexOfHeader(name, index + 1);
+        }
+        return list;
     }
 
     /**
@@ -443,7 +644,7 @@ public class Http extends Personality {
      * @return {@code true} if the header exists in the current request.
      */
     public final boolean hasHeader(String name) {
-        return mHeaders.containsKey(name);
+        return mParser.indexOfHeader(name, 0) != -1;
     }
 
     /**
@@ -451,11 +652,18 @@ public class Http extends Personality {
      * @return The first value for that header, or {@code null} if no header with that name exists.
      */
     public final String getFirstHeader(String name) {
-        List<String> list = getHeader(name);
-        if (list != null) {
-            return list.isEmpty() ? "" : list.get(0);
+        int index = mParser.indexOfHeader(name, 0);
+        if (index == -1) {
+            return null;
         }
-        return null;
+        while (index != -1) {
+            String value = mParser.getHeaderValue(index);
+            if (!value.isEmpty()) {
+                return value;
+            }
+            index = mParser.indexOfHeader(name, index + 1);
+        }
+        return "";
     }
 
     /**
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@link OutputStream} given to a {@link HttpBodyWriter}. Written data is collected into
+ * chunks, each of which is placed directly onto the connection's out-bound queue, framed with the
+ * chunked transfer encoding when the client supports it.
+ */
+final class HttpBodyOutputStream extends OutputStream {
+    private static final int     CHUNK_SIZE = 8 * 1024;
+    private static final byte[]  CRLF       = { '\r', '\n' };
+    private static final byte[]  LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private              Http    mHttp;
+    private              boolean mChunked;
+    private              byte[]  mBuffer    = new byte[CHUNK_SIZE];
+    private              int     mCount;
+    private              boolean mClosed;
+    private              boolean mFailed;
+
+    /**
+     * @param http    The {@link Http} connection to send the body through.
+     * @param chunked Pass in {@code true} to use the chunked transfer encoding. When {@code false},
+     *                the data is sent as-is and the end of the body must be signaled by closing
+     *                the connection.
+     */
+    HttpBodyOutputStream(Http http, boolean chunked) {
+        mHttp = http;
+        mChunked = chunked;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (mCount == mBuffer.length) {
+            sendChunk(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        checkOpen();
+        if (length >= mBuffer.length) {
+            // Large writes bypass the buffer entirely
+            flushBuffer();
+            sendChunk(buffer, offset, length);
+        } else {
+            if (length > mBuffer.length - mCount) {
+                flushBuffer();
+            }
+            System.arraycopy(buffer, offset, mBuffer, mCount, length);
+            mCount += length;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!mClosed && !mFailed) {
+            flushBuffer();
+            mClosed = true;
+            if (mChunked) {
+                mHttp.send(ByteBuffer.wrap(LAST_CHUNK));
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (mFailed) {
+            throw new IOException("Connection stalled or closed while sending");
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            sendChunk(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    private void sendChunk(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            // A zero-length chunk would terminate the body
+            return;
+        }
+        // The data is copied into a single buffer along with its framing, since the caller is free
+        // to reuse its array as soon as we return.
+        byte[] chunk;
+        if (mChunked) {
+            byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            chunk = new byte[size.length + length + CRLF.length];
+            System.arraycopy(size, 0, chunk, 0, size.length);
+            System.arraycopy(buffer, offset, chunk, size.length, length);
+            System.arraycopy(CRLF, 0, chunk, size.length + length, CRLF.length);
+        } else {
+            chunk = new byte[length];
+            System.arraycopy(buffer, offset, chunk, 0, length);
+        }
+        mHttp.send(ByteBuffer.wrap(chunk));
+        try {
+            mHttp.awaitOutputDrain();
+        } catch (IOException exception) {
+            // The remote end isn't reading, so the body can't be completed. Closing this stream
+            // must not send the terminating chunk, as that would make the body look complete.
+            mFailed = true;
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the body of a {@link HttpResponse} as it is being sent, rather than up front. Use this
+ * as the data of a {@link HttpResponse} when the size of the body is not known in advance or it is
+ * too large to hold in memory.
+ */
+public interface HttpBodyWriter {
+    /**
+     * @param out The stream to write the body to. Data is sent to the remote end in chunks as it
+     *            is written, blocking when the remote end is not keeping up. It does not need to be
+     *            closed.
+     */
+    void writeBody(OutputStream out) throws IOException;
+}
@@ -15,6 +15,8 @@ package com.trollworks.toolkit.io.server.http;
 public enum HttpMethod {
     GET, POST, HEAD;
 
+    private static final HttpMethod[] VALUES = values();
+
     /**
      * @param text The text representation of the HTTP request method.
      * @return The {@link HttpMethod}, or {@code null} if no match can be found.
@@ -27,4 +29,26 @@ public enum HttpMethod {
         }
         return null;
     }
+
+    /**
+     * @param buffer The buffer holding the text representation of the HTTP request method.
+     * @param start  The offset of the first byte of the text.
+     * @param end    The offset just past the last byte of the text.
+     * @return The {@link HttpMethod}, or {@code null} if no match can be found.
+     */
+    static HttpMethod lookup(byte[] buffer, int start, int end) {
+        for (HttpMethod method : VALUES) {
+            String name = method.name();
+            if (name.length() == end - start) {
+                int i = 0;
+                while (i < name.length() && Character.toUpperCase((char) buffer[start + i]) == name.charAt(i)) {
+                    i++;
+                }
+                if (i == name.length()) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * An incremental parser for the head of a HTTP request: the request line and the header fields.
+ * Incoming data is bulk-copied into a buffer that is reused for every request on the connection and
+ * scanned for the blank line that ends the head, so partial reads are handled naturally. Header
+ * fields are then recorded as offsets into that buffer. Well-known header names and the request
+ * method resolve to shared instances, so only the URI and any values that are actually asked for
+ * turn into new {@link String}s.
+ */
+final class HttpRequestParser {
+    private static final int        MAXIMUM_HEADER_SIZE = 8 * 1024;
+    private static final int        MAXIMUM_HEADERS     = 128;
+    private static final byte[]     HEAD_TERMINATOR     = { '\r', '\n', '\r', '\n' };
+    private static final String[]   KNOWN_HEADERS       = { "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "cache-control", "connection", "content-encoding", "content-length", "content-type", "cookie", "date", "dnt", "expect", "host", "if-match", "if-modified-since", "if-none-match", "if-range", "if-unmodified-since", "origin", "pragma", "range", "referer", "sec-fetch-dest", "sec-fetch-mode", "sec-fetch-site", "sec-websocket-draft", "sec-websocket-extensions", "sec-websocket-key", "sec-websocket-protocol", "sec-websocket-version", "te", "transfer-encoding", "upgrade", "upgrade-insecure-requests", "user-agent", "via", "x-forwarded-for", "x-forwarded-proto", "x-requested-with" };
+    private static final byte[][]   KNOWN_HEADER_BYTES  = new byte[KNOWN_HEADERS.length][];
+    private              byte[]     mHead               = new byte[MAXIMUM_HEADER_SIZE];
+    private              int        mHeadLength;
+    private              int        mMatched;
+    private              HttpMethod mMethod;
+    private              String     mUri;
+    private              int        mVersionMajor;
+    private              int        mVersionMinor;
+    private              int        mHeaderCount;
+    private              String[]   mNames              = new String[16];
+    private              int[]      mValueStarts        = new int[16];
+    private              int[]      mValueEnds          = new int[16];
+    private              String[]   mValues             = new String[16];
+
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /** Prepares for the next request on the connection. */
+    void reset() {
+        mHeadLength = 0;
+        mMatched = 0;
+        mMethod = null;
+        mUri = null;
+        mVersionMajor = 0;
+        mVersionMinor = 0;
+        Arrays.fill(mNames, 0, mHeaderCount, null);
+        Arrays.fill(mValues, 0, mHeaderCount, null);
+        mHeaderCount = 0;
+    }
+
+    /**
+     * Consumes data from the buffer until the end of the request head has been seen or the buffer
+     * is exhausted. Any data past the end of the head is left in the buffer.
+     *
+     * @param buffer The data to consume.
+     * @return {@code true} if the head is now complete and has been parsed.
+     */
+    boolean parse(ByteBuffer buffer) throws HttpResponseException {
+        int available = Math.min(buffer.remaining(), mHead.length - mHeadLength);
+        if (available == 0) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Header too large");
+        }
+        int start = mHeadLength;
+        buffer.get(mHead, start, available);
+        int end = start + available;
+        for (int i = start; i < end; i++) {
+            byte b = mHead[i];
+            if (b == HEAD_TERMINATOR[mMatched]) {
+                if (++mMatched == HEAD_TERMINATOR.length) {
+                    // Hand back whatever belongs to the body or the next request
+                    buffer.position(buffer.position() - (end - (i + 1)));
+                    mHeadLength = i + 1;
+                    parseHead();
+                    return true;
+                }
+            } else {
+                mMatched = b == '\r' ? 1 : 0;
+            }
+        }
+        mHeadLength = end;
+        if (mHeadLength == mHead.length) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Header too large");
+        }
+        return false;
+    }
+
+    private void parseHead() throws HttpResponseException {
+        int pos = 0;
+        // Robust servers ignore empty lines ahead of the request line
+        while (pos + 1 < mHeadLength && mHead[pos] == '\r' && mHead[pos + 1] == '\n') {
+            pos += 2;
+        }
+        if (pos >= mHeadLength) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        int eol = indexOfCR(pos);
+        parseRequestLine(pos, eol);
+        pos = eol + 2;
+        while (pos < mHeadLength) {
+            eol = indexOfCR(pos);
+            int start = skipWhitespace(pos, eol);
+            int end   = trimWhitespace(start, eol);
+            if (start == end) {
+                break;
+            }
+            int colon = indexOf((byte) ':', start, end);
+            if (colon != -1) {
+                addHeader(start, trimWhitespace(start, colon), skipWhitespace(colon + 1, end), end);
+            }
+            pos = eol + 2;
+        }
+    }
+
+    private void parseRequestLine(int start, int end) throws HttpResponseException {
+        int methodEnd = indexOfWhitespace(start, end);
+        int uriStart  = skipWhitespace(methodEnd, end);
+        int uriEnd    = indexOfWhitespace(uriStart, end);
+        int verStart  = skipWhitespace(uriEnd, end);
+        if (methodEnd == start || uriStart == end || uriEnd == uriStart || verStart == uriEnd || end - verStart < 8) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        mMethod = HttpMethod.lookup(mHead, start, methodEnd);
+        if (mMethod == null) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        if (mHead[verStart] != 'H' || mHead[verStart + 1] != 'T' || mHead[verStart + 2] != 'T' || mHead[verStart + 3] != 'P' || mHead[verStart + 4] != '/') {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        int dot = indexOf((byte) '.', verStart + 5, end);
+        mVersionMajor = parseDigits(verStart + 5, dot);
+        mVersionMinor = parseDigits(dot + 1, end);
+        mUri = new String(mHead, uriStart, uriEnd - uriStart, StandardCharsets.UTF_8);
+    }
+
+    private int parseDigits(int start, int end) throws HttpResponseException {
+        if (start < 0 || start >= end || end - start > 9) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = mHead[i];
+            if (b < '0' || b > '9') {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+            }
+            value = value * 10 + b - '0';
+        }
+        return value;
+    }
+
+    private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) throws HttpResponseException {
+        if (mHeaderCount == mNames.length) {
+            if (mHeaderCount == MAXIMUM_HEADERS) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Too many headers");
+            }
+            int size = mHeaderCount * 2;
+            mNames = Arrays.copyOf(mNames, size);
+            mValueStarts = Arrays.copyOf(mValueStarts, size);
+            mValueEnds = Arrays.copyOf(mValueEnds, size);
+            mValues = Arrays.copyOf(mValues, size);
+        }
+        mNames[mHeaderCount] = internName(nameStart, nameEnd);
+        mValueStarts[mHeaderCount] = valueStart;
+        mValueEnds[mHeaderCount] = valueEnd;
+        mHeaderCount++;
+    }
+
+    private String internName(int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            byte[] known = KNOWN_HEADER_BYTES[i];
+            if (known.length == length && equalsIgnoreCase(known, start)) {
+                return KNOWN_HEADERS[i];
+            }
+        }
+        return new String(mHead, start, length, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+    }
+
+    private boolean equalsIgnoreCase(byte[] lowercase, int start) {
+        for (int i = 0; i < lowercase.length; i++) {
+            byte b = mHead[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowercase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOfCR(int start) {
+        // The head always ends with CRLFCRLF, so this can't run off the end
+        int i = start;
+        while (mHead[i] != '\r' || mHead[i + 1] != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private int indexOf(byte target, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (mHead[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfWhitespace(int start, int end) {
+        while (start < end && !isWhitespace(mHead[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private int skipWhitespace(int start, int end) {
+        while (start < end && isWhitespace(mHead[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimWhitespace(int start, int end) {
+        while (end > start && isWhitespace(mHead[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /** @return The {@link HttpMethod} of the request. */
+    HttpMethod getMethod() {
+        return mMethod;
+    }
+
+    /** @return The raw request target, including any query string and without percent-decoding. */
+    String getUri() {
+        return mUri;
+    }
+
+    /** @return The major version number of the HTTP protocol used for the request. */
+    int getVersionMajor() {
+        return mVersionMajor;
+    }
+
+    /** @return The minor version number of the HTTP protocol used for the request. */
+    int getVersionMinor() {
+        return mVersionMinor;
+    }
+
+    /** @return The number of header fields in the request. */
+    int getHeaderCount() {
+        return mHeaderCount;
+    }
+
+    /**
+     * @param index The index of the header field.
+     * @return The lowercased name of the header field.
+     */
+    String getHeaderName(int index) {
+        return mNames[index];
+    }
+
+    /**
+     * @param index The index of the header field.
+     * @return The value of the header field, which will be empty if none was supplied.
+     */
+    String getHeaderValue(int index) {
+        String value = mValues[index];
+        if (value == null) {
+            int start = mValueStarts[index];
+            value = new String(mHead, start, mValueEnds[index] - start, StandardCharsets.UTF_8);
+            mValues[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @param name The lowercased name of the header field to look for.
+     * @param from The index to start looking from.
+     * @return The index of the next header field with the name, or {@code -1} if there is none.
+     */
+    int indexOfHeader(String name, int from) {
+        for (int i = from; i < mHeaderCount; i++) {
+            String one = mNames[i];
+            if (one == name || one.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -13,34 +13,36 @@ package com.trollworks.toolkit.io.server.http;
 
 import com.trollworks.toolkit.io.Log;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 
 /** Stores a HTTP response for a request. */
 public class HttpResponse {
-    private static final SimpleDateFormat    GMT_DATE_FORMAT = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    private static final DateTimeFormatter   GMT_DATE_FORMAT    = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final String              MULTIPART_BOUNDARY = "TWBR" + Long.toHexString(new SecureRandom().nextLong());
     private              HttpStatusCode      mStatus;
     private              String              mMimeType;
     private              Object              mData;
-    private              Map<String, String> mHeader         = new HashMap<>();
+    private              Map<String, String> mHeader            = new HashMap<>();
     private              HttpMethod          mRequestMethod;
-
-    static {
-        GMT_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    private              List<ByteRange>     mRanges;
 
     /**
      * Creates a new, empty {@link HttpResponse} with a type of {@link MimeTypes#TEXT} and a status
@@ -75,7 +77,10 @@ public class HttpResponse {
      *
      * @param status   The {@link HttpStatusCode} to use.
      * @param mimeType The mime type to use.
-     * @param data     The data for the body content. May be {@code null}.
+     * @param data     The data for the body content. May be {@code null}. A {@link Path} is sent
+     *                 straight from disk and a {@link HttpBodyWriter} is asked to produce the body
+     *                 as it is being sent. Byte arrays and {@link ByteArrayOutputStream}s are sent
+     *                 as-is, while anything else is sent as its string representation.
      */
     public HttpResponse(HttpStatusCode status, String mimeType, Object data) {
         mStatus = status;
@@ -124,6 +129,25 @@ public class HttpResponse {
         mRequestMethod = requestMethod;
     }
 
+    /** @return The {@link ByteRange}s of the file to send, or {@code null} to send all of it. */
+    public final List<ByteRange> getRanges() {
+        return mRanges;
+    }
+
+    /**
+     * Restricts the body to portions of the file. Only applies when the data for this response is
+     * a {@link Path}. A single range is sent as-is with a Content-Range header, while multiple
+     * ranges are sent as a {@code multipart/byteranges} body. The caller is responsible for also
+     * setting the status to {@link HttpStatusCode#PARTIAL_CONTENT}. Should the file no longer be
+     * long enough for all of the ranges by the time the response is sent, the whole file is sent
+     * instead, with a status of {@link HttpStatusCode#OK}.
+     *
+     * @param ranges The {@link ByteRange}s to send, or {@code null} to send the whole file.
+     */
+    public final void setRanges(List<ByteRange> ranges) {
+        mRanges = ranges == null || ranges.isEmpty() ? null : ranges;
+    }
+
     /**
      * Formats this response appropriately for the HTTP protocol and sends it to the remote end.
      *
@@ -133,6 +157,38 @@ public class HttpResponse {
         if (mStatus == null) {
             Log.error(http.getSession(), "sendResponse(): Status may not be null.");
         }
+        FileChannel file     = null;
+        long        fileSize = 0;
+        if (mData instanceof Path) {
+            // The file is opened before anything is written, so that a failure can still be
+            // reported with a proper status.
+            try {
+                file = FileChannel.open((Path) mData, StandardOpenOption.READ);
+                fileSize = file.size();
+            } catch (IOException exception) {
+                if (file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException ioe) {
+                        // Ignore
+                    }
+                }
+                if (exception instanceof AccessDeniedException) {
+                    new HttpResponse(HttpStatusCode.FORBIDDEN, MimeTypes.TEXT, "FORBIDDEN: Reading file failed").send(http);
+                } else {
+                    new HttpResponse(HttpStatusCode.INTERNAL_ERROR, MimeTypes.TEXT, "INTERNAL ERROR: " + exception.getMessage()).send(http);
+                }
+                http.requestClose(false);
+                return;
+            }
+            if (mRanges != null && !fitsWithin(fileSize)) {
+                // The file changed size since the ranges were computed, so send all of it instead.
+                mRanges = null;
+                if (mStatus == HttpStatusCode.PARTIAL_CONTENT) {
+                    mStatus = HttpStatusCode.OK;
+                }
+            }
+        }
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream(16 * 1024);
             PrintWriter           pw   = new PrintWriter(baos, false, StandardCharsets.UTF_8);
@@ -140,12 +196,15 @@ public class HttpResponse {
             pw.print(mStatus.getDescription());
             pw.print("\r\n");
 
-            if (mMimeType != null) {
+            boolean multipart = mData instanceof Path && mRanges != null && mRanges.size() > 1;
+            if (multipart) {
+                writeHeader(pw, "Content-Type", "multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+            } else if (mMimeType != null) {
                 writeHeader(pw, "Content-Type", mMimeType);
             }
 
             if (mHeader == null || mHeader.get("Date") == null) {
-                writeHeader(pw, "Date", GMT_DATE_FORMAT.format(new Date()));
+                writeHeader(pw, "Date", formatDate(System.currentTimeMillis()));
             }
 
             if (mHeader != null) {
@@ -154,10 +213,38 @@ public class HttpResponse {
                 }
             }
 
+            byte[][] partHeaders = null;
+            byte[]   partTrailer = null;
+            boolean  streamed    = mData instanceof HttpBodyWriter;
+            boolean  chunked     = streamed && (http.getVersionMajor() > 1 || http.getVersionMajor() == 1 && http.getVersionMinor() > 0);
             if (mData != null) {
-                writeHeader(pw, "Connection", "keep-alive");
-                if (mData instanceof Path) {
-                    writeHeader(pw, "Content-Length", Long.toString(Files.size((Path) mData)));
+                // HTTP/1.0 clients don't understand chunked bodies, so the only way to mark the end
+                // of a streamed body for them is to close the connection.
+                writeHeader(pw, "Connection", streamed && !chunked ? "close" : "keep-alive");
+                if (streamed) {
+                    if (chunked) {
+                        writeHeader(pw, "Transfer-Encoding", "chunked");
+                    }
+                } else if (file != null) {
+                    if (mRanges == null) {
+                        writeHeader(pw, "Content-Length", Long.toString(fileSize));
+                    } else if (multipart) {
+                        int  count  = mRanges.size();
+                        long length = 0;
+                        partHeaders = new byte[count][];
+                        for (int i = 0; i < count; i++) {
+                            ByteRange range = mRanges.get(i);
+                            partHeaders[i] = ((i == 0 ? "--" : "\r\n--") + MULTIPART_BOUNDARY + "\r\nContent-Type: " + mMimeType + "\r\nContent-Range: " + range.toContentRange(fileSize) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+                            length += partHeaders[i].length + range.getLength();
+                        }
+                        partTrailer = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+                        length += partTrailer.length;
+                        writeHeader(pw, "Content-Length", Long.toString(length));
+                    } else {
+                        ByteRange range = mRanges.get(0);
+                        writeHeader(pw, "Content-Range", range.toContentRange(fileSize));
+                        writeHeader(pw, "Content-Length", Long.toString(range.getLength()));
+                    }
                 } else {
                     if (mData instanceof ByteArrayOutputStream) {
                         mData = ((ByteArrayOutputStream) mData).toByteArray();
@@ -171,27 +258,91 @@ public class HttpResponse {
             pw.print("\r\n");
             pw.flush();
 
-            if (mRequestMethod != HttpMethod.HEAD && mData != null) {
-                if (mData instanceof Path) {
-                    try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream((Path) mData, StandardOpenOption.READ))) {
-                        byte[] buffer  = new byte[16 * 1024];
-                        long   pending = Files.size((Path) mData);
-                        while (pending > 0) {
-                            int read = in.read(buffer, 0, pending > buffer.length ? buffer.length : (int) pending);
-                            if (read <= 0) {
-                                break;
-                            }
-                            baos.write(buffer, 0, read);
-                            pending -= read;
-                        }
+            boolean sendBody = mRequestMethod != HttpMethod.HEAD && mData != null;
+            if (sendBody && file == null && !streamed) {
+                baos.write((byte[]) mData);
+            }
+            http.send(ByteBuffer.wrap(baos.toByteArray()));
+            if (streamed) {
+                if (sendBody) {
+                    HttpBodyOutputStream out = new HttpBodyOutputStream(http, chunked);
+                    try {
+                        ((HttpBodyWriter) mData).writeBody(out);
+                    } catch (RuntimeException exception) {
+                        throw new IOException(exception);
                     }
+                    // Not closed on failure, as that would send the terminating chunk and make
+                    // a truncated body look complete.
+                    out.close();
+                }
+                if (!chunked) {
+                    http.requestClose(false);
+                }
+            }
+            if (sendBody && file != null) {
+                // The file is streamed straight from disk to the socket; the session takes
+                // ownership of each channel and closes it once the transfer completes.
+                FileChannel channel = file;
+                file = null;
+                if (mRanges == null) {
+                    http.sendFile(channel, 0, fileSize);
+                } else if (partHeaders == null) {
+                    ByteRange range = mRanges.get(0);
+                    http.sendFile(channel, range.getFirst(), range.getLength());
                 } else {
-                    baos.write((byte[]) mData);
+                    for (int i = 0; i < partHeaders.length; i++) {
+                        ByteRange range = mRanges.get(i);
+                        http.send(ByteBuffer.wrap(partHeaders[i]));
+                        if (channel == null) {
+                            channel = FileChannel.open((Path) mData, StandardOpenOption.READ);
+                        }
+                        http.sendFile(channel, range.getFirst(), range.getLength());
+                        channel = null;
+                    }
+                    http.send(ByteBuffer.wrap(partTrailer));
                 }
             }
-            http.send(ByteBuffer.wrap(baos.toByteArray()));
         } catch (IOException exception) {
-            // Ignore
+            // The response may have been partially sent, so the connection can't be reused.
+            http.requestClose(true);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException exception) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private boolean fitsWithin(long size) {
+        for (ByteRange range : mRanges) {
+            if (range.getLast() >= size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param millis The time, in milliseconds since the epoch.
+     * @return The time formatted as a HTTP date, e.g. {@code Sun, 06 Nov 1994 08:49:37 GMT}.
+     */
+    public static final String formatDate(long millis) {
+        return GMT_DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * @param text A HTTP date, e.g. {@code Sun, 06 Nov 1994 08:49:37 GMT}.
+     * @return The time, in milliseconds since the epoch, or {@code -1} if the text could not be
+     *         parsed.
+     */
+    public static final long parseDate(String text) {
+        try {
+            return ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException exception) {
+            return -1;
         }
     }
 
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+/**
+ * Records where the parameters of a pattern were found within a URI by a {@link HttpRouter}. Only
+ * offsets are recorded during the lookup; the text of a parameter is extracted only when asked
+ * for. Instances are reused from one request to the next.
+ */
+final class HttpRouteMatch {
+    private String   mUri;
+    private int[]    mBounds = new int[HttpRouter.MAXIMUM_PARAMETERS * 2];
+    private String[] mNames;
+    private String   mAllow;
+
+    /** @param uri The URI about to be matched. */
+    void reset(String uri) {
+        mUri = uri;
+        mNames = null;
+        mAllow = null;
+    }
+
+    /**
+     * @param index The index of the parameter.
+     * @param start The offset within the URI of the first character of the parameter.
+     * @param end   The offset within the URI just past the last character of the parameter.
+     */
+    void setBounds(int index, int start, int end) {
+        mBounds[index * 2] = start;
+        mBounds[index * 2 + 1] = end;
+    }
+
+    /** @param names The names of the parameters in the pattern that matched, in order. */
+    void setNames(String[] names) {
+        mNames = names;
+    }
+
+    /**
+     * @param allow The methods that would have been accepted for a pattern that matched the URI but
+     *              not the method. Only the first one reported is retained.
+     */
+    void setAllow(String allow) {
+        if (mAllow == null) {
+            mAllow = allow;
+        }
+    }
+
+    /**
+     * @return The methods, formatted for an Allow header, that would have been accepted by a
+     *         pattern that matched the URI, or {@code null} if no pattern matched it.
+     */
+    String getAllow() {
+        return mAllow;
+    }
+
+    /** @return The number of parameters in the pattern that matched. */
+    int getCount() {
+        return mNames != null ? mNames.length : 0;
+    }
+
+    /**
+     * @param index The index of the parameter.
+     * @return The name of the parameter.
+     */
+    String getName(int index) {
+        return mNames[index];
+    }
+
+    /**
+     * @param index The index of the parameter.
+     * @return The value of the parameter.
+     */
+    String getValue(int index) {
+        return mUri.substring(mBounds[index * 2], mBounds[index * 2 + 1]);
+    }
+
+    /**
+     * @param name The name of the parameter.
+     * @return The value of the parameter, or {@code null} if there is no parameter with that name.
+     */
+    String get(String name) {
+        int count = getCount();
+        for (int i = 0; i < count; i++) {
+            if (mNames[i].equals(name)) {
+                return getValue(i);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable routing table that maps URI patterns to targets, such as {@link
+ * HttpRequestHandler}s. Patterns are made up of '/'-separated segments, each of which is one of:
+ * <ul>
+ * <li>a literal, which must match the corresponding segment of the URI exactly;</li>
+ * <li>a parameter, written as <code>{name}</code>, which matches any single non-empty segment;
+ * or</li>
+ * <li>a wildcard, written as <code>*</code>, which may only appear last and matches whatever
+ * remains of the URI, including any further slashes.</li>
+ * </ul>
+ * Where more than one pattern could match, literals are preferred over parameters and parameters
+ * over wildcards, segment by segment. A router is never modified once built; {@link
+ * #with(HttpMethod, String, Object)} returns a new one instead, so lookups need no locking.
+ *
+ * @param <T> The type of target.
+ */
+final class HttpRouter<T> {
+    /** The name under which the portion of a URI matched by a wildcard segment is recorded. */
+    static final         String         WILDCARD           = "*";
+    /** The maximum number of parameter and wildcard segments a single pattern may contain. */
+    static final         int            MAXIMUM_PARAMETERS = 16;
+    private static final int            ANY_METHOD         = HttpMethod.values().length;
+    private              List<Route<T>> mRoutes;
+    private              Node<T>        mRoot;
+
+    /** Creates a new, empty {@link HttpRouter}. */
+    HttpRouter() {
+        this(Collections.emptyList());
+    }
+
+    private HttpRouter(List<Route<T>> routes) {
+        mRoutes = routes;
+        mRoot = new Node<>();
+        for (Route<T> route : routes) {
+            mRoot.add(route, 0);
+        }
+        mRoot.seal();
+    }
+
+    /**
+     * @param method  The {@link HttpMethod} the target applies to, or {@code null} for all of them.
+     * @param pattern The URI pattern.
+     * @return The target currently registered for exactly this method and pattern, or {@code null}
+     *         if there is none.
+     */
+    T get(HttpMethod method, String pattern) {
+        String key = new Route<T>(method, pattern, null).mKey;
+        for (Route<T> route : mRoutes) {
+            if (route.mKey.equals(key)) {
+                return route.mTarget;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param method  The {@link HttpMethod} the target applies to, or {@code null} for all of them.
+     * @param pattern The URI pattern.
+     * @param target  The target to register. Pass in {@code null} to remove any existing target for
+     *                the method and pattern instead.
+     * @return A new {@link HttpRouter} with the change applied.
+     */
+    HttpRouter<T> with(HttpMethod method, String pattern, T target) {
+        Route<T>       added  = new Route<>(method, pattern, target);
+        List<Route<T>> routes = new ArrayList<>(mRoutes.size() + 1);
+        for (Route<T> route : mRoutes) {
+            if (!route.mKey.equals(added.mKey)) {
+                routes.add(route);
+            }
+        }
+        if (target != null) {
+            routes.add(added);
+        }
+        return new HttpRouter<>(routes);
+    }
+
+    /**
+     * @param method The {@link HttpMethod} of the request, or {@code null} to only consider targets
+     *               registered for all methods.
+     * @param uri    The URI of the request, without any query.
+     * @param match  The {@link HttpRouteMatch} to record any parameters in. May be {@code null}.
+     * @return The target for the request, or {@code null} if there is none.
+     */
+    T lookup(HttpMethod method, String uri, HttpRouteMatch match) {
+        if (match != null) {
+            match.reset(uri);
+        }
+        return mRoot.find(method, uri, uri.startsWith("/") ? 1 : 0, 0, match);
+    }
+
+    /**
+     * @param text The text to split. A single leading '/' is ignored.
+     * @return The segments of the text.
+     */
+    static String[] split(String text) {
+        List<String> segments = new ArrayList<>();
+        int          pos      = text.startsWith("/") ? 1 : 0;
+        int          length   = text.length();
+        while (pos <= length) {
+            int end = text.indexOf('/', pos);
+            if (end == -1) {
+                end = length;
+            }
+            segments.add(text.substring(pos, end));
+            pos = end + 1;
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static boolean isParameter(String segment) {
+        return segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}");
+    }
+
+    private static final class Route<T> {
+        HttpMethod mMethod;
+        String[]   mSegments;
+        String[]   mNames;
+        String     mKey;
+        T          mTarget;
+
+        Route(HttpMethod method, String pattern, T target) {
+            mMethod = method;
+            mSegments = split(pattern);
+            mTarget = target;
+            List<String>  names = new ArrayList<>();
+            StringBuilder key   = new StringBuilder(method == null ? "" : method.name());
+            for (int i = 0; i < mSegments.length; i++) {
+                String segment = mSegments[i];
+                key.append('/');
+                if (WILDCARD.equals(segment)) {
+                    if (i != mSegments.length - 1) {
+                        throw new IllegalArgumentException("A wildcard may only be the last segment of a pattern: " + pattern);
+                    }
+                    names.add(WILDCARD);
+                    key.append(WILDCARD);
+                } else if (isParameter(segment)) {
+                    names.add(segment.substring(1, segment.length() - 1));
+                    key.append("{}");
+                } else {
+                    key.append(segment);
+                }
+            }
+            if (names.size() > MAXIMUM_PARAMETERS) {
+                throw new IllegalArgumentException("Too many parameters in pattern: " + pattern);
+            }
+            mNames = names.toArray(new String[0]);
+            mKey = key.toString();
+        }
+    }
+
+    /** The targets for a single pattern, one per {@link HttpMethod} plus one for all of them. */
+    private static final class Endpoint<T> {
+        Object[]   mTargets = new Object[ANY_METHOD + 1];
+        String[][] mNames   = new String[ANY_METHOD + 1][];
+        String     mAllow;
+
+        void add(Route<T> route) {
+            int index = route.mMethod == null ? ANY_METHOD : route.mMethod.ordinal();
+            mTargets[index] = route.mTarget;
+            mNames[index] = route.mNames;
+        }
+
+        void seal() {
+            if (mTargets[ANY_METHOD] == null) {
+                StringBuilder buffer = new StringBuilder();
+                for (HttpMethod method : HttpMethod.values()) {
+                    if (indexFor(method) != -1) {
+                        if (buffer.length() > 0) {
+                            buffer.append(", ");
+                        }
+                        buffer.append(method.name());
+                    }
+                }
+                mAllow = buffer.toString();
+            }
+        }
+
+        int indexFor(HttpMethod method) {
+            if (method != null) {
+                if (mTargets[method.ordinal()] != null) {
+                    return method.ordinal();
+                }
+                // HEAD is answered by the GET target unless one was registered specifically for it
+                if (method == HttpMethod.HEAD && mTargets[HttpMethod.GET.ordinal()] != null) {
+                    return HttpMethod.GET.ordinal();
+                }
+            }
+            return mTargets[ANY_METHOD] != null ? ANY_METHOD : -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        T accept(HttpMethod method, HttpRouteMatch match) {
+            int index = indexFor(method);
+            if (index == -1) {
+                if (match != null) {
+                    match.setAllow(mAllow);
+                }
+                return null;
+            }
+            if (match != null) {
+                match.setNames(mNames[index]);
+            }
+            return (T) mTargets[index];
+        }
+    }
+
+    private static final class Node<T> {
+        private Map<String, Node<T>> mLiteralMap = new TreeMap<>();
+        private String[]             mLiteralKeys;
+        private Node<T>[]            mLiteralNodes;
+        private Node<T>              mParameter;
+        private Endpoint<T>          mExact;
+        private Endpoint<T>          mWildcard;
+
+        void add(Route<T> route, int index) {
+            String[] segments = route.mSegments;
+            if (index == segments.length) {
+                if (mExact == null) {
+                    mExact = new Endpoint<>();
+                }
+                mExact.add(route);
+                return;
+            }
+            String segment = segments[index];
+            if (WILDCARD.equals(segment)) {
+                if (mWildcard == null) {
+                    mWildcard = new Endpoint<>();
+                }
+                mWildcard.add(route);
+                return;
+            }
+            Node<T> child;
+            if (isParameter(segment)) {
+                if (mParameter == null) {
+                    mParameter = new Node<>();
+                }
+                child = mParameter;
+            } else {
+                child = mLiteralMap.get(segment);
+                if (child == null) {
+                    child = new Node<>();
+                    mLiteralMap.put(segment, child);
+                }
+            }
+            child.add(route, index + 1);
+        }
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        void seal() {
+            int count = mLiteralMap.size();
+            mLiteralKeys = mLiteralMap.keySet().toArray(new String[count]);
+            mLiteralNodes = mLiteralMap.values().toArray(new Node[count]);
+            mLiteralMap = null;
+            for (Node<T> node : mLiteralNodes) {
+                node.seal();
+            }
+            if (mParameter != null) {
+                mParameter.seal();
+            }
+            if (mExact != null) {
+                mExact.seal();
+            }
+            if (mWildcard != null) {
+                mWildcard.seal();
+            }
+        }
+
+        T find(HttpMethod method, String uri, int pos, int depth, HttpRouteMatch match) {
+            int length = uri.length();
+            T   target;
+            if (pos > length) {
+                // Out of segments
+                if (mExact != null) {
+                    target = mExact.accept(method, match);
+                    if (target != null) {
+                        return target;
+                    }
+                }
+                return findWildcard(method, length, length, depth, match);
+            }
+            int end = uri.indexOf('/', pos);
+            if (end == -1) {
+                end = length;
+            }
+            int index = indexOfLiteral(uri, pos, end);
+            if (index != -1) {
+                target = mLiteralNodes[index].find(method, uri, end + 1, depth, match);
+                if (target != null) {
+                    return target;
+                }
+            }
+            if (mParameter != null && end > pos) {
+                target = mParameter.find(method, uri, end + 1, depth + 1, match);
+                if (target != null) {
+                    if (match != null) {
+                        match.setBounds(depth, pos, end);
+                    }
+                    return target;
+                }
+            }
+            return findWildcard(method, pos, length, depth, match);
+        }
+
+        /** Binary search of the literal keys that compares against the URI in place. */
+        private int indexOfLiteral(String uri, int start, int end) {
+            int low  = 0;
+            int high = mLiteralKeys.length - 1;
+            while (low <= high) {
+                int mid    = (low + high) >>> 1;
+                int result = compare(mLiteralKeys[mid], uri, start, end);
+                if (result < 0) {
+                    low = mid + 1;
+                } else if (result > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private static int compare(String key, String uri, int start, int end) {
+            int keyLength = key.length();
+            int length    = end - start;
+            int count     = Math.min(keyLength, length);
+            for (int i = 0; i < count; i++) {
+                int result = key.charAt(i) - uri.charAt(start + i);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return keyLength - length;
+        }
+
+        private T findWildcard(HttpMethod method, int start, int end, int depth, HttpRouteMatch match) {
+            if (mWildcard != null) {
+                T target = mWildcard.accept(method, match);
+                if (target != null) {
+                    if (match != null) {
+                        match.setBounds(depth, start, end);
+                    }
+                    return target;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -11,22 +11,28 @@
 
 package com.trollworks.toolkit.io.server.http;
 
+import com.trollworks.toolkit.collections.LRUCache;
 import com.trollworks.toolkit.io.server.NioServer;
 import com.trollworks.toolkit.io.server.Session;
 import com.trollworks.toolkit.io.server.SessionFactory;
+import com.trollworks.toolkit.io.server.SessionTimeouts;
 import com.trollworks.toolkit.io.server.websocket.WebSocketFactory;
 
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
 
 /** Provides a {@link SessionFactory} for HTTP sessions. */
 public class HttpSessionFactory implements SessionFactory {
-    private Path                            mRootPath;
-    private Map<String, HttpRequestHandler> mHttpHandlers       = new HashMap<>();
-    private Map<String, WebSocketFactory>   mWebSocketFactories = new HashMap<>();
+    private static final int                            DEFAULT_METADATA_CACHE_SIZE = 4096;
+    private static final long                           DEFAULT_METADATA_MAX_AGE    = 2000;
+    private              Path                           mRootPath;
+    private volatile     HttpRouter<HttpRequestHandler> mHttpHandlers               = new HttpRouter<>();
+    private volatile     HttpRouter<WebSocketFactory>   mWebSocketFactories         = new HttpRouter<>();
+    private              LRUCache<Path, FileMetadata>   mMetadataCache              = new LRUCache<>(DEFAULT_METADATA_CACHE_SIZE);
+    private              long                           mMetadataMaxAge             = DEFAULT_METADATA_MAX_AGE;
+    private volatile     StaticAssetCache               mStaticAssetCache;
+    private volatile     SessionTimeouts                mTimeouts                   = SessionTimeouts.DEFAULT;
 
     /** @param rootPath The path to the root web directory. */
     public HttpSessionFactory(Path rootPath) {
@@ -39,41 +45,191 @@ public class HttpSessionFactory implements SessionFactory {
     }
 
     /**
+     * @return The number of milliseconds that cached file attributes, such as size and modification
+     *         time, are trusted before the file system is consulted again.
+     */
+    public final long getMetadataMaxAge() {
+        return mMetadataMaxAge;
+    }
+
+    /**
+     * @param maxAge The number of milliseconds that cached file attributes, such as size and
+     *               modification time, are trusted before the file system is consulted again. Pass
+     *               in {@code 0} to always consult the file system.
+     */
+    public final void setMetadataMaxAge(long maxAge) {
+        mMetadataMaxAge = maxAge;
+    }
+
+    /**
+     * @param path The absolute, normalized path to look up.
+     * @return The {@link FileMetadata} for the path, from the cache if it is fresh enough.
+     */
+    final FileMetadata getFileMetadata(Path path) throws IOException {
+        long         now = System.currentTimeMillis();
+        FileMetadata metadata;
+        synchronized (mMetadataCache) {
+            metadata = mMetadataCache.get(path);
+        }
+        if (metadata == null || metadata.isStale(now, mMetadataMaxAge)) {
+            metadata = FileMetadata.read(path);
+            synchronized (mMetadataCache) {
+                mMetadataCache.put(path, metadata);
+            }
+        }
+        return metadata;
+    }
+
+    /** @param path The absolute, normalized path whose cached attributes should be discarded. */
+    final void forgetFileMetadata(Path path) {
+        synchronized (mMetadataCache) {
+            mMetadataCache.remove(path);
+        }
+    }
+
+    /** Discards all cached file attributes. */
+    public final void clearMetadataCache() {
+        synchronized (mMetadataCache) {
+            mMetadataCache.clear();
+        }
+    }
+
+    /**
+     * Turns on in-memory caching of small static files, including pre-compressed variants for
+     * clients that accept gzip. Changes under the root path are picked up through a {@link
+     * java.nio.file.WatchService}. Calling this again replaces any existing cache.
+     *
+     * @param maximumBytes    The maximum number of bytes to hold in memory.
+     * @param maximumFileSize The largest file, in bytes, that will be considered for caching.
+     * @return The newly created {@link StaticAssetCache}.
+     */
+    public final synchronized StaticAssetCache enableStaticAssetCache(long maximumBytes, int maximumFileSize) throws IOException {
+        disableStaticAssetCache();
+        mStaticAssetCache = new StaticAssetCache(this, maximumBytes, maximumFileSize);
+        return mStaticAssetCache;
+    }
+
+    /** Turns off in-memory caching of static files, if it was enabled. */
+    public final synchronized void disableStaticAssetCache() {
+        if (mStaticAssetCache != null) {
+            mStaticAssetCache.close();
+            mStaticAssetCache = null;
+        }
+    }
+
+    /** @return The {@link StaticAssetCache}, or {@code null} if caching has not been enabled. */
+    public final StaticAssetCache getStaticAssetCache() {
+        return mStaticAssetCache;
+    }
+
+    /**
+     * Registers a {@link HttpRequestHandler} for all {@link HttpMethod}s. The URI may be a pattern
+     * containing <code>{name}</code> segments, which match any single segment and are made
+     * available through {@link Http#getPathParameter(String)}, and may end with a <code>*</code>
+     * segment, which matches whatever remains of the URI.
+     *
      * @param uri     The URI to register a {@link HttpRequestHandler} for.
      * @param handler The {@link HttpRequestHandler} to use for the specified URI.
      * @return Any existing {@link HttpRequestHandler} for the specified URI, or {@code null} if
      *         there was none.
      */
-    public final synchronized HttpRequestHandler registerHttpHandler(String uri, HttpRequestHandler handler) {
-        return mHttpHandlers.put(uri, handler);
+    public final HttpRequestHandler registerHttpHandler(String uri, HttpRequestHandler handler) {
+        return registerHttpHandler(null, uri, handler);
+    }
+
+    /**
+     * Registers a {@link HttpRequestHandler} for a single {@link HttpMethod}. Handlers registered
+     * for a specific method take precedence over those registered for all methods. A request whose
+     * URI matches but whose method has no handler is rejected as not allowed.
+     *
+     * @param method  The {@link HttpMethod} to register the handler for, or {@code null} for all of
+     *                them.
+     * @param uri     The URI to register a {@link HttpRequestHandler} for. See {@link
+     *                #registerHttpHandler(String, HttpRequestHandler)} for the pattern syntax.
+     * @param handler The {@link HttpRequestHandler} to use for the specified URI.
+     * @return Any existing {@link HttpRequestHandler} for the specified method and URI, or {@code
+     *         null} if there was none.
+     */
+    public final synchronized HttpRequestHandler registerHttpHandler(HttpMethod method, String uri, HttpRequestHandler handler) {
+        HttpRequestHandler previous = mHttpHandlers.get(method, uri);
+        mHttpHandlers = mHttpHandlers.with(method, uri, handler);
+        return previous;
     }
 
     /**
      * @param uri The URI to get a {@link HttpRequestHandler} for.
-     * @return The {@link HttpRequestHandler} for the specified URI, or {@code null} if there is
-     *         none.
+     * @return The {@link HttpRequestHandler} registered for all methods that matches the specified
+     *         URI, or {@code null} if there is none.
+     */
+    public final HttpRequestHandler getHttpHandler(String uri) {
+        return mHttpHandlers.lookup(null, uri, null);
+    }
+
+    /**
+     * @param method The {@link HttpMethod} to get a {@link HttpRequestHandler} for.
+     * @param uri    The URI to get a {@link HttpRequestHandler} for.
+     * @return The {@link HttpRequestHandler} that matches the specified method and URI, or {@code
+     *         null} if there is none.
+     */
+    public final HttpRequestHandler getHttpHandler(HttpMethod method, String uri) {
+        return mHttpHandlers.lookup(method, uri, null);
+    }
+
+    /**
+     * @param method The {@link HttpMethod} to get a {@link HttpRequestHandler} for.
+     * @param uri    The URI to get a {@link HttpRequestHandler} for.
+     * @param match  The {@link HttpRouteMatch} to record any path parameters in.
+     * @return The {@link HttpRequestHandler} that matches the specified method and URI, or {@code
+     *         null} if there is none.
      */
-    public final synchronized HttpRequestHandler getHttpHandler(String uri) {
-        return mHttpHandlers.get(uri);
+    final HttpRequestHandler getHttpHandler(HttpMethod method, String uri, HttpRouteMatch match) {
+        return mHttpHandlers.lookup(method, uri, match);
     }
 
     /**
-     * @param uri     The URI to register a {@link WebSocketFactory} for.
+     * @param uri     The URI to register a {@link WebSocketFactory} for. See {@link
+     *                #registerHttpHandler(String, HttpRequestHandler)} for the pattern syntax.
      * @param handler The {@link WebSocketFactory} to use for the specified URI.
      * @return Any existing {@link WebSocketFactory} for the specified URI, or {@code null} if there
      *         was none.
      */
     public final synchronized WebSocketFactory registerWebSocketFactory(String uri, WebSocketFactory handler) {
-        return mWebSocketFactories.put(uri, handler);
+        WebSocketFactory previous = mWebSocketFactories.get(null, uri);
+        mWebSocketFactories = mWebSocketFactories.with(null, uri, handler);
+        return previous;
     }
 
     /**
      * @param uri The URI to get a {@link WebSocketFactory} for.
-     * @return The {@link WebSocketFactory} for the specified URI, or {@code null} if there is
-     *         none.
+     * @return The {@link WebSocketFactory} that matches the specified URI, or {@code null} if there
+     *         is none.
+     */
+    public final WebSocketFactory getWebSocketFactory(String uri) {
+        return mWebSocketFactories.lookup(null, uri, null);
+    }
+
+    /**
+     * @param uri   The URI to get a {@link WebSocketFactory} for.
+     * @param match The {@link HttpRouteMatch} to record any path parameters in.
+     * @return The {@link WebSocketFactory} that matches the specified URI, or {@code null} if there
+     *         is none.
+     */
+    final WebSocketFactory getWebSocketFactory(String uri, HttpRouteMatch match) {
+        return mWebSocketFactories.lookup(null, uri, match);
+    }
+
+    @Override
+    public SessionTimeouts getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @param timeouts The {@link SessionTimeouts} to apply to {@link Session}s created from now
+     *                 on, including those created through a {@link HttpsSessionFactory} that
+     *                 delegates to this factory.
      */
-    public final synchronized WebSocketFactory getWebSocketFactory(String uri) {
-        return mWebSocketFactories.get(uri);
+    public final void setTimeouts(SessionTimeouts timeouts) {
+        mTimeouts = timeouts;
     }
 
     @Override
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link HttpRequestHandler} that is given the body of a request piece by piece as it arrives,
+ * rather than having it collected in memory first. Request bodies for these handlers are not
+ * subject to the usual size limit. The handler is called on the connection's worker thread; while
+ * it is busy, further input is held only up to a fixed amount before the server stops reading from
+ * the connection, so a slow handler slows the client down rather than exhausting memory. Once the
+ * entire body has been delivered, {@link #handleHttpRequest(Http)} is called to produce the
+ * response.
+ */
+public interface HttpStreamingRequestHandler extends HttpRequestHandler {
+    /**
+     * Called once the headers of a request have been read, before any of its body is delivered.
+     *
+     * @param http The {@link Http} object the request came from.
+     */
+    default void handleRequestStart(Http http) throws IOException {
+        // Nothing to do by default
+    }
+
+    /**
+     * Called as each portion of the request body arrives. Any chunked transfer encoding has already
+     * been removed.
+     *
+     * @param http The {@link Http} object the request came from.
+     * @param data The next portion of the body. Its contents are only valid for the duration of
+     *             this call, so anything that needs to be retained must be copied.
+     */
+    void handleRequestBody(Http http, ByteBuffer data) throws IOException;
+}
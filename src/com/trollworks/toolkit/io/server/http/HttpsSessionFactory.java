@@ -14,6 +14,7 @@ package com.trollworks.toolkit.io.server.http;
 import com.trollworks.toolkit.io.server.NioServer;
 import com.trollworks.toolkit.io.server.Session;
 import com.trollworks.toolkit.io.server.SessionFactory;
+import com.trollworks.toolkit.io.server.SessionTimeouts;
 
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
@@ -31,4 +32,9 @@ public class HttpsSessionFactory implements SessionFactory {
     public Session createSession(NioServer server, SocketChannel channel) throws IOException {
         return new Session(server, channel, server.getSSLContext(), new Http(mHttpSessionFactory));
     }
+
+    @Override
+    public SessionTimeouts getTimeouts() {
+        return mHttpSessionFactory.getTimeouts();
+    }
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-memory cache of small static files under a {@link HttpSessionFactory}'s root. Each entry
+ * holds the complete serialized response, header block and body, in a direct {@link ByteBuffer},
+ * plus a gzip-compressed variant when that is worthwhile. Serving a hit is then just a matter of
+ * handing out duplicates of those buffers. Entries are evicted least recently used first once the
+ * total size exceeds the configured limit, and are invalidated when a {@link WatchService} on the
+ * root reports a change.
+ */
+public class StaticAssetCache {
+    private static final long                PREFIX_INTERVAL = 1000;
+    private              HttpSessionFactory  mFactory;
+    private              long                mMaximumBytes;
+    private              int                 mMaximumFileSize;
+    private              long                mTotalBytes;
+    private              Map<Path, Entry>    mEntries        = new LinkedHashMap<>(16, 0.75f, true);
+    private              WatchService        mWatchService;
+    private              Map<WatchKey, Path> mWatchedDirs    = new HashMap<>();
+    private              ByteBuffer          mPrefix;
+    private              long                mPrefixTime;
+
+    /**
+     * @param factory         The {@link HttpSessionFactory} whose root is to be cached.
+     * @param maximumBytes    The maximum number of bytes to hold across all entries.
+     * @param maximumFileSize The largest file, in bytes, that will be considered for caching.
+     */
+    StaticAssetCache(HttpSessionFactory factory, long maximumBytes, int maximumFileSize) throws IOException {
+        mFactory = factory;
+        mMaximumBytes = maximumBytes;
+        mMaximumFileSize = maximumFileSize;
+        mWatchService = FileSystems.getDefault().newWatchService();
+        watchTree(factory.getRootPath());
+        Thread thread = new Thread(this::watch, getClass().getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return The number of bytes currently held by the cache. */
+    public final synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /** @return The number of files currently held by the cache. */
+    public final synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /** Discards all entries. */
+    public final synchronized void clear() {
+        mEntries.clear();
+        mTotalBytes = 0;
+    }
+
+    /** Stops watching the file system and discards all entries. */
+    public final void close() {
+        try {
+            mWatchService.close();
+        } catch (IOException exception) {
+            Log.error(exception);
+        }
+        clear();
+    }
+
+    /**
+     * Sends a cached response for the file, loading it into the cache first if necessary.
+     *
+     * @param http     The {@link Http} connection to respond through.
+     * @param metadata The current {@link FileMetadata} for the file.
+     * @param gzip     {@code true} if the client accepts gzip-encoded content.
+     * @param headOnly {@code true} if only the header block should be sent.
+     * @return {@code true} if the response was sent, {@code false} if the file is not eligible for
+     *         caching and the caller must respond some other way.
+     */
+    final boolean send(Http http, FileMetadata metadata, boolean gzip, boolean headOnly) throws IOException {
+        if (metadata.getSize() > mMaximumFileSize) {
+            return false;
+        }
+        Path       path = metadata.getPath();
+        Entry      entry;
+        ByteBuffer prefix;
+        synchronized (this) {
+            entry = mEntries.get(path);
+            prefix = getPrefix();
+        }
+        if (entry == null || !entry.mETag.equals(metadata.getETag())) {
+            entry = load(metadata);
+            if (entry == null) {
+                return false;
+            }
+            synchronized (this) {
+                prefix = getPrefix();
+            }
+        }
+        ByteBuffer response = gzip && entry.mGzip != null ? entry.mGzip : entry.mIdentity;
+        int        head     = gzip && entry.mGzip != null ? entry.mGzipHeaderLength : entry.mIdentityHeaderLength;
+        response = response.duplicate();
+        if (headOnly) {
+            response.limit(head);
+        }
+        http.send(new ByteBuffer[] { prefix, response });
+        return true;
+    }
+
+    /**
+     * Must be called while holding this object's lock.
+     *
+     * @return A buffer holding the status line and Date header, which is shared by all requests
+     *         within the same second.
+     */
+    private ByteBuffer getPrefix() {
+        long now = System.currentTimeMillis();
+        if (mPrefix == null || now - mPrefixTime >= PREFIX_INTERVAL) {
+            byte[] bytes = ("HTTP/1.1 " + HttpStatusCode.OK.getDescription() + "\r\nDate: " + HttpResponse.formatDate(now) + "\r\n").getBytes(StandardCharsets.UTF_8);
+            mPrefix = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+            mPrefixTime = now - now % PREFIX_INTERVAL;
+        }
+        return mPrefix.duplicate();
+    }
+
+    private Entry load(FileMetadata metadata) throws IOException {
+        byte[] body;
+        try {
+            body = Files.readAllBytes(metadata.getPath());
+        } catch (IOException exception) {
+            return null;
+        }
+        if (body.length != metadata.getSize()) {
+            // The file changed underneath us; let the uncached path deal with it.
+            return null;
+        }
+        Entry entry = new Entry();
+        entry.mETag = metadata.getETag();
+        String headers = "Content-Type: " + metadata.getMimeType() + "\r\nETag: " + metadata.getETag() + "\r\nLast-Modified: " + HttpResponse.formatDate(metadata.getLastModified()) + "\r\nAccept-Ranges: bytes\r\nVary: Accept-Encoding\r\nConnection: keep-alive\r\n";
+        byte[] head = (headers + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        entry.mIdentity = build(head, body);
+        entry.mIdentityHeaderLength = head.length;
+        if (isCompressible(metadata.getMimeType())) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length);
+            try (GZIPOutputStream out = new GZIPOutputStream(baos)) {
+                out.write(body);
+            }
+            byte[] compressed = baos.toByteArray();
+            // Only worth it if it saves at least a tenth
+            if (compressed.length < body.length - body.length / 10) {
+                head = (headers + "Content-Encoding: gzip\r\nContent-Length: " + compressed.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+                entry.mGzip = build(head, compressed);
+                entry.mGzipHeaderLength = head.length;
+            }
+        }
+        Path path = metadata.getPath();
+        synchronized (this) {
+            Entry previous = mEntries.put(path, entry);
+            if (previous != null) {
+                mTotalBytes -= previous.size();
+            }
+            mTotalBytes += entry.size();
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (mTotalBytes > mMaximumBytes && iterator.hasNext()) {
+                mTotalBytes -= iterator.next().size();
+                iterator.remove();
+            }
+        }
+        return entry;
+    }
+
+    private static ByteBuffer build(byte[] head, byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(head.length + body.length);
+        buffer.put(head);
+        buffer.put(body);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/") || MimeTypes.JAVASCRIPT.equals(mimeType);
+    }
+
+    private synchronized void invalidate(Path path) {
+        Entry entry = mEntries.remove(path);
+        if (entry != null) {
+            mTotalBytes -= entry.size();
+        }
+    }
+
+    private void watchTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                synchronized (mWatchedDirs) {
+                    mWatchedDirs.put(key, dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = mWatchService.take();
+                Path     dir;
+                synchronized (mWatchedDirs) {
+                    dir = mWatchedDirs.get(key);
+                }
+                if (dir != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            clear();
+                            mFactory.clearMetadataCache();
+                            continue;
+                        }
+                        Path path = dir.resolve((Path) event.context()).toAbsolutePath().normalize();
+                        invalidate(path);
+                        mFactory.forgetFileMetadata(path);
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                            try {
+                                watchTree(path);
+                            } catch (IOException exception) {
+                                Log.error(exception);
+                            }
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    synchronized (mWatchedDirs) {
+                        mWatchedDirs.remove(key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException exception) {
+            // Done watching
+        }
+    }
+
+    private static class Entry {
+        String     mETag;
+        ByteBuffer mIdentity;
+        int        mIdentityHeaderLength;
+        ByteBuffer mGzip;
+        int        mGzipHeaderLength;
+
+        final long size() {
+            return mIdentity.capacity() + (mGzip != null ? mGzip.capacity() : 0);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import com.trollworks.toolkit.io.server.websocket.WebSocket.Opcode;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Decodes Web Socket frames straight out of the session's input buffers. Headers are read in bulk
+ * rather than a byte at a time, and masked payloads are unmasked eight bytes at a time as they are
+ * copied out of the input. Fragments of a message are assembled in a single reusable buffer, so a
+ * text message can be decoded directly from it. Text is deliberately not decoded from the input
+ * itself, even for a message that arrives in a single frame: the input is a direct buffer and has
+ * to be unmasked anyway, and turning a byte array into a {@link String} is several times faster
+ * than running a decoder over a direct buffer, so the unmasking copy is the only one made.
+ */
+final class FrameDecoder {
+    private static final VarHandle BIG_ENDIAN_LONGS       = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LITTLE_ENDIAN_LONGS    = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int       MAXIMUM_HEADER_LENGTH  = 14;
+    private static final int       MAXIMUM_CONTROL_LENGTH = 125;
+    private static final int       INITIAL_MESSAGE_SIZE   = 1024;
+    private static final int       MAXIMUM_RETAINED_SIZE  = 64 * 1024;
+    private              byte[]    mHeader                = new byte[MAXIMUM_HEADER_LENGTH];
+    private              int       mHeaderLength;
+    private              boolean   mInPayload;
+    private              boolean   mFinalFragment;
+    private              Opcode    mOpcode;
+    private              boolean   mCompressed;
+    private              boolean   mCompressionAllowed;
+    private              boolean   mMasked;
+    private              int       mMask;
+    private              int       mMaskPhase;
+    private              int       mRemaining;
+    private              byte[]    mTarget;
+    private              int       mTargetLength;
+    private              byte[]    mControl               = new byte[MAXIMUM_CONTROL_LENGTH];
+    private              int       mControlLength;
+    private              byte[]    mMessage               = new byte[INITIAL_MESSAGE_SIZE];
+    private              Opcode    mMessageOpcode;
+    private              boolean   mMessageCompressed;
+    private              Opcode    mResultOpcode;
+    private              boolean   mResultCompressed;
+    private              byte[]    mResult;
+    private              int       mResultLength;
+
+    /**
+     * Consumes input until a control frame or the final fragment of a message has been decoded,
+     * or the input runs out.
+     *
+     * @param in The input to decode from.
+     * @return {@code true} if a control frame or complete message is now available.
+     */
+    boolean decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (!mInPayload && !readHeader(in)) {
+                return false;
+            }
+            int amount = Math.min(in.remaining(), mRemaining);
+            if (amount > 0) {
+                readPayload(in, amount);
+            }
+            if (mRemaining == 0) {
+                mInPayload = false;
+                if (finishFrame()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param allowed Whether messages may be compressed, i.e. have the RSV1 bit set on their first
+     *                frame.
+     */
+    void setCompressionAllowed(boolean allowed) {
+        mCompressionAllowed = allowed;
+    }
+
+    /** @return {@code true} if the message that was last decoded is compressed. */
+    boolean isCompressed() {
+        return mResultCompressed;
+    }
+
+    /** @return The opcode of the control frame or message that was last decoded. */
+    Opcode getOpcode() {
+        return mResultOpcode;
+    }
+
+    /**
+     * @return The array holding the payload of the control frame or message that was last decoded.
+     *         It is only valid until the next call to {@link #decode(ByteBuffer)} and may be
+     *         larger than the payload.
+     */
+    byte[] getPayload() {
+        return mResult;
+    }
+
+    /** @return The length of the payload of the control frame or message that was last decoded. */
+    int getPayloadLength() {
+        return mResultLength;
+    }
+
+    /**
+     * @return A copy of the payload of the message that was last decoded, sized to fit. A message
+     *         that arrived in a single frame was decoded into its own array, which is returned
+     *         without copying.
+     */
+    byte[] takePayload() {
+        byte[] payload = mResult;
+        mResult = null;
+        return payload.length == mResultLength && payload != mMessage ? payload : Arrays.copyOf(payload, mResultLength);
+    }
+
+    private boolean readHeader(ByteBuffer in) throws IOException {
+        // Normally the whole header is present and this takes at most two bulk reads: one for the
+        // first two bytes, which determine the header's full length, and one for the rest.
+        while (true) {
+            int needed = mHeaderLength < 2 ? 2 : getHeaderLength();
+            if (mHeaderLength == needed) {
+                break;
+            }
+            int amount = Math.min(needed - mHeaderLength, in.remaining());
+            if (amount == 0) {
+                return false;
+            }
+            in.get(mHeader, mHeaderLength, amount);
+            mHeaderLength += amount;
+        }
+        parseHeader();
+        mHeaderLength = 0;
+        mInPayload = true;
+        return true;
+    }
+
+    private int getHeaderLength() {
+        int length = 2;
+        switch (mHeader[1] & 0x7F) {
+        case 126:
+            length += 2;
+            break;
+        case 127:
+            length += 8;
+            break;
+        default:
+            break;
+        }
+        return (mHeader[1] & 0x80) != 0 ? length + 4 : length;
+    }
+
+    private void parseHeader() throws IOException {
+        byte[] header = mHeader;
+        int    first  = header[0];
+        mFinalFragment = (first & 0x80) != 0;
+        mOpcode = Opcode.lookup((byte) (first & 0x0F));
+        if (mOpcode == Opcode.UNDEFINED) {
+            throw new IOException("Unknown opcode: " + (first & 0x0F));
+        }
+        // RSV1 marks a compressed message, and is only valid on the first frame of one
+        mCompressed = (first & 0x40) != 0;
+        if ((first & 0x30) != 0 || mCompressed && (!mCompressionAllowed || mOpcode.isControl() || mOpcode == Opcode.CONTINUATION)) {
+            throw new IOException("Invalid reserved bits");
+        }
+        if (mOpcode.isControl() && !mFinalFragment) {
+            throw new IOException("Fragmented control frame");
+        }
+        mMasked = (header[1] & 0x80) != 0;
+        long length = header[1] & 0x7F;
+        int  offset = 2;
+        if (length == 126) {
+            length = (header[2] & 0xFF) << 8 | header[3] & 0xFF;
+            offset = 4;
+        } else if (length == 127) {
+            length = 0;
+            for (int i = 2; i < 10; i++) {
+                length = length << 8 | header[i] & 0xFF;
+            }
+            offset = 10;
+        }
+        if (length < 0 || length > WebSocket.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Payload length too large");
+        }
+        if (mMasked) {
+            mMask = (header[offset] & 0xFF) << 24 | (header[offset + 1] & 0xFF) << 16 | (header[offset + 2] & 0xFF) << 8 | header[offset + 3] & 0xFF;
+            mMaskPhase = 0;
+        }
+        mRemaining = (int) length;
+        prepareTarget();
+    }
+
+    private void prepareTarget() throws IOException {
+        switch (mOpcode) {
+        case CONTINUATION:
+            if (mMessageOpcode == null) {
+                throw new IOException("Unexpected continuation frame");
+            }
+            if ((long) mTargetLength + mRemaining > Integer.MAX_VALUE - 8) {
+                throw new IOException("Message too large");
+            }
+            ensureMessageCapacity(mTargetLength + mRemaining);
+            break;
+        case TEXT:
+        case BINARY:
+            if (mMessageOpcode != null) {
+                throw new IOException("Expected continuation frame");
+            }
+            mMessageOpcode = mOpcode;
+            mMessageCompressed = mCompressed;
+            mTargetLength = 0;
+            if (mFinalFragment && mOpcode == Opcode.BINARY && !mCompressed) {
+                // The handler is given its own array anyway, so decode straight into it
+                mTarget = new byte[mRemaining];
+            } else {
+                if (mMessage.length > MAXIMUM_RETAINED_SIZE) {
+                    mMessage = new byte[INITIAL_MESSAGE_SIZE];
+                }
+                ensureMessageCapacity(mRemaining);
+            }
+            break;
+        default:
+            if (mRemaining > MAXIMUM_CONTROL_LENGTH) {
+                throw new IOException("Control frame payload too large");
+            }
+            mControlLength = 0;
+            break;
+        }
+    }
+
+    private void ensureMessageCapacity(int length) {
+        if (length > mMessage.length) {
+            mMessage = Arrays.copyOf(mMessage, Math.max(length, mMessage.length * 2));
+        }
+        mTarget = mMessage;
+    }
+
+    private void readPayload(ByteBuffer in, int amount) {
+        // Control frames may arrive between the fragments of a message, so they have their own
+        // buffer rather than disturbing the message being assembled.
+        boolean control = mOpcode.isControl();
+        byte[]  target  = control ? mControl : mTarget;
+        int     pos     = control ? mControlLength : mTargetLength;
+        if (control) {
+            mControlLength += amount;
+        } else {
+            mTargetLength += amount;
+        }
+        mRemaining -= amount;
+        if (!mMasked) {
+            in.get(target, pos, amount);
+            return;
+        }
+        int phase = mMaskPhase;
+        int end   = pos + amount;
+        if (amount >= 8) {
+            // Each long covers two full turns of the four byte mask, so the mask only has to be
+            // rotated to line up with where this frame's payload currently is.
+            int       rotated = Integer.rotateLeft(mMask, phase * 8);
+            long      mask    = (rotated & 0xFFFFFFFFL) * 0x100000001L;
+            VarHandle view    = BIG_ENDIAN_LONGS;
+            if (in.order() != ByteOrder.BIG_ENDIAN) {
+                mask = Long.reverseBytes(mask);
+                view = LITTLE_ENDIAN_LONGS;
+            }
+            while (end - pos >= 8) {
+                view.set(target, pos, in.getLong() ^ mask);
+                pos += 8;
+            }
+        }
+        while (pos < end) {
+            target[pos++] = (byte) (in.get() ^ mMask >>> 24 - phase * 8);
+            phase = phase + 1 & 3;
+        }
+        mMaskPhase = phase;
+    }
+
+    private boolean finishFrame() {
+        if (mOpcode.isControl()) {
+            mResultOpcode = mOpcode;
+            mResultCompressed = false;
+            mResult = mControl;
+            mResultLength = mControlLength;
+            return true;
+        }
+        if (!mFinalFragment) {
+            return false;
+        }
+        mResultOpcode = mMessageOpcode;
+        mResultCompressed = mMessageCompressed;
+        mResult = mTarget;
+        mResultLength = mTargetLength;
+        mMessageOpcode = null;
+        mTarget = null;
+        mTargetLength = 0;
+        return true;
+    }
+}
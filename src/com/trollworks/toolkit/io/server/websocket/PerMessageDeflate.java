@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression state for a {@link WebSocket} that has negotiated the permessage-deflate
+ * extension, as described in <a href="https://tools.ietf.org/html/rfc7692">RFC 7692</a>. Each
+ * message is compressed as raw deflate data ending in a sync flush, with the trailing empty block
+ * removed. Unless context takeover has been ruled out, the compression history carries over from
+ * one message to the next in each direction.
+ */
+final class PerMessageDeflate {
+    /** The name of the extension. */
+    static final         String   NAME                    = "permessage-deflate";
+    private static final byte[]   TAIL                    = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+    private static final int      MAXIMUM_WINDOW_BITS     = 15;
+    private static final int      MAXIMUM_INFLATED_LENGTH = 16 * 1024 * 1024;
+    private static final int      INITIAL_BUFFER_SIZE     = 1024;
+    private static final int      MAXIMUM_RETAINED_SIZE   = 64 * 1024;
+    private              Deflater mDeflater;
+    private              Inflater mInflater;
+    private              boolean  mServerNoContextTakeover;
+    private              boolean  mClientNoContextTakeover;
+    private              int      mThreshold;
+    private              String   mResponse;
+    private              byte[]   mInflated               = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * Creates compression state for encoding only, with no context takeover, suitable for sharing
+     * one compressed copy of a message between several {@link WebSocket}s.
+     */
+    PerMessageDeflate() {
+        mServerNoContextTakeover = true;
+    }
+
+    private PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover, int threshold, String response) {
+        mServerNoContextTakeover = serverNoContextTakeover;
+        mClientNoContextTakeover = clientNoContextTakeover;
+        mThreshold = threshold;
+        mResponse = response;
+    }
+
+    /**
+     * Picks the first acceptable permessage-deflate offer from a client's extension headers.
+     *
+     * @param offers          The values of the client's Sec-WebSocket-Extensions headers. May be
+     *                        {@code null}.
+     * @param threshold       Messages smaller than this many bytes will be sent uncompressed.
+     * @param contextTakeover Pass in {@code false} to compress each out-bound message on its own,
+     *                        even if the client would allow otherwise.
+     * @return The negotiated state, or {@code null} if no acceptable offer was made.
+     */
+    static PerMessageDeflate negotiate(List<String> offers, int threshold, boolean contextTakeover) {
+        if (offers != null) {
+            for (String header : offers) {
+                for (String offer : header.split(",")) {
+                    PerMessageDeflate deflate = accept(offer, threshold, contextTakeover);
+                    if (deflate != null) {
+                        return deflate;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static PerMessageDeflate accept(String offer, int threshold, boolean contextTakeover) {
+        String[] parts = offer.split(";");
+        if (!NAME.equalsIgnoreCase(parts[0].trim())) {
+            return null;
+        }
+        boolean     serverNoContextTakeover = !contextTakeover;
+        boolean     clientNoContextTakeover = false;
+        boolean     serverMaxWindowBits     = false;
+        Set<String> seen                    = new HashSet<>();
+        for (int i = 1; i < parts.length; i++) {
+            String[] param = parts[i].split("=", 2);
+            String   key   = param[0].trim().toLowerCase(Locale.ENGLISH);
+            String   value = param.length > 1 ? unquote(param[1].trim()) : null;
+            if (!seen.add(key)) {
+                return null;
+            }
+            switch (key) {
+            case "server_no_context_takeover":
+                if (value != null) {
+                    return null;
+                }
+                serverNoContextTakeover = true;
+                break;
+            case "client_no_context_takeover":
+                if (value != null) {
+                    return null;
+                }
+                clientNoContextTakeover = true;
+                break;
+            case "server_max_window_bits":
+                // The Deflater always uses the largest window, so a smaller one can't be honored
+                if (parseWindowBits(value) != MAXIMUM_WINDOW_BITS) {
+                    return null;
+                }
+                serverMaxWindowBits = true;
+                break;
+            case "client_max_window_bits":
+                // The Inflater copes with any window size, so there is nothing to ask for
+                if (value != null && parseWindowBits(value) == -1) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+            }
+        }
+        StringBuilder buffer = new StringBuilder(NAME);
+        if (serverNoContextTakeover) {
+            buffer.append("; server_no_context_takeover");
+        }
+        if (clientNoContextTakeover) {
+            buffer.append("; client_no_context_takeover");
+        }
+        if (serverMaxWindowBits) {
+            buffer.append("; server_max_window_bits=");
+            buffer.append(MAXIMUM_WINDOW_BITS);
+        }
+        return new PerMessageDeflate(serverNoContextTakeover, clientNoContextTakeover, threshold, buffer.toString());
+    }
+
+    private static String unquote(String value) {
+        if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static int parseWindowBits(String value) {
+        if (value != null && !value.isEmpty() && value.length() <= 2) {
+            try {
+                int bits = Integer.parseInt(value);
+                if (bits >= 8 && bits <= MAXIMUM_WINDOW_BITS) {
+                    return bits;
+                }
+            } catch (NumberFormatException exception) {
+                // Fall through
+            }
+        }
+        return -1;
+    }
+
+    /** @return The value to send back in the Sec-WebSocket-Extensions header. */
+    String getResponse() {
+        return mResponse;
+    }
+
+    /** @return {@code true} if each out-bound message is compressed on its own. */
+    boolean isServerNoContextTakeover() {
+        return mServerNoContextTakeover;
+    }
+
+    /**
+     * @param length The length of an out-bound message.
+     * @return {@code true} if a message of that length should be compressed.
+     */
+    boolean shouldCompress(int length) {
+        return length > 0 && length >= mThreshold;
+    }
+
+    /**
+     * Compresses an out-bound message.
+     *
+     * @param payload The message to compress. Its position is not changed.
+     * @return The compressed message, or {@code null} if it should be sent uncompressed instead.
+     */
+    ByteBuffer deflate(ByteBuffer payload) {
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        int    length = payload.remaining();
+        byte[] out    = new byte[length / 2 + 64];
+        int    count  = 0;
+        mDeflater.setInput(payload.duplicate());
+        while (true) {
+            count += mDeflater.deflate(out, count, out.length - count, Deflater.SYNC_FLUSH);
+            if (count < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        // The sync flush always ends with an empty stored block, which the receiver puts back
+        count -= TAIL.length;
+        if (mServerNoContextTakeover) {
+            mDeflater.reset();
+            if (count >= length) {
+                // Nothing else depends on this message's history, so the smaller form can be used
+                return null;
+            }
+        }
+        return ByteBuffer.wrap(out, 0, count);
+    }
+
+    /**
+     * Decompresses an in-bound message.
+     *
+     * @param data   The compressed message.
+     * @param length The length of the compressed message.
+     * @return The length of the decompressed message, which is available from {@link
+     *         #getInflated()} until the next call.
+     */
+    int inflate(byte[] data, int length) throws IOException {
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+        }
+        if (mInflated.length > MAXIMUM_RETAINED_SIZE) {
+            mInflated = new byte[INITIAL_BUFFER_SIZE];
+        }
+        try {
+            mInflater.setInput(data, 0, length);
+            int count = inflateInput(0);
+            if (!mInflater.finished()) {
+                mInflater.setInput(TAIL);
+                count = inflateInput(count);
+            }
+            if (mClientNoContextTakeover || mInflater.finished()) {
+                // A final deflate block ends the stream, so there is no history left to keep
+                mInflater.reset();
+            }
+            return count;
+        } catch (DataFormatException exception) {
+            throw new IOException("Invalid compressed data", exception);
+        }
+    }
+
+    private int inflateInput(int count) throws DataFormatException, IOException {
+        while (true) {
+            if (count == mInflated.length) {
+                if (count >= MAXIMUM_INFLATED_LENGTH) {
+                    throw new IOException("Decompressed message too large");
+                }
+                mInflated = Arrays.copyOf(mInflated, Math.min(count * 2, MAXIMUM_INFLATED_LENGTH));
+            }
+            int amount = mInflater.inflate(mInflated, count, mInflated.length - count);
+            count += amount;
+            if (amount == 0 && (mInflater.needsInput() || mInflater.finished() || mInflater.needsDictionary())) {
+                return count;
+            }
+        }
+    }
+
+    /** @return The buffer holding the message last decompressed by {@link #inflate(byte[], int)}. */
+    byte[] getInflated() {
+        return mInflated;
+    }
+
+    /** Releases the native resources held by the compressor and decompressor. */
+    void end() {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+}
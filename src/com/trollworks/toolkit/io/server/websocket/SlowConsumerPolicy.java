@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+/** How a {@link WebSocketGroup} treats a member that is not keeping up with its broadcasts. */
+public enum SlowConsumerPolicy {
+    /** Messages broadcast while the member is backed up are not sent to it. */
+    DROP,
+    /**
+     * Only the most recent message broadcast while the member is backed up is kept, and it is sent
+     * once the member has caught up.
+     */
+    COALESCE,
+    /** The member is disconnected. */
+    DISCONNECT
+}
@@ -14,10 +14,12 @@ package com.trollworks.toolkit.io.server.websocket;
 import com.trollworks.toolkit.io.Log;
 import com.trollworks.toolkit.io.server.Personality;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A {@link Personality} for handling Web Socket connections.<br>
@@ -47,24 +49,21 @@ import java.nio.charset.StandardCharsets;
  * </pre>
  */
 public class WebSocket extends Personality {
-    public static final int                   MAX_PAYLOAD_LENGTH = 128 * 1024;
-    private             WebSocketHandler      mHandler;
-    private             boolean               mFinalFragment;
-    private             Opcode                mOpcode;
-    private             Opcode                mLastOpcode;
-    private             byte[]                mData;
-    private             int                   mState;
-    private             long                  mLength;
-    private             int                   mCount;
-    private             byte[]                mMask;
-    private             ByteArrayOutputStream mBuffer;
-    private             boolean               mClosed;
+    public static final int                         MAX_PAYLOAD_LENGTH            = 128 * 1024;
+    /** A reasonable threshold to pass to {@link #enableCompression(int, boolean)}. */
+    public static final int                         DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private             WebSocketHandler            mHandler;
+    private             FrameDecoder                mDecoder;
+    private             int                         mCompressionThreshold         = -1;
+    private             boolean                     mCompressionContextTakeover;
+    private             PerMessageDeflate           mCompression;
+    private             List<WebSocketGroup.Member> mMemberships                  = new CopyOnWriteArrayList<>();
+    private             boolean                     mClosed;
 
     /** @param handler The {@link WebSocketHandler} to delegate to. */
     public WebSocket(WebSocketHandler handler) {
         mHandler = handler;
-        mBuffer = new ByteArrayOutputStream();
-        mLastOpcode = Opcode.UNDEFINED;
+        mDecoder = new FrameDecoder();
     }
 
     @Override
@@ -72,148 +71,84 @@ public class WebSocket extends Personality {
         return "WebSocket";
     }
 
+    /**
+     * Allows the permessage-deflate extension to be used on this connection, should the client
+     * offer it. Must be called before the connection is established, i.e. from {@link
+     * WebSocketFactory#createWebSocket(com.trollworks.toolkit.io.server.http.Http)}.
+     *
+     * @param threshold       Messages smaller than this many bytes are sent uncompressed, since the
+     *                        savings wouldn't be worth the effort.
+     * @param contextTakeover Pass in {@code true} to let each out-bound message refer back to the
+     *                        ones before it, which compresses better but keeps more state around.
+     *                        When {@code false}, a {@link WebSocketGroup} can share a single
+     *                        compressed copy of a broadcast message among its members.
+     */
+    public final void enableCompression(int threshold, boolean contextTakeover) {
+        mCompressionThreshold = Math.max(threshold, 0);
+        mCompressionContextTakeover = contextTakeover;
+    }
+
+    /**
+     * Called while the connection is being upgraded to select the extensions to use.
+     *
+     * @param offers The values of the client's Sec-WebSocket-Extensions headers. May be {@code
+     *               null}.
+     * @return The value for the Sec-WebSocket-Extensions header of the response, or {@code null}
+     *         if no extensions will be used.
+     */
+    public final String negotiateExtensions(List<String> offers) {
+        if (mCompressionThreshold >= 0) {
+            mCompression = PerMessageDeflate.negotiate(offers, mCompressionThreshold, mCompressionContextTakeover);
+            if (mCompression != null) {
+                mDecoder.setCompressionAllowed(true);
+                return mCompression.getResponse();
+            }
+        }
+        return null;
+    }
+
+    /** @return {@code true} if the permessage-deflate extension is in use. */
+    public final boolean isCompressed() {
+        return mCompression != null;
+    }
+
     /** Call when a Web Socket connection has started. */
     public void startConnection() {
         mHandler.webSocketConnected(this);
     }
 
-    private void reset() {
-        mFinalFragment = false;
-        mOpcode = Opcode.UNDEFINED;
-        mData = null;
-        mState = 0;
-        mLength = 0;
-        mCount = 0;
-        mMask = null;
-    }
-
     @Override
     public void processInput(ByteBuffer buffer) throws IOException {
-        while (buffer.hasRemaining()) {
-            if (parse(buffer.get())) {
-                switch (mOpcode) {
-                case CONTINUATION:
-                    mBuffer.write(mData);
-                    if (mFinalFragment) {
-                        if (mLastOpcode == Opcode.TEXT) {
-                            mHandler.webSocketTextData(this, mBuffer.toString(StandardCharsets.UTF_8.name()));
-                        } else {
-                            mHandler.webSocketBinaryData(this, mBuffer.toByteArray());
-                        }
-                        mBuffer.reset();
-                    }
-                    break;
-                case TEXT:
-                    if (mFinalFragment) {
-                        mHandler.webSocketTextData(this, new String(mData, StandardCharsets.UTF_8));
-                        mBuffer.reset();
-                    } else {
-                        mLastOpcode = mOpcode;
-                        mBuffer.write(mData);
-                    }
-                    break;
-                case BINARY:
-                    if (mFinalFragment) {
-                        mHandler.webSocketBinaryData(this, mData);
-                        mBuffer.reset();
-                    } else {
-                        mLastOpcode = mOpcode;
-                        mBuffer.write(mData);
-                    }
-                    break;
-                case PING:
-                    int length = mData != null ? mData.length : 0;
-                    byte[] response = new byte[length];
-                    if (length > 0) {
-                        System.arraycopy(mData, 0, response, 0, length);
-                    }
-                    send(Opcode.PONG, response);
-                    break;
-                case PONG:
-                    // Ignore
-                    break;
-                case CLOSE:
-                    requestClose(false);
-                    return;
-                default:
-                    Log.warn(getSession(), "Ignoring unknown WebSocket opcode: " + mOpcode.getOpcode());
-                    break;
+        while (mDecoder.decode(buffer)) {
+            Opcode opcode = mDecoder.getOpcode();
+            switch (opcode) {
+            case TEXT:
+            case BINARY:
+                byte[] data = mDecoder.getPayload();
+                int length = mDecoder.getPayloadLength();
+                if (mDecoder.isCompressed()) {
+                    length = mCompression.inflate(data, length);
+                    data = mCompression.getInflated();
                 }
-                reset();
-            }
-        }
-    }
-
-    private boolean parse(byte b) throws IOException {
-        switch (mState) {
-        case 0:
-            if ((b & 0x70) != 0) {
-                throw new IOException("Invalid reserved bits");
-            }
-            mFinalFragment = (b & 0x80) != 0;
-            mOpcode = Opcode.lookup((byte) (b & 0x0F));
-            if (mOpcode == Opcode.UNDEFINED) {
-                throw new IOException("Unknown opcode: " + (b & 0x0F));
-            }
-            if (mOpcode.isControl() && !mFinalFragment) {
-                throw new IOException("Fragmented control frame");
-            }
-            mState = 1;
-            return false;
-        case 1:
-            if ((b & 0x80) != 0) {
-                mMask = new byte[4];
-            }
-            mLength = b & 0x7F;
-            if (mLength == 127) {
-                mLength = 0;
-                mState = 2;
-            } else if (mLength == 126) {
-                mLength = 0;
-                mState = 3;
-            } else {
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
-            }
-            return false;
-        case 2:
-            mLength |= (b & 0xFFL) << (7 - mCount) * 8;
-            if (mLength > MAX_PAYLOAD_LENGTH) {
-                throw new IOException("Payload length too large");
-            }
-            if (++mCount == 8) {
-                mCount = 0;
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
-            }
-            return false;
-        case 3:
-            mLength |= (b & 0xFFL) << (1 - mCount) * 8;
-            if (++mCount == 2) {
-                mCount = 0;
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
-            }
-            return false;
-        case 4:
-            mMask[mCount] = b;
-            if (++mCount == mMask.length) {
-                mCount = 0;
-                mState = 5;
-            }
-            return false;
-        case 5:
-            if (mCount < mData.length) {
-                mData[mCount] = mMask != null ? (byte) ((b ^ mMask[mCount % mMask.length]) & 0xFF) : b;
-                ++mCount;
-            }
-            if (mCount == mData.length) {
-                mState = 6;
-                return true;
+                if (opcode == Opcode.TEXT) {
+                    mHandler.webSocketTextData(this, new String(data, 0, length, StandardCharsets.UTF_8));
+                } else {
+                    mHandler.webSocketBinaryData(this, data == mDecoder.getPayload() ? mDecoder.takePayload() : Arrays.copyOf(data, length));
+                }
+                break;
+            case PING:
+                send(Opcode.PONG, Arrays.copyOf(mDecoder.getPayload(), mDecoder.getPayloadLength()));
+                break;
+            case PONG:
+                // Ignore
+                break;
+            case CLOSE:
+                requestClose(false);
+                return;
+            default:
+                Log.warn(getSession(), "Ignoring unknown WebSocket opcode: " + opcode.getOpcode());
+                break;
             }
-            return false;
-        default:
-            throw new IOException("Read past end of frame");
         }
     }
 
@@ -221,12 +156,21 @@ public class WebSocket extends Personality {
     public void closing() throws IOException {
         if (!mClosed) {
             mClosed = true;
+            for (WebSocketGroup.Member membership : mMemberships) {
+                membership.getGroup().remove(this);
+            }
             try {
                 mHandler.webSocketClosed(this);
             } catch (Throwable throwable) {
                 Log.error(getSession(), throwable);
             }
             send(Opcode.CLOSE, new byte[0]);
+            synchronized (this) {
+                if (mCompression != null) {
+                    mCompression.end();
+                    mCompression = null;
+                }
+            }
         }
     }
 
@@ -249,36 +193,141 @@ public class WebSocket extends Personality {
     }
 
     private void send(Opcode opcode, byte[] data) {
-        ByteArrayOutputStream baos      = new ByteArrayOutputStream(10 + Math.min(data.length, MAX_PAYLOAD_LENGTH));
-        int                   position  = 0;
-        int                   remaining = data.length;
-        while (true) {
-            boolean finalFragment = remaining <= MAX_PAYLOAD_LENGTH;
-            int     length        = finalFragment ? remaining : MAX_PAYLOAD_LENGTH;
-            baos.write((byte) (((finalFragment ? 0x80 : 0) | opcode.getOpcode()) & 0xFF));
-            if (length < 126) {
-                baos.write(length & 0xFF);
-            } else if (length < 65536) {
-                baos.write(126);
-                baos.write(length >>> 8 & 0xFF);
-                baos.write(length & 0xFF);
-            } else {
-                baos.write(127);
-                for (int i = 56; i >= 0; i -= 8) {
-                    baos.write((int) ((long) length >>> i & 0xFF));
-                }
+        send(opcode, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Sends a message as one or more frames. Each frame is a small header buffer followed by a
+     * view of the caller's payload, so the payload itself is never copied and the pair goes out
+     * in a single gathering write. Synchronized so that frames sent from different threads don't
+     * interleave, and so that the compression history stays in the same order as the messages.
+     */
+    private synchronized void send(Opcode opcode, ByteBuffer payload) {
+        boolean compressed = false;
+        if (mCompression != null && !opcode.isControl() && mCompression.shouldCompress(payload.remaining())) {
+            ByteBuffer deflated = mCompression.deflate(payload);
+            if (deflated != null) {
+                payload = deflated;
+                compressed = true;
             }
+        }
+        int          remaining = payload.remaining();
+        int          fragments = Math.max(1, (remaining + MAX_PAYLOAD_LENGTH - 1) / MAX_PAYLOAD_LENGTH);
+        ByteBuffer[] buffers   = new ByteBuffer[remaining > 0 ? fragments * 2 : 1];
+        int          index     = 0;
+        do {
+            int length = Math.min(remaining, MAX_PAYLOAD_LENGTH);
+            remaining -= length;
+            buffers[index++] = createHeader(remaining == 0, compressed, opcode, length);
             if (length > 0) {
-                baos.write(data, position, length);
-                opcode = Opcode.CONTINUATION;
-                position += length;
-                remaining -= length;
-            }
-            if (remaining <= 0) {
-                break;
+                ByteBuffer fragment = payload.slice();
+                fragment.limit(length);
+                payload.position(payload.position() + length);
+                buffers[index++] = fragment;
             }
+            opcode = Opcode.CONTINUATION;
+            compressed = false;
+        } while (remaining > 0);
+        send(buffers);
+    }
+
+    /**
+     * @param finalFragment Whether this is the last frame of the message.
+     * @param compressed    Whether this is the first frame of a compressed message.
+     * @param opcode        The frame's opcode.
+     * @param length        The length of the frame's payload.
+     * @return A buffer holding an unmasked frame header, ready to be sent.
+     */
+    static ByteBuffer createHeader(boolean finalFragment, boolean compressed, Opcode opcode, int length) {
+        ByteBuffer header = ByteBuffer.allocate(getHeaderLength(length));
+        putHeader(header, finalFragment, compressed, opcode, length);
+        header.flip();
+        return header;
+    }
+
+    private static int getHeaderLength(int length) {
+        return length < 126 ? 2 : length < 65536 ? 4 : 10;
+    }
+
+    private static void putHeader(ByteBuffer buffer, boolean finalFragment, boolean compressed, Opcode opcode, int length) {
+        buffer.put((byte) ((finalFragment ? 0x80 : 0) | (compressed ? 0x40 : 0) | opcode.getOpcode()));
+        if (length < 126) {
+            buffer.put((byte) length);
+        } else if (length < 65536) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) 127);
+            buffer.putLong(length);
+        }
+    }
+
+    /**
+     * Encodes a complete message, fragmenting it as {@link #send(byte[])} would, into a single
+     * read-only buffer. The result may be handed to any number of {@link WebSocket}s via {@link
+     * ByteBuffer#duplicate()} without encoding it again.
+     *
+     * @param opcode     The opcode of the message.
+     * @param compressed Whether the payload has been compressed with permessage-deflate.
+     * @param data       The payload of the message. Its position is not changed.
+     * @return The encoded frames.
+     */
+    static ByteBuffer encode(Opcode opcode, boolean compressed, ByteBuffer data) {
+        int length    = data.remaining();
+        int fragments = Math.max(1, (length + MAX_PAYLOAD_LENGTH - 1) / MAX_PAYLOAD_LENGTH);
+        int size      = length;
+        for (int i = 0; i < fragments; i++) {
+            size += getHeaderLength(Math.min(length - i * MAX_PAYLOAD_LENGTH, MAX_PAYLOAD_LENGTH));
+        }
+        ByteBuffer buffer   = ByteBuffer.allocate(size);
+        int        position = 0;
+        do {
+            int amount = Math.min(length - position, MAX_PAYLOAD_LENGTH);
+            putHeader(buffer, position + amount == length, compressed, opcode, amount);
+            buffer.put(data.slice().position(position).limit(position + amount));
+            position += amount;
+            opcode = Opcode.CONTINUATION;
+            compressed = false;
+        } while (position < length);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Sends frames previously produced by {@link #encode(Opcode, boolean, ByteBuffer)}.
+     *
+     * @param frames The encoded frames. Must be a buffer of its own, such as a duplicate, since
+     *               its position is advanced as it is sent.
+     */
+    synchronized void sendEncoded(ByteBuffer frames) {
+        send(frames);
+    }
+
+    /**
+     * @param length The length of a broadcast message.
+     * @return {@code true} if this {@link WebSocket} would send the message compressed and can
+     *         accept a compressed copy shared with other {@link WebSocket}s.
+     */
+    boolean acceptsSharedCompression(int length) {
+        PerMessageDeflate compression = mCompression;
+        return compression != null && compression.isServerNoContextTakeover() && compression.shouldCompress(length);
+    }
+
+    /** @param membership A {@link WebSocketGroup} membership this {@link WebSocket} now has. */
+    void joined(WebSocketGroup.Member membership) {
+        mMemberships.add(membership);
+    }
+
+    /** @param membership A {@link WebSocketGroup} membership this {@link WebSocket} no longer has. */
+    void left(WebSocketGroup.Member membership) {
+        mMemberships.remove(membership);
+    }
+
+    @Override
+    protected void outputDrained() {
+        for (WebSocketGroup.Member membership : mMemberships) {
+            membership.flush();
         }
-        send(ByteBuffer.wrap(baos.toByteArray()));
     }
 
     enum Opcode {
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import com.trollworks.toolkit.io.server.websocket.WebSocket.Opcode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of {@link WebSocket}s that receive the same messages. A broadcast message is encoded and
+ * framed just once, into a read-only buffer, and each member is handed its own duplicate of that
+ * buffer. The cost of a broadcast therefore grows with the number of members rather than with the
+ * number of members times the size of the message. Secure connections still have to encrypt the
+ * message individually, however. Members that use compression without context takeover share a
+ * single compressed copy as well, while those with context takeover are sent the message
+ * uncompressed, since their compression state can't be shared.<br>
+ * <br>
+ * A member is considered slow once it has more than a set number of buffers waiting to be sent,
+ * at which point its {@link SlowConsumerPolicy} decides what happens to further broadcasts.
+ * Members are removed automatically when their connection closes.
+ */
+public class WebSocketGroup {
+    /** The default maximum number of buffers that may be waiting to be sent to a member. */
+    public static final int                                  DEFAULT_MAXIMUM_PENDING = 32;
+    private             ConcurrentHashMap<WebSocket, Member> mMembers                = new ConcurrentHashMap<>();
+    private             int                                  mMaximumPending;
+    private             PerMessageDeflate                    mCompressor;
+
+    /** Creates a new, empty {@link WebSocketGroup} that uses {@link #DEFAULT_MAXIMUM_PENDING}. */
+    public WebSocketGroup() {
+        this(DEFAULT_MAXIMUM_PENDING);
+    }
+
+    /**
+     * Creates a new, empty {@link WebSocketGroup}.
+     *
+     * @param maximumPending The maximum number of buffers that may be waiting to be sent to a
+     *                       member before it is considered slow.
+     */
+    public WebSocketGroup(int maximumPending) {
+        mMaximumPending = Math.max(maximumPending, 1);
+    }
+
+    /**
+     * Adds a {@link WebSocket} to this group, replacing its policy if it is already a member.
+     *
+     * @param webSocket The {@link WebSocket} to add.
+     * @param policy    The {@link SlowConsumerPolicy} to apply to it.
+     */
+    public final void add(WebSocket webSocket, SlowConsumerPolicy policy) {
+        Member member   = new Member(this, webSocket, policy);
+        Member previous = mMembers.put(webSocket, member);
+        if (previous != null) {
+            webSocket.left(previous);
+        }
+        webSocket.joined(member);
+    }
+
+    /**
+     * @param webSocket The {@link WebSocket} to remove.
+     * @return {@code true} if it was a member of this group.
+     */
+    public final boolean remove(WebSocket webSocket) {
+        Member member = mMembers.remove(webSocket);
+        if (member != null) {
+            webSocket.left(member);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param webSocket The {@link WebSocket} to check.
+     * @return {@code true} if it is a member of this group.
+     */
+    public final boolean contains(WebSocket webSocket) {
+        return mMembers.containsKey(webSocket);
+    }
+
+    /** @return The number of members. */
+    public final int size() {
+        return mMembers.size();
+    }
+
+    /**
+     * Sends a text message to every member.
+     *
+     * @param msg The message to send.
+     */
+    public final void broadcast(String msg) {
+        broadcast(Opcode.TEXT, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a binary message to every member.
+     *
+     * @param data The data to send. A copy is made, so it may be modified once this call returns.
+     */
+    public final void broadcast(byte[] data) {
+        broadcast(Opcode.BINARY, data);
+    }
+
+    private void broadcast(Opcode opcode, byte[] data) {
+        ByteBuffer payload          = ByteBuffer.wrap(data);
+        ByteBuffer frames           = WebSocket.encode(opcode, false, payload);
+        ByteBuffer compressedFrames = null;
+        boolean    compressed       = false;
+        for (Member member : mMembers.values()) {
+            if (member.mWebSocket.acceptsSharedCompression(data.length)) {
+                if (!compressed) {
+                    compressed = true;
+                    ByteBuffer deflated = deflate(payload);
+                    if (deflated != null) {
+                        compressedFrames = WebSocket.encode(opcode, true, deflated);
+                    }
+                }
+                if (compressedFrames != null) {
+                    member.deliver(compressedFrames);
+                    continue;
+                }
+            }
+            member.deliver(frames);
+        }
+    }
+
+    private synchronized ByteBuffer deflate(ByteBuffer payload) {
+        if (mCompressor == null) {
+            mCompressor = new PerMessageDeflate();
+        }
+        return mCompressor.deflate(payload);
+    }
+
+    /** A {@link WebSocket}'s membership in a {@link WebSocketGroup}. */
+    static final class Member {
+        private WebSocketGroup     mGroup;
+        private WebSocket          mWebSocket;
+        private SlowConsumerPolicy mPolicy;
+        private ByteBuffer         mCoalesced;
+
+        Member(WebSocketGroup group, WebSocket webSocket, SlowConsumerPolicy policy) {
+            mGroup = group;
+            mWebSocket = webSocket;
+            mPolicy = policy;
+        }
+
+        /** @return The {@link WebSocketGroup} this is a membership in. */
+        WebSocketGroup getGroup() {
+            return mGroup;
+        }
+
+        /** @param frames The encoded frames of a broadcast message. */
+        synchronized void deliver(ByteBuffer frames) {
+            if (mWebSocket.getPendingOutputCount() < mGroup.mMaximumPending) {
+                // Anything held back is older than this message, so it is no longer wanted
+                mCoalesced = null;
+                mWebSocket.sendEncoded(frames.duplicate());
+                return;
+            }
+            switch (mPolicy) {
+            case COALESCE:
+                mCoalesced = frames;
+                break;
+            case DISCONNECT:
+                mGroup.remove(mWebSocket);
+                mWebSocket.requestClose(true);
+                break;
+            default:
+                break;
+            }
+        }
+
+        /** Sends any message held back while the member was slow. */
+        synchronized void flush() {
+            if (mCoalesced != null) {
+                ByteBuffer frames = mCoalesced;
+                mCoalesced = null;
+                mWebSocket.sendEncoded(frames.duplicate());
+            }
+        }
+    }
+}
@@ -18,14 +18,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 
-/** A very simple XML reader with very low memory overhead. */
+/**
+ * A very simple XML reader with very low memory overhead.
+ * <p>
+ * When created from a {@link Path} or a {@link ByteBuffer}, the reader works directly on UTF-8
+ * bytes. Tag and attribute names are then looked up in a symbol table, so a repeated name is
+ * always the same {@link String} instance and costs no allocation. Attribute values are not decoded
+ * until they are asked for.
+ */
 public class XMLReader implements AutoCloseable {
     /** Debug option: whether to output skipped tags to standard out. */
     public static        boolean                 SHOW_SKIPPED_TAGS = Numbers.extractBoolean(System.getProperty("SHOW_SKIPPED_TAGS", "false"));
@@ -49,6 +61,20 @@ public class XMLReader implements AutoCloseable {
     private              boolean                 mIsWhitespace;
     private              String                  mName;
     private              boolean                 mIsEmptyElementTag;
+    private              ByteBuffer              mBytes;
+    private              int                     mPeek0Pos;
+    private              int                     mPeek1Pos;
+    private              int                     mPendingLowSurrogate;
+    private              byte[]                  mScratch;
+    private              String[]                mSymbols;
+    private              int[]                   mSymbolHashes;
+    private              int                     mSymbolCount;
+    private              String[]                mAttributeNames;
+    private              int[]                   mAttributeStarts;
+    private              int[]                   mAttributeEnds;
+    private              boolean[]               mAttributeIsPlain;
+    private              String[]                mAttributeValues;
+    private              int                     mAttributeCount;
 
     /**
      * Creates a new {@link XMLReader}.
@@ -100,6 +126,50 @@ public class XMLReader implements AutoCloseable {
         mPeek0 = reader.read();
         mPeek1 = reader.read();
         mEOF = mPeek0 == -1;
+        defineStandardEntities();
+    }
+
+    /**
+     * Creates a new {@link XMLReader} that reads UTF-8 data from a memory-mapped file.
+     *
+     * @param path The {@link Path} to read from.
+     */
+    public XMLReader(Path path) throws IOException {
+        this(map(path));
+    }
+
+    /**
+     * Creates a new {@link XMLReader} that reads UTF-8 data directly from a buffer.
+     *
+     * @param buffer The {@link ByteBuffer} to read from. The bytes between its position and limit
+     *               are used. The buffer's position is not changed.
+     */
+    public XMLReader(ByteBuffer buffer) throws IOException {
+        mBytes = buffer.duplicate();
+        mPos = mBytes.position();
+        mCount = mBytes.limit();
+        mSymbols = new String[64];
+        mSymbolHashes = new int[64];
+        mAttributeNames = new String[8];
+        mAttributeStarts = new int[8];
+        mAttributeEnds = new int[8];
+        mAttributeIsPlain = new boolean[8];
+        mAttributeValues = new String[8];
+        seek(mPos);
+        defineStandardEntities();
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file too large to map: " + path);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private void defineStandardEntities() {
         defineCharacterEntity("amp", "&");
         defineCharacterEntity("apos", "'");
         defineCharacterEntity("gt", ">");
@@ -107,10 +177,12 @@ public class XMLReader implements AutoCloseable {
         defineCharacterEntity("quot", "\"");
     }
 
-    /** Closes the underlying {@link Reader}. */
+    /** Closes the underlying {@link Reader}, if any. */
     @Override
     public void close() throws IOException {
-        mReader.close();
+        if (mReader != null) {
+            mReader.close();
+        }
     }
 
     /** @return A marker for determining if you've come to the end of a specific tag. */
@@ -269,6 +341,13 @@ public class XMLReader implements AutoCloseable {
         }
         mColumn++;
 
+        if (mBytes != null) {
+            mPeek0Pos = mPeek1Pos;
+            mPeek1Pos = mPos;
+            mPeek1 = decode();
+            return result;
+        }
+
         if (mPos >= mCount) {
             mCount = mReader.read(mBuffer, 0, mBuffer.length);
             if (mCount <= 0) {
@@ -282,6 +361,157 @@ public class XMLReader implements AutoCloseable {
         return result;
     }
 
+    /** Repositions a byte-oriented reader so that the next character is the one at {@code pos}. */
+    private void seek(int pos) {
+        mPos = pos;
+        mPendingLowSurrogate = 0;
+        mPeek0Pos = mPos;
+        mPeek0 = decode();
+        mPeek1Pos = mPos;
+        mPeek1 = decode();
+        mEOF = mPeek0 == -1;
+    }
+
+    /** @return The next character from the UTF-8 bytes, or -1 at the end of the data. */
+    private int decode() {
+        if (mPendingLowSurrogate != 0) {
+            int ch = mPendingLowSurrogate;
+            mPendingLowSurrogate = 0;
+            return ch;
+        }
+        if (mPos >= mCount) {
+            return -1;
+        }
+        int b = mBytes.get(mPos++);
+        if (b >= 0) {
+            return b;
+        }
+        b &= 0xFF;
+        int count;
+        int min;
+        int max = 0xBF;
+        if (b >= 0xC2 && b <= 0xDF) {
+            count = 1;
+            min = 0x80;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            count = 2;
+            min = b == 0xE0 ? 0xA0 : 0x80;
+            if (b == 0xED) {
+                max = 0x9F;
+            }
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            count = 3;
+            min = b == 0xF0 ? 0x90 : 0x80;
+            if (b == 0xF4) {
+                max = 0x8F;
+            }
+        } else {
+            return 0xFFFD;
+        }
+        int cp = b & (0x3F >> count);
+        for (int i = 0; i < count; i++) {
+            if (mPos >= mCount) {
+                return 0xFFFD;
+            }
+            int next = mBytes.get(mPos) & 0xFF;
+            if (next < min || next > max) {
+                return 0xFFFD;
+            }
+            min = 0x80;
+            max = 0xBF;
+            mPos++;
+            cp = cp << 6 | next & 0x3F;
+        }
+        if (cp >= 0x10000) {
+            mPendingLowSurrogate = Character.lowSurrogate(cp);
+            return Character.highSurrogate(cp);
+        }
+        return cp;
+    }
+
+    /**
+     * @param start The index of the first byte.
+     * @param end   The index after the last byte.
+     * @param hash  The hash of the bytes, computed as {@link String#hashCode()} would.
+     * @return The name made up of the specified ASCII bytes, from the symbol table.
+     */
+    private String symbol(int start, int end, int hash) {
+        int mask  = mSymbols.length - 1;
+        int index = hash & mask;
+        for (String one = mSymbols[index]; one != null; one = mSymbols[index]) {
+            if (mSymbolHashes[index] == hash && matches(one, start, end)) {
+                return one;
+            }
+            index = index + 1 & mask;
+        }
+        String name = string(start, end, StandardCharsets.ISO_8859_1);
+        mSymbols[index] = name;
+        mSymbolHashes[index] = hash;
+        if (++mSymbolCount * 2 > mSymbols.length) {
+            String[] symbols = mSymbols;
+            int[]    hashes  = mSymbolHashes;
+            mSymbols = new String[symbols.length * 2];
+            mSymbolHashes = new int[symbols.length * 2];
+            mask = mSymbols.length - 1;
+            for (int i = 0; i < symbols.length; i++) {
+                if (symbols[i] != null) {
+                    index = hashes[i] & mask;
+                    while (mSymbols[index] != null) {
+                        index = index + 1 & mask;
+                    }
+                    mSymbols[index] = symbols[i];
+                    mSymbolHashes[index] = hashes[i];
+                }
+            }
+        }
+        return name;
+    }
+
+    private boolean matches(String name, int start, int end) {
+        int length = end - start;
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != mBytes.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int start, int end, Charset charset) {
+        int length = end - start;
+        if (mBytes.hasArray()) {
+            return new String(mBytes.array(), mBytes.arrayOffset() + start, length, charset);
+        }
+        if (mScratch == null || mScratch.length < length) {
+            mScratch = new byte[Math.max(length, 256)];
+        }
+        mBytes.get(start, mScratch, 0, length);
+        return new String(mScratch, 0, length, charset);
+    }
+
+    /**
+     * Updates the line and column numbers as if the characters encoded in the specified bytes had
+     * been consumed by {@link #read()}.
+     */
+    private void advance(int start, int end) {
+        int last = 0;
+        for (int i = start; i < end; i++) {
+            int b = mBytes.get(i);
+            if (b == '\n' && last == '\r') {
+                mColumn++;
+            } else if (b == '\n' || b == '\r') {
+                mLine++;
+                mColumn = 1;
+            } else if ((b & 0xC0) != 0x80) {
+                mColumn += (b & 0xF8) == 0xF0 ? 2 : 1;
+            }
+            last = b;
+        }
+    }
+
     private void fail(String desc) throws IOException {
         throw new IOException(desc + " pos: " + getPositionDescription());
     }
@@ -325,6 +555,25 @@ public class XMLReader implements AutoCloseable {
             fail("name expected");
         }
 
+        if (mBytes != null) {
+            int start = mPeek0Pos;
+            int end   = start + 1;
+            int hash  = ch;
+            while (end < mCount) {
+                ch = mBytes.get(end);
+                if (ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9' || ch == '_' || ch == '-' || ch == ':' || ch == '.') {
+                    hash = 31 * hash + ch;
+                    end++;
+                } else {
+                    break;
+                }
+            }
+            mColumn += end - start;
+            String name = symbol(start, end, hash);
+            seek(end);
+            return name;
+        }
+
         do {
             push(read());
             ch = mPeek0;
@@ -492,6 +741,11 @@ public class XMLReader implements AutoCloseable {
                 fail("<" + mName + ">: invalid delimiter: " + (char) ch);
             }
 
+            if (mBytes != null) {
+                readAttributeValue(attrName, ch);
+                continue;
+            }
+
             pos = mTextPos;
             pushText(ch);
             mAttributeMap.put(attrName, pop(pos));
@@ -502,6 +756,116 @@ public class XMLReader implements AutoCloseable {
         }
     }
 
+    /**
+     * Records the location of an attribute value in a byte-oriented reader, leaving it to be decoded
+     * if it is asked for, and moves past the value's closing delimiter.
+     */
+    private void readAttributeValue(String name, int delimiter) throws IOException {
+        int     start = mPeek0Pos;
+        int     end   = start;
+        boolean plain = true;
+        while (true) {
+            if (end >= mCount) {
+                advance(start, end);
+                fail(UNEXPECTED_EOF);
+            }
+            int b = mBytes.get(end);
+            if (b == delimiter) {
+                break;
+            }
+            if (b < 0 || b == '&' || b == '\r' || b == '\n') {
+                plain = false;
+            }
+            end++;
+        }
+        if (plain) {
+            mColumn += end - start;
+        } else {
+            advance(start, end);
+        }
+        if (mAttributeCount == mAttributeNames.length) {
+            int length = mAttributeCount * 2;
+            mAttributeNames = Arrays.copyOf(mAttributeNames, length);
+            mAttributeStarts = Arrays.copyOf(mAttributeStarts, length);
+            mAttributeEnds = Arrays.copyOf(mAttributeEnds, length);
+            mAttributeIsPlain = Arrays.copyOf(mAttributeIsPlain, length);
+            mAttributeValues = Arrays.copyOf(mAttributeValues, length);
+        }
+        mAttributeNames[mAttributeCount] = name;
+        mAttributeStarts[mAttributeCount] = start;
+        mAttributeEnds[mAttributeCount] = end;
+        mAttributeIsPlain[mAttributeCount] = plain;
+        mAttributeValues[mAttributeCount++] = null;
+        seek(end);
+        read(); // skip end quote
+    }
+
+    private String attribute(String name) {
+        if (mBytes == null) {
+            return mAttributeMap.get(name);
+        }
+        // Searched from the end, so that the last of any duplicates wins, as it would in a map.
+        for (int i = mAttributeCount; --i >= 0; ) {
+            if (mAttributeNames[i].equals(name)) {
+                String value = mAttributeValues[i];
+                if (value == null) {
+                    value = decodeAttributeValue(i);
+                    mAttributeValues[i] = value;
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private String decodeAttributeValue(int index) {
+        if (mAttributeIsPlain[index]) {
+            return string(mAttributeStarts[index], mAttributeEnds[index], StandardCharsets.ISO_8859_1);
+        }
+        String value = string(mAttributeStarts[index], mAttributeEnds[index], StandardCharsets.UTF_8);
+        if (value.indexOf('&') == -1 && value.indexOf('\r') == -1) {
+            return value;
+        }
+        // Reproduce what reading the value a character at a time would have done.
+        int           length = value.length();
+        StringBuilder buffer = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char ch = value.charAt(i);
+            if (ch == '\r') {
+                buffer.append(ch);
+                if (i + 1 < length && value.charAt(i + 1) == '\n') {
+                    i++;
+                }
+            } else if (ch == '&') {
+                int end = value.indexOf(';', i + 1);
+                if (end == -1) {
+                    buffer.append(value, i, length);
+                    break;
+                }
+                String code = value.substring(i + 1, end);
+                String result;
+                if (!code.isEmpty() && code.charAt(0) == '#') {
+                    try {
+                        int c = code.length() > 1 && code.charAt(1) == 'x' ? Integer.parseInt(code.substring(2), 16) : Integer.parseInt(code.substring(1));
+                        result = c != 0 ? String.valueOf((char) c) : "";
+                    } catch (NumberFormatException exception) {
+                        result = "&" + code + ";";
+                    }
+                } else {
+                    result = mEntityMap.get(code);
+                    if (result == null) {
+                        result = "&" + code + ";";
+                    }
+                }
+                buffer.append(result);
+                i = end;
+            } else {
+                buffer.append(ch);
+            }
+        }
+        return buffer.toString();
+    }
+
     private boolean pushEntity() throws IOException {
         boolean whitespace = true;
         int     pos;
@@ -553,6 +917,10 @@ public class XMLReader implements AutoCloseable {
                 if (!pushEntity()) {
                     whitespace = false;
                 }
+            } else if (mBytes != null && delimiter == '<' && next > 0 && next < 0x80) {
+                if (!pushAsciiText()) {
+                    whitespace = false;
+                }
             } else {
                 if (next > ' ') {
                     whitespace = false;
@@ -564,6 +932,54 @@ public class XMLReader implements AutoCloseable {
         return whitespace;
     }
 
+    /**
+     * Pushes the run of ASCII text starting at the next character of a byte-oriented reader, up to
+     * the next markup, entity or non-ASCII character, without going through {@link #read()} for
+     * each character.
+     *
+     * @return Whether the run was entirely whitespace.
+     */
+    private boolean pushAsciiText() {
+        boolean whitespace = true;
+        boolean plain      = true;
+        int     start      = mPeek0Pos;
+        int     end        = start;
+        while (end < mCount) {
+            int b = mBytes.get(end);
+            if (b == '<' || b == '&' || b <= 0) {
+                break;
+            }
+            if (b > ' ') {
+                whitespace = false;
+            } else if (b == '\r' || b == '\n') {
+                plain = false;
+            }
+            end++;
+        }
+        if (mTextPos + end - start > mTextBuffer.length) {
+            mTextBuffer = Arrays.copyOf(mTextBuffer, Math.max(mTextPos + end - start, mTextBuffer.length * 2));
+        }
+        if (plain) {
+            for (int i = start; i < end; i++) {
+                mTextBuffer[mTextPos++] = (char) mBytes.get(i);
+            }
+            mColumn += end - start;
+        } else {
+            int last = 0;
+            for (int i = start; i < end; i++) {
+                int b = mBytes.get(i);
+                // A '\n' that follows a '\r' is dropped, just as read() does.
+                if (b != '\n' || last != '\r') {
+                    mTextBuffer[mTextPos++] = (char) b;
+                }
+                last = b;
+            }
+            advance(start, end);
+        }
+        seek(end);
+        return whitespace;
+    }
+
     /**
      * Define a character entity mapping.
      *
@@ -633,7 +1049,7 @@ public class XMLReader implements AutoCloseable {
      * @return The value of the attribute.
      */
     public String getAttribute(String name) {
-        return mAttributeMap.get(name);
+        return attribute(name);
     }
 
     /**
@@ -642,7 +1058,7 @@ public class XMLReader implements AutoCloseable {
      * @return The value of the attribute.
      */
     public String getAttribute(String name, String defValue) {
-        String value = mAttributeMap.get(name);
+        String value = attribute(name);
         return value != null ? value : defValue;
     }
 
@@ -651,7 +1067,7 @@ public class XMLReader implements AutoCloseable {
      * @return Whether the attribute is present.
      */
     public boolean hasAttribute(String name) {
-        return mAttributeMap.get(name) != null;
+        return attribute(name) != null;
     }
 
     /**
@@ -659,7 +1075,7 @@ public class XMLReader implements AutoCloseable {
      * @return Whether the attribute is present and set to a 'true' value.
      */
     public boolean isAttributeSet(String name) {
-        return Numbers.extractBoolean(mAttributeMap.get(name));
+        return Numbers.extractBoolean(attribute(name));
     }
 
     /**
@@ -669,7 +1085,7 @@ public class XMLReader implements AutoCloseable {
      * @return The value of the tag.
      */
     public int getAttributeAsInteger(String name, int defValue) {
-        return Numbers.extractInteger(mAttributeMap.get(name), defValue, false);
+        return Numbers.extractInteger(attribute(name), defValue, false);
     }
 
     /**
@@ -679,7 +1095,7 @@ public class XMLReader implements AutoCloseable {
      * @return The value of the tag.
      */
     public long getAttributeAsLong(String name, long defValue) {
-        return Numbers.extractLong(mAttributeMap.get(name), defValue, false);
+        return Numbers.extractLong(attribute(name), defValue, false);
     }
 
     /**
@@ -689,11 +1105,16 @@ public class XMLReader implements AutoCloseable {
      * @return The value of the tag.
      */
     public double getAttributeAsDouble(String name, double defValue) {
-        return Numbers.extractDouble(mAttributeMap.get(name), defValue, false);
+        return Numbers.extractDouble(attribute(name), defValue, false);
     }
 
     /** @return The map of attributes. */
     public HashMap<String, String> getAttributes() {
+        if (mBytes != null && mAttributeMap.isEmpty()) {
+            for (int i = 0; i < mAttributeCount; i++) {
+                mAttributeMap.put(mAttributeNames[i], attribute(mAttributeNames[i]));
+            }
+        }
         return mAttributeMap;
     }
 
@@ -719,6 +1140,7 @@ public class XMLReader implements AutoCloseable {
             mIsWhitespace = true;
             do {
                 mAttributeMap.clear();
+                mAttributeCount = 0;
                 mName = null;
                 mText = null;
                 mType = peekType();
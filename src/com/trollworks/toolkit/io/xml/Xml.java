@@ -11,11 +11,7 @@
 
 package com.trollworks.toolkit.io.xml;
 
-import com.trollworks.toolkit.annotation.XmlAttr;
-import com.trollworks.toolkit.annotation.XmlNoSort;
 import com.trollworks.toolkit.annotation.XmlTag;
-import com.trollworks.toolkit.annotation.XmlTagMinimumVersion;
-import com.trollworks.toolkit.annotation.XmlTagVersion;
 import com.trollworks.toolkit.io.xml.helper.XmlBooleanHelper;
 import com.trollworks.toolkit.io.xml.helper.XmlByteHelper;
 import com.trollworks.toolkit.io.xml.helper.XmlCharacterHelper;
@@ -37,36 +33,32 @@ import com.trollworks.toolkit.io.xml.helper.XmlPrimitiveShortHelper;
 import com.trollworks.toolkit.io.xml.helper.XmlShortHelper;
 import com.trollworks.toolkit.io.xml.helper.XmlStringHelper;
 import com.trollworks.toolkit.io.xml.helper.XmlUUIDHelper;
-import com.trollworks.toolkit.utility.introspection.FieldAnnotation;
-import com.trollworks.toolkit.utility.introspection.Introspection;
 import com.trollworks.toolkit.workarounds.PathToUri;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.xml.stream.XMLStreamException;
 
 /**
  * Provides easy loading and saving of objects that have been annotated with appropriate xml tags.
  */
 public class Xml {
-    private static final List<XmlObjectHelper>          HELPERS    = new ArrayList<>();
-    private static final Map<Class<?>, XmlObjectHelper> HELPER_MAP = new HashMap<>();
+    private static final    List<XmlObjectHelper>          HELPERS    = new ArrayList<>();
+    private static volatile Map<Class<?>, XmlObjectHelper> HELPER_MAP = new ConcurrentHashMap<>();
 
     static {
         registerHelper(XmlPrimitiveBooleanHelper.SINGLETON);
@@ -98,32 +90,42 @@ public class Xml {
     public static final void registerHelper(XmlObjectHelper helper) {
         synchronized (HELPERS) {
             HELPERS.add(helper);
-            HELPER_MAP.clear();
+            HELPER_MAP = new ConcurrentHashMap<>();
         }
     }
 
     public static final void unregisterHelper(XmlObjectHelper helper) {
         synchronized (HELPERS) {
             HELPERS.remove(helper);
-            HELPER_MAP.clear();
+            HELPER_MAP = new ConcurrentHashMap<>();
         }
     }
 
-    private static XmlObjectHelper getHelper(Class<?> clazz) {
-        synchronized (HELPERS) {
-            XmlObjectHelper helper = HELPER_MAP.get(clazz);
-            if (helper == null) {
-                helper = XmlGenericHelper.SINGLETON;
+    /**
+     * @return An object that is replaced whenever the set of registered helpers changes, so that
+     *         anything holding on to the results of {@link #getHelper(Class)} can tell when they
+     *         are stale.
+     */
+    static Object getHelperRegistry() {
+        return HELPER_MAP;
+    }
+
+    static XmlObjectHelper getHelper(Class<?> clazz) {
+        Map<Class<?>, XmlObjectHelper> map    = HELPER_MAP;
+        XmlObjectHelper                helper = map.get(clazz);
+        if (helper == null) {
+            helper = XmlGenericHelper.SINGLETON;
+            synchronized (HELPERS) {
                 for (XmlObjectHelper one : HELPERS) {
                     if (one.canHandleClass(clazz)) {
                         helper = one;
                         break;
                     }
                 }
-                HELPER_MAP.put(clazz, helper);
             }
-            return helper;
+            map.put(clazz, helper);
         }
+        return helper;
     }
 
     /**
@@ -225,7 +227,54 @@ public class Xml {
         if (xmlTag == null) {
             throw new XMLStreamException("The root object has not been annotated.");
         }
-        try (XmlParser xml = new XmlParser(in)) {
+        return load(new XmlParser(in), xmlTag, obj, context);
+    }
+
+    /**
+     * Loads the contents of an xml file into the specified object, leaving the tags of any {@link
+     * XmlLazy} fields to be parsed when they are first asked for.
+     *
+     * @param path The {@link Path} to load from.
+     * @param obj  The object to load the xml data into.
+     * @return The object that was passed in.
+     */
+    public static final <T> T loadLazily(Path path, T obj) throws XMLStreamException {
+        return loadLazily(path, obj, null);
+    }
+
+    /**
+     * Loads the contents of an xml file into the specified object, leaving the tags of any {@link
+     * XmlLazy} fields to be parsed when they are first asked for. The file is read only once; each
+     * {@link XmlLazy} keeps its own copy of the raw bytes of its tag, so the file may be changed or
+     * overwritten afterwards, including by saving the object back to it, without affecting fields
+     * that have yet to be loaded. Only UTF-8 files without a DOCTYPE can be loaded lazily; anything
+     * else is loaded in full, as {@link #load(Path, Object, XmlParserContext)} would. Likewise,
+     * tags that come after the first use of a namespace prefix or declaration are loaded in full.
+     *
+     * @param path    The {@link Path} to load from.
+     * @param obj     The object to load the xml data into.
+     * @param context Optional context for recording state while loading.
+     * @return The object that was passed in.
+     */
+    public static final <T> T loadLazily(Path path, T obj, XmlParserContext context) throws XMLStreamException {
+        XmlTag xmlTag = obj.getClass().getAnnotation(XmlTag.class);
+        if (xmlTag == null) {
+            throw new XMLStreamException("The root object has not been annotated.");
+        }
+        try {
+            return load(new XmlParser(ByteBuffer.wrap(Files.readAllBytes(path))), xmlTag, obj, context);
+        } catch (XMLStreamException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new XMLStreamException(exception);
+        }
+    }
+
+    private static <T> T load(XmlParser parser, XmlTag xmlTag, T obj, XmlParserContext context) throws XMLStreamException {
+        try (XmlParser xml = parser) {
+            if (context != null && context.getParser() == null) {
+                context.setParser(xml);
+            }
             String tag = xml.nextTag();
             if (tag != null && tag.equals(xmlTag.value())) {
                 load(xml, obj, context);
@@ -240,7 +289,7 @@ public class Xml {
     }
 
     @SuppressWarnings({"rawtypes", "unchecked"})
-    private static void load(XmlParser xml, Object obj, XmlParserContext context) throws XMLStreamException {
+    static void load(XmlParser xml, Object obj, XmlParserContext context) throws XMLStreamException {
         try {
             if (context == null) {
                 context = new XmlParserContext(xml);
@@ -249,70 +298,72 @@ public class Xml {
             if (obj instanceof TagWillLoad) {
                 ((TagWillLoad) obj).xmlWillLoad(context);
             }
-            Class<?> tagClass = obj.getClass();
-            int      version  = xml.getIntegerAttribute(ATTR_VERSION, 0);
-            if (version > getVersionOfTag(tagClass)) {
+            XmlBinding binding = XmlBinding.get(obj.getClass());
+            int        version = xml.getIntegerAttribute(ATTR_VERSION, 0);
+            if (version > binding.getVersion()) {
                 throw new XMLStreamException(String.format("The tag '%s' is from a newer version and cannot be loaded.", xml.getCurrentTag()), xml.getLocation());
             }
-            if (version < getMinimumLoadableVersionOfTag(tagClass)) {
+            if (version < binding.getMinimumVersion()) {
                 throw new XMLStreamException(String.format("The tag '%s' is from an older version and cannot be loaded.", xml.getCurrentTag()), xml.getLocation());
             }
             if (version != 0) {
                 context.pushVersion(version);
             }
-            Set<String> unmatchedAttributes = new HashSet<>();
-            for (int i = xml.getAttributeCount(); --i > 0; ) {
-                unmatchedAttributes.add(xml.getAttributeName(i));
-            }
-            unmatchedAttributes.remove(ATTR_VERSION);
-            for (FieldAnnotation<XmlAttr> fa : Introspection.getDeepFieldAnnotations(tagClass, XmlAttr.class)) {
-                Field field = fa.getField();
-                Introspection.makeFieldAccessible(field);
-                String name = fa.getAnnotation().value();
-                unmatchedAttributes.remove(name);
-                getHelper(field.getType()).loadAttributeValue(context, obj, field, name);
+            XmlBinding.Attribute[] attributes = binding.getAttributes();
+            for (int i = 0; i < attributes.length; i++) {
+                XmlBinding.Attribute attribute = attributes[i];
+                binding.getAttributeHelper(i).loadAttributeValue(context, obj, attribute.getField(), attribute.getName());
             }
             if (obj instanceof TagAttributesLoaded) {
-                ((TagAttributesLoaded) obj).xmlAttributesLoaded(context, unmatchedAttributes);
-            }
-            Map<String, Field> subTags = new HashMap<>();
-            for (FieldAnnotation<XmlTag> fa : Introspection.getDeepFieldAnnotations(tagClass, XmlTag.class)) {
-                subTags.put(fa.getAnnotation().value(), fa.getField());
+                ((TagAttributesLoaded) obj).xmlAttributesLoaded(context, binding.getUnmatchedAttributes(xml));
             }
             String tag;
             while ((tag = xml.nextTag(marker)) != null) {
-                Field field = subTags.get(tag);
-                if (field != null) {
-                    Introspection.makeFieldAccessible(field);
-                    Class<?> type = field.getType();
-                    if (String.class == type) {
-                        field.set(obj, xml.getText());
-                    } else if (Collection.class.isAssignableFrom(type)) {
-                        Type genericType = field.getGenericType();
-                        if (genericType instanceof ParameterizedType) {
-                            genericType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
-                        } else {
+                XmlBinding.SubTag subTag = binding.getSubTag(tag);
+                if (subTag != null) {
+                    Object fieldObj;
+                    switch (subTag.getKind()) {
+                    case XmlBinding.SubTag.TEXT:
+                        subTag.set(obj, xml.getText());
+                        break;
+                    case XmlBinding.SubTag.COLLECTION:
+                        Class<?> cls = subTag.getElementType();
+                        if (cls == null) {
                             throw new XMLStreamException(String.format("Unable to create object for collection tag '%s'.", tag), xml.getLocation());
                         }
-                        Object   fieldObj;
-                        Class<?> cls = Class.forName(genericType.getTypeName());
                         if (cls == String.class) {
                             fieldObj = xml.getText();
                         } else {
-                            fieldObj = cls.getDeclaredConstructor().newInstance();
+                            fieldObj = subTag.newInstance();
                             load(xml, fieldObj, context);
                         }
-                        ((Collection) field.get(obj)).add(fieldObj);
-                    } else {
-                        Object fieldObj = null;
+                        ((Collection) subTag.get(obj)).add(fieldObj);
+                        break;
+                    case XmlBinding.SubTag.LAZY:
+                        if (subTag.getElementType() == null) {
+                            throw new XMLStreamException(String.format("Unable to create object for lazy tag '%s'.", tag), xml.getLocation());
+                        }
+                        ByteBuffer bytes = xml.skipAndCapture();
+                        if (bytes != null) {
+                            fieldObj = new XmlLazy(bytes, subTag, context);
+                        } else {
+                            fieldObj = subTag.newInstance();
+                            load(xml, fieldObj, context);
+                            fieldObj = new XmlLazy(fieldObj);
+                        }
+                        subTag.set(obj, fieldObj);
+                        break;
+                    default:
+                        fieldObj = null;
                         if (obj instanceof TagObjectCreator) {
                             fieldObj = ((TagObjectCreator) obj).xmlCreateObject(context, tag);
                         }
                         if (fieldObj == null) {
-                            fieldObj = type.getDeclaredConstructor().newInstance();
+                            fieldObj = subTag.newInstance();
                         }
                         load(xml, fieldObj, context);
-                        field.set(obj, fieldObj);
+                        subTag.set(obj, fieldObj);
+                        break;
                     }
                 } else if (obj instanceof TagUnmatched) {
                     ((TagUnmatched) obj).xmlUnmatchedTag(context, tag);
@@ -320,16 +371,16 @@ public class Xml {
                     xml.skip();
                 }
             }
-            if (obj instanceof TagLoaded) {
+            if (obj instanceof TagLoaded && !context.defer((TagLoaded) obj)) {
                 ((TagLoaded) obj).xmlLoaded(context);
             }
             if (version != 0) {
                 context.popVersion();
             }
-        } catch (XMLStreamException exception) {
+        } catch (XMLStreamException | Error exception) {
             throw exception;
-        } catch (Exception exception) {
-            throw new XMLStreamException(exception);
+        } catch (Throwable throwable) {
+            throw new XMLStreamException(throwable);
         }
     }
 
@@ -422,20 +473,27 @@ public class Xml {
                 if (obj instanceof TagWillSave) {
                     ((TagWillSave) obj).xmlWillSave(xml);
                 }
-                XmlObjectHelper helper = getHelper(objClass);
+                XmlBinding      binding = XmlBinding.get(objClass);
+                XmlObjectHelper helper  = binding.getHelper();
                 if (helper != XmlGenericHelper.SINGLETON) {
                     helper.emitAsTag(xml, tag, obj);
-                } else if (obj instanceof TagExtraSubTags || hasSubTags(obj, objClass)) {
-                    xml.startTag(tag);
-                    emitAttributes(xml, obj, objClass);
-                    emitSubTags(xml, obj, objClass);
-                    if (obj instanceof TagExtraSubTags) {
-                        ((TagExtraSubTags) obj).xmlEmitExtraSubTags(xml);
-                    }
-                    xml.endTag();
                 } else {
-                    xml.startEmptyTag(tag);
-                    emitAttributes(xml, obj, objClass);
+                    XmlBinding.SubTag[] subTags  = binding.getSubTags();
+                    Object[]            contents = getSubTagContents(obj, subTags);
+                    if (contents != null || obj instanceof TagExtraSubTags) {
+                        xml.startTag(tag);
+                        emitAttributes(xml, obj, binding);
+                        if (contents != null) {
+                            emitSubTags(xml, subTags, contents);
+                        }
+                        if (obj instanceof TagExtraSubTags) {
+                            ((TagExtraSubTags) obj).xmlEmitExtraSubTags(xml);
+                        }
+                        xml.endTag();
+                    } else {
+                        xml.startEmptyTag(tag);
+                        emitAttributes(xml, obj, binding);
+                    }
                 }
                 if (obj instanceof TagSaved) {
                     ((TagSaved) obj).xmlSaved(xml);
@@ -448,83 +506,99 @@ public class Xml {
         }
     }
 
-    private static boolean hasSubTags(Object obj, Class<?> objClass) throws XMLStreamException {
-        for (FieldAnnotation<XmlTag> fa : Introspection.getDeepFieldAnnotations(objClass, XmlTag.class)) {
+    /**
+     * Reads each sub-tag field of an object once, keeping the values that will produce output.
+     *
+     * @return The values, indexed the same as the sub-tags, or {@code null} if none of them will
+     *         produce output.
+     */
+    private static Object[] getSubTagContents(Object obj, XmlBinding.SubTag[] subTags) throws XMLStreamException {
+        Object[] contents = null;
+        for (int i = 0; i < subTags.length; i++) {
             try {
-                Field field = fa.getField();
-                Introspection.makeFieldAccessible(field);
-                Object content = field.get(obj);
+                Object content = subTags[i].get(obj);
+                if (content != null && subTags[i].getKind() == XmlBinding.SubTag.LAZY) {
+                    content = ((XmlLazy<?>) content).get();
+                }
                 if (content != null && (!(content instanceof String) || !((String) content).isEmpty())) {
-                    if (Collection.class.isAssignableFrom(field.getType())) {
-                        //noinspection CastConflictsWithInstanceof,ConstantConditions
-                        if (!((Collection<?>) content).isEmpty()) {
-                            return true;
+                    //noinspection CastConflictsWithInstanceof,ConstantConditions
+                    if (subTags[i].getKind() != XmlBinding.SubTag.COLLECTION || !((Collection<?>) content).isEmpty()) {
+                        if (contents == null) {
+                            contents = new Object[subTags.length];
                         }
-                    } else {
-                        return true;
+                        contents[i] = content;
                     }
                 }
-            } catch (Exception exception) {
-                throw new XMLStreamException(exception);
+            } catch (XMLStreamException | Error exception) {
+                throw exception;
+            } catch (Throwable throwable) {
+                throw new XMLStreamException(throwable);
             }
         }
-        return false;
+        return contents;
     }
 
-    private static void emitAttributes(XmlGenerator xml, Object obj, Class<?> objClass) throws XMLStreamException, ReflectiveOperationException {
-        xml.addAttributeNot(ATTR_VERSION, getVersionOfTag(objClass), 0);
-        for (FieldAnnotation<XmlAttr> fa : Introspection.getDeepFieldAnnotations(objClass, XmlAttr.class)) {
-            Field field = fa.getField();
-            Introspection.makeFieldAccessible(field);
-            getHelper(field.getType()).emitAsAttribute(xml, obj, field, fa.getAnnotation().value());
+    private static void emitAttributes(XmlGenerator xml, Object obj, XmlBinding binding) throws XMLStreamException, ReflectiveOperationException {
+        xml.addAttributeNot(ATTR_VERSION, binding.getVersion(), 0);
+        XmlBinding.Attribute[] attributes = binding.getAttributes();
+        for (int i = 0; i < attributes.length; i++) {
+            XmlBinding.Attribute attribute = attributes[i];
+            binding.getAttributeHelper(i).emitAsAttribute(xml, obj, attribute.getField(), attribute.getName());
         }
         if (obj instanceof TagExtraAttributes) {
             ((TagExtraAttributes) obj).xmlEmitExtraAttributes(xml);
         }
     }
 
-    private static void emitSubTags(XmlGenerator xml, Object obj, Class<?> objClass) throws XMLStreamException {
-        for (FieldAnnotation<XmlTag> fa : Introspection.getDeepFieldAnnotations(objClass, XmlTag.class)) {
-            try {
-                Field field = fa.getField();
-                Introspection.makeFieldAccessible(field);
-                Object content = field.get(obj);
-                if (content != null && (!(content instanceof String) || !((String) content).isEmpty())) {
-                    XmlTag   subTag = fa.getAnnotation();
-                    Class<?> type   = field.getType();
-                    if (Collection.class.isAssignableFrom(type)) {
-                        //noinspection CastConflictsWithInstanceof,ConstantConditions
+    private static void emitSubTags(XmlGenerator xml, XmlBinding.SubTag[] subTags, Object[] contents) throws XMLStreamException {
+        for (int i = 0; i < subTags.length; i++) {
+            Object content = contents[i];
+            if (content != null) {
+                XmlBinding.SubTag subTag = subTags[i];
+                try {
+                    if (subTag.getKind() == XmlBinding.SubTag.COLLECTION) {
                         Collection<?> collection = (Collection<?>) content;
-                        if (!collection.isEmpty()) {
-                            if (!field.isAnnotationPresent(XmlNoSort.class)) {
-                                Object[] data = collection.toArray();
-                                Arrays.sort(data);
-                                collection = Arrays.asList(data);
+                        String        tag        = subTag.getName();
+                        if (subTag.isSorted() && !isInNaturalOrder(collection)) {
+                            Object[] data = collection.toArray();
+                            Arrays.sort(data);
+                            for (Object one : data) {
+                                add(xml, tag, one);
                             }
-                            String tag = subTag.value();
+                        } else {
                             for (Object one : collection) {
                                 add(xml, tag, one);
                             }
                         }
                     } else {
-                        add(xml, subTag.value(), content);
+                        add(xml, subTag.getName(), content);
                     }
+                } catch (XMLStreamException exception) {
+                    throw exception;
+                } catch (Exception exception) {
+                    throw new XMLStreamException(exception);
                 }
-            } catch (XMLStreamException exception) {
-                throw exception;
-            } catch (Exception exception) {
-                throw new XMLStreamException(exception);
             }
         }
     }
 
-    private static int getVersionOfTag(Class<?> objClass) {
-        XmlTagVersion tagVersion = objClass.getAnnotation(XmlTagVersion.class);
-        return tagVersion != null ? tagVersion.value() : 0;
-    }
-
-    private static int getMinimumLoadableVersionOfTag(Class<?> objClass) {
-        XmlTagMinimumVersion tagVersion = objClass.getAnnotation(XmlTagMinimumVersion.class);
-        return tagVersion != null ? tagVersion.value() : 0;
+    /**
+     * @param collection The collection to check.
+     * @return {@code true} if iterating over the collection already produces its elements in the
+     *         order that sorting them would.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static boolean isInNaturalOrder(Collection<?> collection) {
+        if (collection instanceof SortedSet) {
+            return ((SortedSet<?>) collection).comparator() == null;
+        }
+        Object last = null;
+        for (Object one : collection) {
+            if (last != null && ((Comparable) last).compareTo(one) > 0) {
+                return false;
+            }
+            last = one;
+        }
+        return true;
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.xml;
+
+import com.trollworks.toolkit.utility.Timing;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Loads a batch of xml files into objects, parsing several of them at once. Each file gets its own
+ * {@link XmlParserContext}. {@link TagLoaded} notifications are held back while a file is being
+ * parsed and are then delivered on the thread that called {@link #load()}, one file at a time, in
+ * the order the files were added. A failure in one file does not stop the others from loading.
+ *
+ * @param <T> The type of object being loaded.
+ */
+public class XmlBatchLoader<T> {
+    private int              mParallelism;
+    private List<Request<T>> mRequests = new ArrayList<>();
+
+    /** Creates a new {@link XmlBatchLoader} that uses one thread per available processor. */
+    public XmlBatchLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new {@link XmlBatchLoader}.
+     *
+     * @param parallelism The maximum number of files to parse at the same time.
+     */
+    public XmlBatchLoader(int parallelism) {
+        mParallelism = Math.max(parallelism, 1);
+    }
+
+    /**
+     * @param path    The {@link Path} to load from.
+     * @param factory Creates the object to load the xml data into. Called on the thread that
+     *                parses the file.
+     */
+    public void add(Path path, Supplier<? extends T> factory) {
+        mRequests.add(new Request<>(path, factory));
+    }
+
+    /**
+     * Loads all of the files that have been added since the last call to this method.
+     *
+     * @return The results, in the order the files were added.
+     */
+    public List<Result<T>> load() {
+        List<Request<T>> requests = mRequests;
+        List<Result<T>>  results  = new ArrayList<>(requests.size());
+        mRequests = new ArrayList<>();
+        if (!requests.isEmpty()) {
+            ForkJoinPool pool = new ForkJoinPool(Math.min(mParallelism, requests.size()));
+            try {
+                List<ForkJoinTask<Result<T>>> tasks = new ArrayList<>(requests.size());
+                for (Request<T> request : requests) {
+                    tasks.add(pool.submit(request::parse));
+                }
+                for (ForkJoinTask<Result<T>> task : tasks) {
+                    Result<T> result = task.join();
+                    result.deliver();
+                    results.add(result);
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return results;
+    }
+
+    private static class Request<T> {
+        Path                  mPath;
+        Supplier<? extends T> mFactory;
+
+        Request(Path path, Supplier<? extends T> factory) {
+            mPath = path;
+            mFactory = factory;
+        }
+
+        Result<T> parse() {
+            Timing             timing    = new Timing();
+            XmlParserContext   context   = new XmlParserContext(null);
+            T                  obj       = null;
+            XMLStreamException exception = null;
+            context.deferLoadedNotifications();
+            try {
+                obj = mFactory.get();
+                Xml.load(mPath, obj, context);
+            } catch (XMLStreamException ex) {
+                exception = ex;
+            } catch (Exception ex) {
+                exception = new XMLStreamException(ex);
+            }
+            return new Result<>(mPath, obj, context, exception, timing.elapsed());
+        }
+    }
+
+    /**
+     * The outcome of loading one file.
+     *
+     * @param <T> The type of object being loaded.
+     */
+    public static class Result<T> {
+        private Path               mPath;
+        private T                  mObject;
+        private XmlParserContext   mContext;
+        private XMLStreamException mException;
+        private long               mElapsed;
+
+        Result(Path path, T obj, XmlParserContext context, XMLStreamException exception, long elapsed) {
+            mPath = path;
+            mObject = obj;
+            mContext = context;
+            mException = exception;
+            mElapsed = elapsed;
+        }
+
+        void deliver() {
+            if (mException == null) {
+                try {
+                    mContext.deliverDeferredLoaded();
+                } catch (XMLStreamException exception) {
+                    mException = exception;
+                } catch (Exception exception) {
+                    mException = new XMLStreamException(exception);
+                }
+            }
+        }
+
+        /** @return The {@link Path} that was loaded. */
+        public Path getPath() {
+            return mPath;
+        }
+
+        /** @return The loaded object, or {@code null} if loading failed. */
+        public T getObject() {
+            return mException == null ? mObject : null;
+        }
+
+        /** @return The {@link XmlParserContext} that was used while loading. */
+        public XmlParserContext getContext() {
+            return mContext;
+        }
+
+        /** @return {@code true} if the file was loaded successfully. */
+        public boolean wasSuccessful() {
+            return mException == null;
+        }
+
+        /** @return The reason loading failed, or {@code null} if it succeeded. */
+        public XMLStreamException getException() {
+            return mException;
+        }
+
+        /**
+         * @return The number of nanoseconds spent parsing the file, not including the delivery of
+         *         {@link TagLoaded} notifications.
+         */
+        public long getElapsed() {
+            return mElapsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %,.3fs%s", mPath, Double.valueOf(mElapsed / 1000000000.0), mException != null ? " (" + mException.getMessage() + ")" : "");
+        }
+    }
+}
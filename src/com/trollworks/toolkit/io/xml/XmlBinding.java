@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.xml;
+
+import com.trollworks.toolkit.annotation.XmlAttr;
+import com.trollworks.toolkit.annotation.XmlNoSort;
+import com.trollworks.toolkit.annotation.XmlTag;
+import com.trollworks.toolkit.annotation.XmlTagMinimumVersion;
+import com.trollworks.toolkit.annotation.XmlTagVersion;
+import com.trollworks.toolkit.io.xml.helper.XmlObjectHelper;
+import com.trollworks.toolkit.utility.introspection.FieldAnnotation;
+import com.trollworks.toolkit.utility.introspection.Introspection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The plan for loading and saving a class's {@link XmlAttr} and {@link XmlTag} fields. A plan is
+ * built once per class, the first time it is needed, so that loading and saving only has to look
+ * things up rather than rediscover them through reflection for every element.
+ */
+final class XmlBinding {
+    private static final ClassValue<XmlBinding> BINDINGS = new ClassValue<>() {
+        @Override
+        protected XmlBinding computeValue(Class<?> type) {
+            return new XmlBinding(type);
+        }
+    };
+    private              Class<?>               mType;
+    private              int                    mVersion;
+    private              int                    mMinimumVersion;
+    private              Attribute[]            mAttributes;
+    private              Set<String>            mAttributeNames;
+    private              SubTag[]               mSubTags;
+    private              Map<String, SubTag>    mSubTagsByName;
+    private volatile     Helpers                mHelpers;
+
+    /**
+     * @param type The class to return the plan for.
+     * @return The plan for the class.
+     */
+    static XmlBinding get(Class<?> type) {
+        return BINDINGS.get(type);
+    }
+
+    private XmlBinding(Class<?> type) {
+        XmlTagVersion                  tagVersion = type.getAnnotation(XmlTagVersion.class);
+        XmlTagMinimumVersion           minimum    = type.getAnnotation(XmlTagMinimumVersion.class);
+        List<FieldAnnotation<XmlAttr>> attrs      = Introspection.getDeepFieldAnnotations(type, XmlAttr.class);
+        List<FieldAnnotation<XmlTag>>  tags       = Introspection.getDeepFieldAnnotations(type, XmlTag.class);
+        mType = type;
+        mVersion = tagVersion != null ? tagVersion.value() : 0;
+        mMinimumVersion = minimum != null ? minimum.value() : 0;
+        mAttributes = new Attribute[attrs.size()];
+        mAttributeNames = new HashSet<>();
+        for (int i = 0; i < mAttributes.length; i++) {
+            FieldAnnotation<XmlAttr> fa    = attrs.get(i);
+            Field                    field = fa.getField();
+            Introspection.makeFieldAccessible(field);
+            mAttributes[i] = new Attribute(field, fa.getAnnotation().value());
+            mAttributeNames.add(mAttributes[i].mName);
+        }
+        mSubTags = new SubTag[tags.size()];
+        mSubTagsByName = new HashMap<>();
+        for (int i = 0; i < mSubTags.length; i++) {
+            FieldAnnotation<XmlTag> fa = tags.get(i);
+            mSubTags[i] = new SubTag(fa.getField(), fa.getAnnotation().value());
+            mSubTagsByName.put(mSubTags[i].mName, mSubTags[i]);
+        }
+    }
+
+    /** @return The version of the tag, from its {@link XmlTagVersion} annotation. */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /** @return The oldest version of the tag that can still be loaded. */
+    int getMinimumVersion() {
+        return mMinimumVersion;
+    }
+
+    /** @return The {@link XmlObjectHelper} for the class itself. */
+    XmlObjectHelper getHelper() {
+        return helpers().mHelper;
+    }
+
+    /** @return The {@link XmlAttr} fields, in declaration order. */
+    Attribute[] getAttributes() {
+        return mAttributes;
+    }
+
+    /**
+     * @param index The index of the attribute, as returned by {@link #getAttributes()}.
+     * @return The {@link XmlObjectHelper} for the attribute's field.
+     */
+    XmlObjectHelper getAttributeHelper(int index) {
+        return helpers().mAttributeHelpers[index];
+    }
+
+    /**
+     * @param xml The {@link XmlParser} positioned on a start tag.
+     * @return The names of the attributes on the current tag that have no corresponding {@link
+     *         XmlAttr} field.
+     */
+    Set<String> getUnmatchedAttributes(XmlParser xml) {
+        Set<String> unmatched = new HashSet<>();
+        for (int i = xml.getAttributeCount(); --i > 0; ) {
+            String name = xml.getAttributeName(i);
+            if (!mAttributeNames.contains(name) && !Xml.ATTR_VERSION.equals(name)) {
+                unmatched.add(name);
+            }
+        }
+        return unmatched;
+    }
+
+    /** @return The {@link XmlTag} fields, in declaration order. */
+    SubTag[] getSubTags() {
+        return mSubTags;
+    }
+
+    /**
+     * @param name The name of a sub-tag.
+     * @return The {@link XmlTag} field for the sub-tag, or {@code null} if there is none.
+     */
+    SubTag getSubTag(String name) {
+        return mSubTagsByName.get(name);
+    }
+
+    private Helpers helpers() {
+        Helpers helpers = mHelpers;
+        if (helpers == null || !helpers.isCurrent()) {
+            // Helpers can be registered at any time, so they are looked up again whenever the
+            // registry has changed since they were last resolved.
+            helpers = new Helpers(mType, mAttributes);
+            mHelpers = helpers;
+        }
+        return helpers;
+    }
+
+    private static final class Helpers {
+        private Object            mRegistry;
+        private XmlObjectHelper   mHelper;
+        private XmlObjectHelper[] mAttributeHelpers;
+
+        Helpers(Class<?> type, Attribute[] attributes) {
+            mRegistry = Xml.getHelperRegistry();
+            mHelper = Xml.getHelper(type);
+            mAttributeHelpers = new XmlObjectHelper[attributes.length];
+            for (int i = 0; i < attributes.length; i++) {
+                mAttributeHelpers[i] = Xml.getHelper(attributes[i].mField.getType());
+            }
+        }
+
+        boolean isCurrent() {
+            return mRegistry == Xml.getHelperRegistry();
+        }
+    }
+
+    /** An {@link XmlAttr} field. */
+    static final class Attribute {
+        private Field  mField;
+        private String mName;
+
+        Attribute(Field field, String name) {
+            mField = field;
+            mName = name;
+        }
+
+        /** @return The field, already made accessible. */
+        Field getField() {
+            return mField;
+        }
+
+        /** @return The attribute name. */
+        String getName() {
+            return mName;
+        }
+    }
+
+    /** An {@link XmlTag} field. */
+    static final class SubTag {
+        /** The field holds a {@link String} that is loaded from the tag's text. */
+        static final int          TEXT       = 0;
+        /** The field holds a {@link Collection} that each matching tag adds an element to. */
+        static final int          COLLECTION = 1;
+        /** The field holds an object that is loaded from the tag. */
+        static final int          OBJECT     = 2;
+        /** The field holds an {@link XmlLazy} that loads its object from the tag when asked. */
+        static final int          LAZY       = 3;
+        private      String       mName;
+        private      int          mKind;
+        private      boolean      mSort;
+        private      MethodHandle mGetter;
+        private      MethodHandle mSetter;
+        private      Class<?>     mElementType;
+        private      MethodHandle mConstructor;
+        private      Exception    mFailure;
+
+        SubTag(Field field, String name) {
+            Class<?> type = field.getType();
+            mName = name;
+            mSort = !field.isAnnotationPresent(XmlNoSort.class);
+            if (String.class == type) {
+                mKind = TEXT;
+            } else if (Collection.class.isAssignableFrom(type)) {
+                mKind = COLLECTION;
+                mElementType = getTypeArgument(field);
+            } else if (XmlLazy.class == type) {
+                mKind = LAZY;
+                mElementType = getTypeArgument(field);
+            } else {
+                mKind = OBJECT;
+            }
+            try {
+                boolean isStatic = Modifier.isStatic(field.getModifiers());
+                Introspection.makeFieldAccessible(field);
+                MethodHandle getter = MethodHandles.lookup().unreflectGetter(field);
+                if (isStatic) {
+                    getter = MethodHandles.dropArguments(getter, 0, Object.class);
+                }
+                mGetter = getter.asType(MethodType.methodType(Object.class, Object.class));
+                if (mKind != COLLECTION) {
+                    MethodHandle setter = MethodHandles.lookup().unreflectSetter(field);
+                    if (isStatic) {
+                        setter = MethodHandles.dropArguments(setter, 0, Object.class);
+                    }
+                    mSetter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+                }
+                Class<?> instanceType = mKind == COLLECTION || mKind == LAZY ? mElementType : type;
+                if (instanceType != null && instanceType != String.class) {
+                    Constructor<?> constructor = instanceType.getDeclaredConstructor();
+                    Introspection.makeConstructorAccessible(constructor);
+                    mConstructor = MethodHandles.lookup().unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+                }
+            } catch (Exception exception) {
+                mFailure = exception;
+            }
+        }
+
+        private static Class<?> getTypeArgument(Field field) {
+            Type genericType = field.getGenericType();
+            if (genericType instanceof ParameterizedType) {
+                genericType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+                if (genericType instanceof ParameterizedType) {
+                    genericType = ((ParameterizedType) genericType).getRawType();
+                }
+                if (genericType instanceof Class) {
+                    return (Class<?>) genericType;
+                }
+            }
+            return null;
+        }
+
+        /** @return The sub-tag name. */
+        String getName() {
+            return mName;
+        }
+
+        /** @return One of {@link #TEXT}, {@link #COLLECTION}, {@link #OBJECT} or {@link #LAZY}. */
+        int getKind() {
+            return mKind;
+        }
+
+        /** @return {@code true} if the elements of a collection should be sorted when saving. */
+        boolean isSorted() {
+            return mSort;
+        }
+
+        /**
+         * @return The element type of a collection or {@link XmlLazy}, or {@code null} if it could
+         *         not be determined from the field's declaration.
+         */
+        Class<?> getElementType() {
+            return mElementType;
+        }
+
+        /**
+         * @param obj The object holding the field.
+         * @return The field's value.
+         */
+        Object get(Object obj) throws Throwable {
+            if (mGetter == null) {
+                throw mFailure;
+            }
+            return mGetter.invokeExact(obj);
+        }
+
+        /**
+         * @param obj   The object holding the field.
+         * @param value The field's new value.
+         */
+        void set(Object obj, Object value) throws Throwable {
+            if (mSetter == null) {
+                throw mFailure;
+            }
+            mSetter.invokeExact(obj, value);
+        }
+
+        /**
+         * @return A new instance of the element type for a collection or {@link XmlLazy}, or of the
+         *         field's type otherwise, created with its no-argument constructor.
+         */
+        Object newInstance() throws Throwable {
+            if (mConstructor == null) {
+                throw mFailure;
+            }
+            return mConstructor.invokeExact();
+        }
+    }
+}
@@ -27,6 +27,7 @@ public class XmlGenerator implements AutoCloseable {
     private XMLStreamWriter mWriter;
     private int             mDepth;
     private boolean         mHadText;
+    private char[]          mEOL;
 
     /**
      * Creates a new {@link XmlGenerator}.
@@ -40,6 +41,7 @@ public class XmlGenerator implements AutoCloseable {
     /** @param indent The characters to use for indentation. */
     public void setIndent(String indent) {
         mIndent = indent;
+        mEOL = null;
     }
 
     /** Emits the XML document header. */
@@ -53,10 +55,18 @@ public class XmlGenerator implements AutoCloseable {
     }
 
     private void eol() throws XMLStreamException {
-        mWriter.writeCharacters("\n");
-        for (int i = 0; i < mDepth; i++) {
-            mWriter.writeCharacters(mIndent);
+        // The newline and indentation for the deepest level seen so far are kept in a single
+        // buffer, so that any shallower level can be written with one call.
+        int length = 1 + mDepth * mIndent.length();
+        if (mEOL == null || mEOL.length < length) {
+            StringBuilder buffer = new StringBuilder(length + 8 * mIndent.length());
+            buffer.append('\n');
+            for (int i = mDepth + 8; --i >= 0; ) {
+                buffer.append(mIndent);
+            }
+            mEOL = buffer.toString().toCharArray();
         }
+        mWriter.writeCharacters(mEOL, 0, length);
     }
 
     /**
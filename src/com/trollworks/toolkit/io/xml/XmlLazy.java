@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.xml;
+
+import com.trollworks.toolkit.annotation.XmlTag;
+
+import java.nio.ByteBuffer;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Holds the object for an {@link XmlTag} field whose contents need not be loaded until they are
+ * used. Declare the field as {@code XmlLazy<Type>}, where {@code Type} is what would otherwise have
+ * been the field's type. When a document is loaded with {@link Xml#loadLazily}, a copy of the tag's
+ * bytes is set aside rather than parsed, and is only parsed the first time {@link #get()} is
+ * called. When loaded any other way, or when the bytes of the tag cannot be isolated, the object is
+ * loaded immediately, as for any other field. {@link TagObjectCreator} is not consulted for these
+ * fields.
+ *
+ * @param <T> The type of object being held.
+ */
+public class XmlLazy<T> {
+    private T                 mValue;
+    private ByteBuffer        mBytes;
+    private XmlBinding.SubTag mSubTag;
+    private XmlParserContext  mContext;
+    private boolean           mHasVersion;
+    private int               mVersion;
+
+    /** Creates a new, empty, {@link XmlLazy}. */
+    public XmlLazy() {
+    }
+
+    /** @param value The object to hold. */
+    public XmlLazy(T value) {
+        mValue = value;
+    }
+
+    /**
+     * Creates a new {@link XmlLazy} that will load its object from bytes set aside by the parser.
+     *
+     * @param bytes   The bytes of the tag, from its start tag through its end tag.
+     * @param subTag  The field the object is for.
+     * @param context The context that was in use when the tag was encountered.
+     */
+    XmlLazy(ByteBuffer bytes, XmlBinding.SubTag subTag, XmlParserContext context) {
+        mBytes = bytes;
+        mSubTag = subTag;
+        mContext = context;
+        mHasVersion = context.hasVersion();
+        mVersion = mHasVersion ? context.getVersion() : 0;
+    }
+
+    /**
+     * Loading uses a fresh {@link XmlParserContext}, filled with whatever the context that was in
+     * use for the rest of the document holds at that time.
+     *
+     * @return The object, loading it first if that hasn't happened yet.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T get() throws XMLStreamException {
+        if (mBytes != null) {
+            try (XmlParser xml = new XmlParser(mBytes)) {
+                XmlParserContext context = new XmlParserContext(xml);
+                context.putAll(mContext);
+                if (mHasVersion) {
+                    context.pushVersion(mVersion);
+                }
+                xml.nextTag();
+                T value = (T) mSubTag.newInstance();
+                Xml.load(xml, value, context);
+                mValue = value;
+            } catch (XMLStreamException | Error exception) {
+                throw exception;
+            } catch (Throwable throwable) {
+                throw new XMLStreamException(throwable);
+            }
+            mBytes = null;
+            mSubTag = null;
+            mContext = null;
+        }
+        return mValue;
+    }
+
+    /** @param value The object to hold, replacing any that has yet to be loaded. */
+    public synchronized void set(T value) {
+        mValue = value;
+        mBytes = null;
+        mSubTag = null;
+        mContext = null;
+    }
+
+    /** @return {@code true} if the object is present and {@link #get()} will not need to load it. */
+    public synchronized boolean isLoaded() {
+        return mBytes == null;
+    }
+}
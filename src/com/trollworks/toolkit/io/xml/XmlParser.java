@@ -14,7 +14,13 @@ package com.trollworks.toolkit.io.xml;
 import com.trollworks.toolkit.utility.text.Numbers;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.stream.Location;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
@@ -23,10 +29,15 @@ import javax.xml.stream.XMLStreamReader;
 
 /** Provides simple XML parsing. */
 public class XmlParser implements AutoCloseable {
-    private static final String          SEPARATOR = "\u0000";
-    private              XMLStreamReader mReader;
-    private              int             mDepth;
-    private              String          mMarker;
+    private static final String            SEPARATOR = "\u0000";
+    private              XMLInputFactory   mFactory;
+    private              XMLStreamReader   mReader;
+    private              int               mDepth;
+    private              String            mMarker;
+    private              ByteBuffer        mBytes;
+    private              XmlSubtreeScanner mScanner;
+    private              List<String>      mOpenTags;
+    private              int               mStartTags;
 
     /**
      * Creates a new {@link XmlParser}.
@@ -34,9 +45,25 @@ public class XmlParser implements AutoCloseable {
      * @param stream The {@link InputStream} to read from.
      */
     public XmlParser(InputStream stream) throws XMLStreamException {
-        XMLInputFactory factory = XMLInputFactory.newInstance();
-        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
-        mReader = factory.createXMLStreamReader(new BufferedInputStream(stream));
+        mFactory = XMLInputFactory.newInstance();
+        mFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        mReader = mFactory.createXMLStreamReader(new BufferedInputStream(stream));
+    }
+
+    /**
+     * Creates a new {@link XmlParser} that can hand back the bytes of an element in place of
+     * parsing it. See {@link #skipAndCapture()}.
+     *
+     * @param bytes The document, between the buffer's position and limit.
+     */
+    XmlParser(ByteBuffer bytes) throws XMLStreamException {
+        this(new ByteBufferInputStream(bytes.duplicate()));
+        String encoding = mReader.getEncoding();
+        if (XmlSubtreeScanner.isByteOriented(bytes) && (encoding == null || "UTF-8".equalsIgnoreCase(encoding) || "US-ASCII".equalsIgnoreCase(encoding))) {
+            mBytes = bytes.duplicate();
+            mScanner = new XmlSubtreeScanner(mBytes);
+            mOpenTags = new ArrayList<>();
+        }
     }
 
     /** @return The current line:column position. */
@@ -76,9 +103,20 @@ public class XmlParser implements AutoCloseable {
             case XMLStreamConstants.START_ELEMENT:
                 String name = mReader.getLocalName();
                 mMarker = mDepth++ + SEPARATOR + name;
+                mStartTags++;
+                if (mOpenTags != null) {
+                    if (usesNamespaces()) {
+                        stopCapturing();
+                    } else {
+                        mOpenTags.add(name);
+                    }
+                }
                 return name;
             case XMLStreamConstants.END_ELEMENT:
                 mMarker = --mDepth + SEPARATOR + mReader.getLocalName();
+                if (mOpenTags != null) {
+                    mOpenTags.remove(mOpenTags.size() - 1);
+                }
                 if (mMarker.equals(marker)) {
                     return null;
                 }
@@ -111,6 +149,69 @@ public class XmlParser implements AutoCloseable {
         }
     }
 
+    /**
+     * Skips the current tag, as {@link #skip()} does, but without parsing its contents.
+     *
+     * @return A copy of the bytes of the current tag, from its start tag through its end tag, or
+     *         {@code null} if they could not be determined or the document uses namespaces. In that
+     *         case, nothing has been skipped and the parser has stopped trying to capture tags for
+     *         the rest of the document.
+     */
+    ByteBuffer skipAndCapture() throws XMLStreamException {
+        if (mScanner != null) {
+            int start = mScanner.locate(mStartTags, mReader.getLocalName());
+            int end   = start != -1 ? mScanner.skip(start) : -1;
+            if (end != -1) {
+                restartAt(end);
+                ByteBuffer bytes = ByteBuffer.allocate(end - start);
+                bytes.put(mBytes.duplicate().position(start).limit(end));
+                return bytes.flip();
+            }
+            stopCapturing();
+        }
+        return null;
+    }
+
+    /**
+     * Capturing relies on the open ancestors being replayed by their local names alone, and on a
+     * captured tag making sense without them, neither of which holds once namespaces are in play.
+     *
+     * @return {@code true} if the current tag has a namespace prefix or declares a namespace.
+     */
+    private boolean usesNamespaces() {
+        String prefix = mReader.getPrefix();
+        return prefix != null && !prefix.isEmpty() || mReader.getNamespaceCount() > 0;
+    }
+
+    private void stopCapturing() {
+        mScanner = null;
+        mOpenTags = null;
+    }
+
+    /**
+     * Replaces the underlying reader with one that picks up just after the current tag's end tag.
+     * The new reader is fed the start tags of the still open ancestors first, so that their end
+     * tags, which are still to come, are matched. Line and column numbers reported afterwards are
+     * relative to the restart point.
+     */
+    private void restartAt(int pos) throws XMLStreamException {
+        mOpenTags.remove(mOpenTags.size() - 1);
+        mMarker = --mDepth + SEPARATOR + mReader.getLocalName();
+        StringBuilder buffer = new StringBuilder();
+        for (String tag : mOpenTags) {
+            buffer.append('<');
+            buffer.append(tag);
+            buffer.append('>');
+        }
+        InputStream     prefix = new ByteArrayInputStream(buffer.toString().getBytes(StandardCharsets.UTF_8));
+        XMLStreamReader reader = mFactory.createXMLStreamReader(new BufferedInputStream(new SequenceInputStream(prefix, new ByteBufferInputStream(mBytes.duplicate().position(pos)))), StandardCharsets.UTF_8.name());
+        mReader.close();
+        mReader = reader;
+        for (int i = mOpenTags.size(); --i >= 0; ) {
+            mReader.nextTag();
+        }
+    }
+
     /**
      * @param name The name of the attribute to check.
      * @return Whether the attribute is present.
@@ -270,6 +371,9 @@ public class XmlParser implements AutoCloseable {
     public String getText() throws XMLStreamException {
         String text = mReader.getElementText();
         mMarker = --mDepth + SEPARATOR + mReader.getLocalName();
+        if (mOpenTags != null) {
+            mOpenTags.remove(mOpenTags.size() - 1);
+        }
         return text;
     }
 
@@ -284,4 +388,36 @@ public class XmlParser implements AutoCloseable {
             }
         }
     }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int remaining = mBuffer.remaining();
+            if (remaining == 0) {
+                return -1;
+            }
+            length = Math.min(length, remaining);
+            mBuffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
 }
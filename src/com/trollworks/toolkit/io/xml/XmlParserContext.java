@@ -11,17 +11,24 @@
 
 package com.trollworks.toolkit.io.xml;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
 
 import gnu.trove.stack.TIntStack;
 import gnu.trove.stack.array.TIntArrayStack;
 
 /** Provides temporary storage when loading an object from XML. */
 public class XmlParserContext extends HashMap<String, Object> {
-    private XmlParser mParser;
-    private TIntStack mVersionStack = new TIntArrayStack();
+    private XmlParser          mParser;
+    private TIntStack          mVersionStack = new TIntArrayStack();
+    private List<DeferredLoad> mDeferred;
 
-    /** @param parser The {@link XmlParser} being used. */
+    /**
+     * @param parser The {@link XmlParser} being used. May be {@code null}, in which case the parser
+     *               created by {@link Xml} for the document will be filled in once loading starts.
+     */
     public XmlParserContext(XmlParser parser) {
         mParser = parser;
     }
@@ -31,6 +38,62 @@ public class XmlParserContext extends HashMap<String, Object> {
         return mParser;
     }
 
+    void setParser(XmlParser parser) {
+        mParser = parser;
+    }
+
+    /**
+     * Causes {@link TagLoaded#xmlLoaded(XmlParserContext)} notifications to be collected rather
+     * than delivered, until {@link #deliverDeferredLoaded()} is called.
+     */
+    void deferLoadedNotifications() {
+        if (mDeferred == null) {
+            mDeferred = new ArrayList<>();
+        }
+    }
+
+    /**
+     * @param obj The object that has finished loading.
+     * @return {@code true} if the notification was deferred, {@code false} if the caller should
+     *         deliver it immediately.
+     */
+    boolean defer(TagLoaded obj) {
+        if (mDeferred == null) {
+            return false;
+        }
+        mDeferred.add(new DeferredLoad(obj, hasVersion(), hasVersion() ? mVersionStack.peek() : 0));
+        return true;
+    }
+
+    /**
+     * Delivers any deferred {@link TagLoaded#xmlLoaded(XmlParserContext)} notifications, in the
+     * order they were collected and with the version stack as it was at the time, then stops
+     * deferring them.
+     */
+    void deliverDeferredLoaded() throws XMLStreamException {
+        List<DeferredLoad> deferred = mDeferred;
+        mDeferred = null;
+        if (deferred != null) {
+            for (DeferredLoad one : deferred) {
+                if (one.mHasVersion) {
+                    pushVersion(one.mVersion);
+                }
+                try {
+                    one.mTarget.xmlLoaded(this);
+                } finally {
+                    if (one.mHasVersion) {
+                        popVersion();
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return {@code true} if there is a version on the stack. */
+    boolean hasVersion() {
+        return mVersionStack.size() > 0;
+    }
+
     /** @return The current version on the stack. */
     public int getVersion() {
         return mVersionStack.peek();
@@ -45,4 +108,16 @@ public class XmlParserContext extends HashMap<String, Object> {
     public void popVersion() {
         mVersionStack.pop();
     }
+
+    private static class DeferredLoad {
+        TagLoaded mTarget;
+        boolean   mHasVersion;
+        int       mVersion;
+
+        DeferredLoad(TagLoaded target, boolean hasVersion, int version) {
+            mTarget = target;
+            mHasVersion = hasVersion;
+            mVersion = version;
+        }
+    }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Follows an {@link XmlParser} through the raw UTF-8 bytes of its document, so that the byte range
+ * of an element can be found and the element skipped without being tokenized. Start tags are
+ * counted in the same order the parser reports them, which is what ties a byte offset to a parser
+ * event. Only markup is examined; text is passed over a byte at a time.
+ */
+final class XmlSubtreeScanner {
+    private ByteBuffer mBytes;
+    private int        mPos;
+    private int        mLimit;
+    private int        mStartTags;
+
+    /** @param bytes The bytes of the document, between their position and limit. */
+    XmlSubtreeScanner(ByteBuffer bytes) {
+        mBytes = bytes;
+        mPos = bytes.position();
+        mLimit = bytes.limit();
+    }
+
+    /**
+     * @param bytes The bytes of the document, between their position and limit.
+     * @return {@code false} if the bytes look like UTF-16 or UTF-32, which cannot be scanned.
+     */
+    static boolean isByteOriented(ByteBuffer bytes) {
+        int pos = bytes.position();
+        for (int i = 0; i < 2 && pos + i < bytes.limit(); i++) {
+            int b = bytes.get(pos + i) & 0xFF;
+            if (b == 0 || b == 0xFE || b == 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Advances to a start tag.
+     *
+     * @param count The number of the start tag within the document, counting from 1.
+     * @param name  The name the parser reported for the tag.
+     * @return The offset of the start tag's '&lt;', or -1 if it could not be found.
+     */
+    int locate(int count, String name) {
+        while (mPos < mLimit) {
+            if (mBytes.get(mPos) != '<') {
+                mPos++;
+            } else {
+                int start = mPos;
+                mPos = skipMarkup(start);
+                if (mPos < 0) {
+                    return -1;
+                }
+                if (isStartTag(start) && ++mStartTags == count) {
+                    return matchesName(start + 1, name) ? start : -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Advances past the end of an element.
+     *
+     * @param start The offset of the element's start tag, as returned by {@link #locate(int,
+     *              String)}.
+     * @return The offset just past the element's end tag, or -1 if it could not be found.
+     */
+    int skip(int start) {
+        int depth = 0;
+        int pos   = start;
+        while (pos < mLimit) {
+            if (mBytes.get(pos) != '<') {
+                pos++;
+            } else {
+                int tag = pos;
+                pos = skipMarkup(tag);
+                if (pos < 0) {
+                    return -1;
+                }
+                if (isStartTag(tag)) {
+                    if (mBytes.get(pos - 2) != '/') {
+                        depth++;
+                    } else if (depth == 0) {
+                        mPos = pos;
+                        return pos;
+                    }
+                } else if (mBytes.get(tag + 1) == '/' && --depth == 0) {
+                    mPos = pos;
+                    return pos;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean isStartTag(int pos) {
+        byte next = mBytes.get(pos + 1);
+        return next != '/' && next != '!' && next != '?';
+    }
+
+    private boolean matchesName(int pos, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (pos + bytes.length >= mLimit) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (mBytes.get(pos + i) != bytes[i]) {
+                return false;
+            }
+        }
+        byte next = mBytes.get(pos + bytes.length);
+        return next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\n' || next == '\r';
+    }
+
+    /**
+     * @param pos The offset of a '&lt;'.
+     * @return The offset just past the end of the markup that starts there, or -1 if it runs past
+     *         the end of the document or is a DOCTYPE, whose entities could make the parser's view
+     *         of the document differ from the bytes.
+     */
+    private int skipMarkup(int pos) {
+        if (pos + 1 >= mLimit) {
+            return -1;
+        }
+        switch (mBytes.get(pos + 1)) {
+        case '!':
+            if (startsWith(pos, "<!--")) {
+                return indexAfter(pos + 4, "-->");
+            }
+            if (startsWith(pos, "<![CDATA[")) {
+                return indexAfter(pos + 9, "]]>");
+            }
+            return -1;
+        case '?':
+            return indexAfter(pos + 2, "?>");
+        case '/':
+            return indexAfter(pos + 2, ">");
+        default:
+            byte quote = 0;
+            for (int i = pos + 1; i < mLimit; i++) {
+                byte b = mBytes.get(i);
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private boolean startsWith(int pos, String prefix) {
+        int length = prefix.length();
+        if (pos + length > mLimit) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mBytes.get(pos + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexAfter(int pos, String terminator) {
+        byte first = (byte) terminator.charAt(0);
+        for (int i = pos; i < mLimit; i++) {
+            if (mBytes.get(i) == first && startsWith(i, terminator)) {
+                return i + terminator.length();
+            }
+        }
+        return -1;
+    }
+}